@@ -87,6 +87,7 @@ process generate_json_index_files{
   label 'process_high'
 
   publishDir "${params.outdir}", mode: 'copy', pattern: '**.json'
+  publishDir "${params.outdir}/pipeline_info", mode: 'copy', pattern: '**_CacheMetrics.json'
 
   input:
     file(input_files) from mzmls_files.collect()
@@ -99,7 +100,7 @@ process generate_json_index_files{
   script:
   java_mem = "-Xmx" + task.memory.toGiga() + "G"
   """
-  java $java_mem -jar ${baseDir}/bin/pride-molecules-indexer-1.0.0-SNAPSHOT-bin.jar generate-index-files --app.result-file="${id_file}" --app.folder-output=`pwd` --app.spectra-files="${input_files.join(",")}" --app.project-accession=${params.project_accession} --app.sample-file=${sdrf} --app.reanalysis-accession=${params.reanalysis_accession} --app.minPSMs=${params.minPSMs} --app.qValueThreshold=${params.qValueThreshold}
+  java $java_mem -jar ${baseDir}/bin/pride-molecules-indexer-1.0.0-SNAPSHOT-bin.jar generate-index-files --app.result-file="${id_file}" --app.folder-output=`pwd` --app.spectra-files="${input_files.join(",")}" --app.project-accession=${params.project_accession} --app.sample-file=${sdrf} --app.reanalysis-accession=${params.reanalysis_accession} --app.minPSMs=${params.minPSMs} --app.qValueThreshold=${params.qValueThreshold} --app.metrics-file="${id_file.baseName}_CacheMetrics.json"
   """
 }
 
@@ -26,7 +26,7 @@ import java.util.stream.Collectors;
 public class ArchiveMoleculesIndexer implements ApplicationRunner {
 
     private final String[] options = {"get-result-files", "get-related-files",
-            "generate-index-files", "perform-inference",
+            "generate-index-files", "perform-inference", "update-inference",
             "generate-mgf-files" , "spectra-json-check"};
 
     @Autowired
@@ -44,6 +44,21 @@ public class ArchiveMoleculesIndexer implements ApplicationRunner {
     @Autowired
     PSMClusteringService clusteringService;
 
+    @Value("${cache.heap-entries:#{0}}")
+    private long cacheHeapEntries;
+
+    @Value("${cache.offheap-mb:#{0}}")
+    private long cacheOffHeapMB;
+
+    @Value("${cache.disk-mb:#{0}}")
+    private long cacheDiskMB;
+
+    @Value("${cache.scratch-dir:}")
+    private String scratchDirectory;
+
+    @Value("${cache.statistics-period-seconds:#{300}}")
+    private long cacheStatisticsPeriod;
+
     /**
      * usage outputDirectory filterFile directoryToProcess
      * @param args
@@ -59,6 +74,11 @@ public class ArchiveMoleculesIndexer implements ApplicationRunner {
             if (args.getNonOptionArgs().size() != 1 || !Arrays.asList(options).contains(args.getNonOptionArgs().get(0))){
                 throw new Exception("Available commands are: " + Arrays.asList(options));
             }
+            AppCacheManager.configure(cacheHeapEntries, cacheOffHeapMB, cacheDiskMB, scratchDirectory, inputSize(args));
+            List<String> metricsFileOptions = args.getOptionValues("app.metrics-file");
+            AppCacheManager.configureStatistics(cacheStatisticsPeriod,
+                    (metricsFileOptions == null || metricsFileOptions.isEmpty()) ? null : cleanFileName(metricsFileOptions.get(0)));
+
             // Get results files command
             String command = args.getNonOptionArgs().get(0);
             if(Objects.equals(command, "get-result-files")){
@@ -230,15 +250,28 @@ public class ArchiveMoleculesIndexer implements ApplicationRunner {
                     throw new Exception("The Protein FDR q-value Threshold (default: 0.01): --app.qFilterProteinFDR=0.05");
                 }
 
+                valueOption = args.getOptionValues("app.warm-cache-dir");
+                if(valueOption != null && valueOption.size() > 0)
+                    inferenceAnalysisService.setWarmCacheDirectory(cleanFileName(valueOption.get(0)));
+
+                // The clusters are saved to add new assays later with update-inference.
+                valueOption = args.getOptionValues("app.cluster-state");
+                if(valueOption != null && valueOption.size() > 0)
+                    inferenceAnalysisService.setClusterStateDirectory(cleanFileName(valueOption.get(0)));
+
                 List<String> resultFileOptions = args.getOptionValues("app.archive-spectra");
                 if(resultFileOptions.size() != 1){
                     throw new Exception("The archive spectra file must be provided --app.archive-spectra");
                 }
 
+                // --app.clustering=native clusters the spectra in the JVM instead of reading the MaraCluster results.
+                List<String> clusteringOption = args.getOptionValues("app.clustering");
+                boolean nativeClustering = clusteringOption != null && clusteringOption.contains("native");
                 List<String> maraClusterOption = args.getOptionValues("app.cluster-file");
-                if(resultFileOptions.size() != 1){
-                    throw new Exception("A file containing the clusters of the spectra --app.cluster-file");
+                if(!nativeClustering && (maraClusterOption == null || maraClusterOption.size() != 1)){
+                    throw new Exception("A file containing the clusters of the spectra --app.cluster-file or --app.clustering=native");
                 }
+                String clusterFile = nativeClustering ? null : maraClusterOption.get(0);
 
                 List<String> outputFolderOption = args.getOptionValues("app.output-folder");
                 if(outputFolderOption == null || outputFolderOption.size() > 1)
@@ -255,10 +288,40 @@ public class ArchiveMoleculesIndexer implements ApplicationRunner {
                 if(reanalysisAccessionOption != null && reanalysisAccessionOption.size() != 0){
                     reanalysisAccession = reanalysisAccessionOption.get(0);
                 }
-                inferenceAnalysisService.performProteinInference(resultFileOptions.get(0), maraClusterOption.get(0), projectAccession,
+                inferenceAnalysisService.performProteinInference(resultFileOptions.get(0), clusterFile, projectAccession,
                         reanalysisAccession, outputFolderOption.get(0));
 
             }
+            // Add a new archive spectra file to the clusters of a previous perform-inference
+            else if(Objects.equals(command, "update-inference")){
+
+                List<String> clusterStateOption = args.getOptionValues("app.cluster-state");
+                if(clusterStateOption == null || clusterStateOption.size() != 1)
+                    throw new Exception("The cluster state of the previous inference must be provided --app.cluster-state");
+
+                List<String> resultFileOptions = args.getOptionValues("app.archive-spectra");
+                if(resultFileOptions == null || resultFileOptions.size() != 1){
+                    throw new Exception("The archive spectra file with the new spectra must be provided --app.archive-spectra");
+                }
+
+                List<String> outputFolderOption = args.getOptionValues("app.output-folder");
+                if(outputFolderOption == null || outputFolderOption.size() > 1)
+                    throw new Exception("Output folder must be specified --app.output-folder");
+
+                List<String> projectAccessionOption = args.getOptionValues("app.project-accession");
+                if(projectAccessionOption == null || projectAccessionOption.size() != 1){
+                    throw new Exception("Project Accession must be only one project --app.project-accession");
+                }
+
+                List<String> reanalysisAccessionOption = args.getOptionValues("app.reanalysis-accession");
+                String reanalysisAccession = null;
+                if(reanalysisAccessionOption != null && reanalysisAccessionOption.size() != 0){
+                    reanalysisAccession = reanalysisAccessionOption.get(0);
+                }
+                inferenceAnalysisService.updateProteinInference(cleanFileName(clusterStateOption.get(0)),
+                        cleanFileName(resultFileOptions.get(0)), projectAccessionOption.get(0), reanalysisAccession,
+                        outputFolderOption.get(0));
+            }
             // Convert pride json files to mgf
             else if(Objects.equals(command, "generate-mgf-files")){
 
@@ -296,6 +359,27 @@ public class ArchiveMoleculesIndexer implements ApplicationRunner {
         AppCacheManager.closeInstance();
     }
 
+    /**
+     * Total size of the input files of the command, it is used to size the caches.
+     * @param args command line arguments
+     * @return size in bytes
+     */
+    private long inputSize(ApplicationArguments args){
+        long size = 0;
+        for (String option : new String[]{"app.archive-spectra", "app.cluster-file", "app.result-file", "app.spectra-files"}) {
+            List<String> values = args.getOptionValues(option);
+            if (values == null)
+                continue;
+            size += values.stream()
+                    .flatMap(x -> Arrays.stream(x.split(",")))
+                    .map(this::cleanFileName)
+                    .map(File::new)
+                    .mapToLong(File::length)
+                    .sum();
+        }
+        return size;
+    }
+
     private String cleanFileName(String fileName){
         if (fileName.startsWith("\""))
             fileName = fileName.substring(1);
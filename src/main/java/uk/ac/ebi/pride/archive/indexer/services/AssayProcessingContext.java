@@ -0,0 +1,211 @@
+package uk.ac.ebi.pride.archive.indexer.services;
+
+import de.mpc.pia.modeller.PIAModeller;
+import de.mpc.pia.modeller.protein.ReportProtein;
+import de.mpc.pia.modeller.psm.ReportPSM;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.ehcache.Cache;
+import uk.ac.ebi.pride.archive.dataprovider.data.protein.PeptideSpectrumOverview;
+import uk.ac.ebi.pride.archive.dataprovider.param.CvParam;
+import uk.ac.ebi.pride.archive.dataprovider.param.Param;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.ResultFileIdentifications;
+import uk.ac.ebi.pride.archive.indexer.utility.AppCacheManager;
+import uk.ac.ebi.pride.archive.indexer.utility.BackupUtil;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of the processing of one assay: the PIA results, the sample metadata, the output writers, the
+ * ProteinToPsms cache and the counters. A context is created for each assay and closed when the assay is done,
+ * the services only keep configuration, so several assays can be processed at the same time in one JVM.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class AssayProcessingContext implements Closeable {
+
+    @Getter
+    private final String projectAccession;
+    @Getter
+    private final String reanalysisAccession;
+    @Getter @Setter
+    private String assayAccession;
+
+    @Getter @Setter
+    private PIAModeller modeller;
+    @Getter @Setter
+    private List<ReportPSM> psms = new ArrayList<>();
+    @Getter @Setter
+    private List<ReportProtein> proteins = new ArrayList<>();
+    /** PSMs of a result file processed without PIA, the context closes them and deletes their store. */
+    @Getter @Setter
+    private ResultFileIdentifications resultFileIdentifications;
+    /** Indexes of the PSMs of the result file identifications that pass the PSM filters. */
+    @Getter @Setter
+    private BitSet acceptedPsms = new BitSet();
+    /** Accessions of the proteins that pass the protein filters when the assay is processed without PIA. */
+    @Getter @Setter
+    private Set<String> reportedProteins = new HashSet<>();
+    @Getter @Setter
+    private boolean valid;
+    @Getter @Setter
+    private Set<CvParam> validationMethods = new HashSet<>();
+
+    @Getter
+    private final Map<String, Set<Param>> sampleProperties = new HashMap<>();
+    @Getter
+    private final Map<String, Set<Param>> globalSampleProperties = new HashMap<>();
+
+    private String proteinEvidenceFileName;
+    @Getter
+    private PrintWriter proteinEvidenceWriter;
+    private String archiveSpectrumFileName;
+    @Getter
+    private PrintWriter archiveSpectrumWriter;
+    private String psmSummaryEvidenceFileName;
+    @Getter
+    private PrintWriter psmSummaryEvidenceWriter;
+    private String archiveSpectrumFilePrefix;
+    private final Map<String, PrintWriter> spectraPartitionWriters = new HashMap<>();
+
+    private final String proteinToPsmsAlias = "ProteinToPsms-" + UUID.randomUUID();
+    private Cache<String, List<PeptideSpectrumOverview>> proteinToPsms;
+    @Getter @Setter
+    private Map<String, Double> proteinScores = new HashMap<>();
+    @Getter @Setter
+    private Map<String, String> proteinStatus = new HashMap<>();
+    @Getter @Setter
+    private Map<String, Boolean> proteinDecoys = new HashMap<>();
+    @Getter @Setter
+    private Map<String, Set<String>> proteinPTMs = new HashMap<>();
+
+    @Getter
+    private final AtomicInteger totalPSMs = new AtomicInteger();
+    @Getter
+    private final AtomicInteger errorDeltaPSMs = new AtomicInteger();
+
+    public AssayProcessingContext(String projectAccession, String reanalysisAccession) {
+        this.projectAccession = projectAccession;
+        this.reanalysisAccession = reanalysisAccession;
+    }
+
+    /**
+     * Create the output files of the assay under folderOutput/folderAccession.
+     * @param folderOutput Root folder containing all the backup files
+     * @param folderAccession Project or reanalysis accession used as sub-folder
+     * @throws IOException
+     */
+    public void createBackupFiles(String folderOutput, String folderAccession) throws IOException {
+
+        // Create first the root folder for the project
+        PrideAnalysisAssayService.createBackupDir(folderOutput, folderAccession);
+
+        log.info("Creating assay file  -- " + folderAccession);
+
+        proteinEvidenceFileName = BackupUtil.getProteinEvidenceFile(folderOutput, folderAccession, assayAccession);
+        proteinEvidenceWriter = new PrintWriter(new FileWriter(proteinEvidenceFileName, false));
+
+        archiveSpectrumFileName = BackupUtil.getArchiveSpectrumFile(folderOutput, folderAccession, assayAccession);
+        archiveSpectrumWriter = new PrintWriter(new FileWriter(archiveSpectrumFileName, false));
+
+        archiveSpectrumFilePrefix = BackupUtil.getArchiveSpectrumFilePrefix(folderOutput, folderAccession);
+
+        psmSummaryEvidenceFileName = BackupUtil.getPsmSummaryEvidenceFile(folderOutput, folderAccession, assayAccession);
+        psmSummaryEvidenceWriter = new PrintWriter(new FileWriter(psmSummaryEvidenceFileName, false));
+    }
+
+    /**
+     * Writer of the archive spectra partition of a file (third field of the usi), created on first use.
+     * @param batchFile partition name
+     * @return PrintWriter of the partition
+     * @throws IOException
+     */
+    public synchronized PrintWriter getSpectraPartitionWriter(String batchFile) throws IOException {
+        PrintWriter writer = spectraPartitionWriters.get(batchFile);
+        if (writer == null) {
+            writer = new PrintWriter(new FileWriter(BackupUtil.getArchiveSpectrumFileBatch(archiveSpectrumFilePrefix, batchFile), false));
+            spectraPartitionWriters.put(batchFile, writer);
+        }
+        return writer;
+    }
+
+    public synchronized void closeSpectraPartitionWriters() {
+        spectraPartitionWriters.values().forEach(x -> {
+            x.flush();
+            x.close();
+        });
+        spectraPartitionWriters.clear();
+    }
+
+    /**
+     * ProteinToPsms cache of this assay, created in the {@link AppCacheManager} on first use and removed on close.
+     * @return protein accession to psms cache
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Cache<String, List<PeptideSpectrumOverview>> getProteinToPsms() {
+        if (proteinToPsms == null)
+            proteinToPsms = (Cache<String, List<PeptideSpectrumOverview>>) AppCacheManager.getInstance()
+                    .createProteinToPsmsCache(proteinToPsmsAlias);
+        return proteinToPsms;
+    }
+
+    /**
+     * Sample properties of a file, from the sample files if present or from the project metadata.
+     * @param fileNameNoExtension file name without extension
+     * @return Set of sample properties
+     */
+    public Set<Param> getSampleProperties(String fileNameNoExtension) {
+        if (sampleProperties.containsKey(fileNameNoExtension))
+            return sampleProperties.get(fileNameNoExtension);
+        if (globalSampleProperties.containsKey(fileNameNoExtension))
+            return globalSampleProperties.get(fileNameNoExtension);
+        return new HashSet<>();
+    }
+
+    /**
+     * Delete the output files when the pipeline fails to produce PSMs, Peptides and Proteins
+     */
+    public void deleteOutputFiles() {
+        try {
+            for (String fileToDelete : Arrays.asList(proteinEvidenceFileName, archiveSpectrumFileName, psmSummaryEvidenceFileName)) {
+                if (fileToDelete != null)
+                    Files.deleteIfExists(new File(fileToDelete).toPath());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Flush and close the writers of the assay and remove its caches.
+     */
+    @Override
+    public void close() {
+        for (PrintWriter writer : Arrays.asList(proteinEvidenceWriter, archiveSpectrumWriter, psmSummaryEvidenceWriter)) {
+            if (writer != null) {
+                writer.flush();
+                writer.close();
+            }
+        }
+        closeSpectraPartitionWriters();
+        synchronized (this) {
+            if (resultFileIdentifications != null) {
+                resultFileIdentifications.close();
+                resultFileIdentifications = null;
+            }
+            if (proteinToPsms != null) {
+                AppCacheManager.getInstance().removeCache(proteinToPsmsAlias);
+                proteinToPsms = null;
+            }
+        }
+    }
+}
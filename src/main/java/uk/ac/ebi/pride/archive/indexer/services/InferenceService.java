@@ -7,14 +7,20 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Service;
-import uk.ac.ebi.pride.archive.dataprovider.common.Triple;
 import uk.ac.ebi.pride.archive.dataprovider.data.protein.PeptideSpectrumOverview;
 import uk.ac.ebi.pride.archive.dataprovider.data.spectra.BinaryArchiveSpectrum;
 import uk.ac.ebi.pride.archive.dataprovider.data.spectra.SummaryArchiveSpectrum;
 import uk.ac.ebi.pride.archive.dataprovider.param.CvParam;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.ArchiveSpectrumMetadata;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.ClusterAggregationEngine;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.ClusterAssignmentTable;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.ClusterState;
 import uk.ac.ebi.pride.archive.indexer.services.proteomics.PIAModelerService;
-import uk.ac.ebi.pride.archive.indexer.services.proteomics.PeptidoformClustered;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.PeakVector;
 import uk.ac.ebi.pride.archive.indexer.services.proteomics.PrideJsonRandomAccess;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.ProteinAggregateTable;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.ProteinGroupingEngine;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.SpectrumClusteringEngine;
 import uk.ac.ebi.pride.archive.indexer.utility.*;
 import uk.ac.ebi.pride.utilities.term.CvTermReference;
 
@@ -23,8 +29,6 @@ import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
-import static uk.ac.ebi.pride.archive.indexer.services.PrideAnalysisAssayService.createBackupDir;
-
 @Configuration
 @Slf4j
 @Service
@@ -44,20 +48,47 @@ public class InferenceService implements Serializable{
     @Value("${peptideLength:#{7}}")
     private Double peptideLength;
 
+    @Value("${cache.warm-dir:}")
+    private String warmCacheDirectory;
+
+    @Value("${cache.warm-budget-mb:#{51200}}")
+    private long warmCacheBudgetMB;
+
+    @Value("${cluster-state.dir:}")
+    private String clusterStateDirectory;
+
     @Autowired
     private PSMClusteringService clusterService;
 
-    static final Map<String, PrintWriter> spectraPartitionWriters = new HashMap<>();
+    // Number of cluster representatives read together from the archive spectra file.
+    private static final int READ_BATCH_SIZE = 1000;
+
+    // Fields of the archive spectra needed to select the representative of each cluster.
+    private static final Set<ArchiveSpectrumMetadata.Field> CLUSTERING_FIELDS = EnumSet.of(
+            ArchiveSpectrumMetadata.Field.USI, ArchiveSpectrumMetadata.Field.PEPTIDE_SEQUENCE,
+            ArchiveSpectrumMetadata.Field.PEPTIDOFORM, ArchiveSpectrumMetadata.Field.IS_DECOY,
+            ArchiveSpectrumMetadata.Field.BEST_SEARCH_ENGINE_SCORE);
+
+    // Artifacts of a run kept in the warm cache entry of its inputs.
+    private static final String SPECTRA_INDEX_FILE = "spectra-index.bin";
+    private static final String CLUSTERS_FILE = "cluster-table";
+
+    /**
+     * Reader of a batch of spectra to write, by id (ordinal in the archive spectra file or row of a cluster state).
+     */
+    @FunctionalInterface
+    private interface SpectraBatchReader {
+        List<BinaryArchiveSpectrum> read(int[] ids) throws IOException;
+    }
 
+    /**
+     * Protein inference category of each protein, see {@link ProteinGroupingEngine}.
+     * @param peptideToProteins peptidoform to the accessions of the proteins it maps to
+     * @param proteins proteins to classify
+     * @return protein accession to category
+     */
     public static Map<String, String> getInferenceCategories(Map<String, List<String>> peptideToProteins, Set<String> proteins) {
-        Collection<List<String>> values = peptideToProteins.values();
-        return proteins.stream().collect(Collectors.toMap(String::new, item -> {
-              for(List<String> value: values){
-                  if(value.contains(item) && value.size() == 1)
-                      return "distinguishable";
-              }
-              return "indistinguishable";
-        }));
+        return ProteinGroupingEngine.of(peptideToProteins).classify(proteins);
     }
 
     @Bean
@@ -66,97 +97,204 @@ public class InferenceService implements Serializable{
         return piaModellerInference;
     }
 
-    public static Map<String, Double> getBestQValue(Map<String, List<Triple<String, Double,String>>> proteins){
-        Comparator<Triple<String, Double, String>> comparator = Comparator.comparing(Triple::getSecond);
-        Map<String, Double> proteinScore = proteins.entrySet().stream().collect(
-                Collectors.toMap(Map.Entry::getKey, x -> {
-                    List<Triple<String, Double, String>> list = x.getValue();
-                    list.sort(comparator);
-                    return list.stream()
-                            .findFirst()
-                            .get()
-                            .getSecond();
-                }));
-
-        proteinScore.forEach((key, value) -> System.out.println(key + "  " + value));
-        return proteinScore;
-    }
-
+    /**
+     * Select the representative spectrum of each cluster and compute the protein evidences from them.
+     * @param pridePSMPath archive spectra file
+     * @param maraclusterResultsPath MaraCluster results, null to cluster the spectra in the JVM
+     * @param projectAccession project accession
+     * @param reanalysisAccession reanalysis accession, can be null
+     * @param folderOutput output folder
+     */
     public void performProteinInference(String pridePSMPath, String maraclusterResultsPath, String projectAccession,
                                         String reanalysisAccession, String folderOutput) throws Exception {
 
-        AppCacheManager appCacheManager = AppCacheManager.getInstance();
-
         PrideJsonRandomAccess pridePSMJsonReader = new PrideJsonRandomAccess(pridePSMPath);
-        pridePSMJsonReader.parseIndex();
 
-        //The index of the spectrum in the reader is the same (0-based) than the key in the cluster map
-        Cache<Integer, Integer> clusters = clusterService.readMaraClusterResults(maraclusterResultsPath);
-
-        Cache<Integer, List<Triple<String, PeptidoformClustered, Double>>> clusterScores = (Cache<Integer, List<Triple<String, PeptidoformClustered, Double>>>) appCacheManager.getPeptidoformCache();
-        Cache<Integer, Triple<String, PeptidoformClustered, Double>> filterScores = (Cache<Integer, Triple<String, PeptidoformClustered, Double>>) appCacheManager.getFilterPeptidoformCache();
+        //The index of the spectrum in the reader is the same (0-based) than the position in the cluster table
+        ClusterAssignmentTable clusters;
+        boolean nativeClustering = maraclusterResultsPath == null;
+        if (warmCacheDirectory != null && !warmCacheDirectory.trim().isEmpty()) {
+            WarmCacheStore warmCache = new WarmCacheStore(new File(warmCacheDirectory.trim()), warmCacheBudgetMB * 1024 * 1024);
+            File entry = warmCache.entry(nativeClustering ? WarmCacheStore.key(pridePSMPath) :
+                    WarmCacheStore.key(pridePSMPath, maraclusterResultsPath));
+            // Native clusters depend on the clustering parameters too.
+            String clustersArtifact = nativeClustering ?
+                    CLUSTERS_FILE + "-" + clusterService.getClusteringEngine().describe() : CLUSTERS_FILE;
+            pridePSMJsonReader.parseIndex(new File(entry, SPECTRA_INDEX_FILE));
+            File clustersFile = new File(entry, clustersArtifact + ".bin");
+            if (warmCache.isComplete(entry, clustersArtifact)) {
+                clusters = ClusterAssignmentTable.load(clustersFile);
+                log.info("Clusters reused from the warm cache -- " + entry.getAbsolutePath());
+            } else {
+                clusters = loadClusters(pridePSMJsonReader, maraclusterResultsPath);
+                clusters.save(clustersFile);
+                warmCache.markComplete(entry, clustersArtifact);
+            }
+            warmCache.evict(entry);
+        } else {
+            pridePSMJsonReader.parseIndex();
+            clusters = loadClusters(pridePSMJsonReader, maraclusterResultsPath);
+        }
 
+        ClusterAggregationEngine aggregationEngine = new ClusterAggregationEngine();
         int index = 0;
-        for (Iterator<Cache.Entry<String, Long>> it = pridePSMJsonReader.getKeys(); it.hasNext(); ) {
-            String usi = it.next().getKey();
-            BinaryArchiveSpectrum spectrum = pridePSMJsonReader.readArchiveSpectrum(usi);
-            Double pcmScore = Double.parseDouble(spectrum.getBestSearchEngineScore().getValue());
-            Integer clusterId = clusters.get(index);
-            List<Triple<String, PeptidoformClustered, Double>> membersCluster= new ArrayList<>();
-            if(clusterScores.containsKey(clusterId))
-                membersCluster = clusterScores.get(clusterId);
-            membersCluster.add(new Triple<>(spectrum.getUsi(), new PeptidoformClustered(spectrum.getPeptideSequence(), spectrum.getPeptidoform(), spectrum.getIsDecoy()), pcmScore));
-            clusterScores.put(clusterId, membersCluster);
-            index++;
+        int unclustered = 0;
+        int unscored = 0;
+        List<String> usiBatch = new ArrayList<>();
+        for (Iterator<String> it = pridePSMJsonReader.getKeys(); it.hasNext(); ) {
+            usiBatch.add(it.next());
+            if (usiBatch.size() < READ_BATCH_SIZE && it.hasNext())
+                continue;
+
+            // The batch is in file order, it is read in a few large reads and only the fields used by the
+            // clustering are decoded, in parallel.
+            Map<String, ArchiveSpectrumMetadata> batchSpectra = pridePSMJsonReader.readArchiveSpectraMetadata(usiBatch, CLUSTERING_FIELDS);
+            for (String usi : usiBatch) {
+                ArchiveSpectrumMetadata spectrum = batchSpectra.get(usi);
+                int clusterId = clusters.get(index);
+                if (clusterId == ClusterAssignmentTable.UNASSIGNED) {
+                    unclustered++;
+                } else if (spectrum == null || spectrum.getBestSearchEngineScore() == null) {
+                    // A spectrum without score can't be compared with the other members of its cluster.
+                    unscored++;
+                } else {
+                    double pcmScore = Double.parseDouble(spectrum.getBestSearchEngineScore());
+                    aggregationEngine.add(index, clusterId, spectrum.getPeptidoform(),
+                            Boolean.TRUE.equals(spectrum.getIsDecoy()), pcmScore);
+                }
+                index++;
+            }
+            usiBatch.clear();
+        }
+        if (unclustered > 0)
+            log.warn("Spectra without cluster in the MaraCluster results -- " + unclustered);
+        if (unscored > 0)
+            log.warn("Spectra without best search engine score, not used as cluster representatives -- " + unscored);
+
+        int[] representatives = aggregationEngine.selectRepresentatives();
+        long[] offsets = pridePSMJsonReader.getOffsets();
+
+        AssayProcessingContext context = new AssayProcessingContext(projectAccession, reanalysisAccession);
+        context.setAssayAccession(HashUtils.getRandomToken());
+        try {
+            writeClusterRepresentatives(context, representatives,
+                    ids -> pridePSMJsonReader.readArchiveSpectraAt(Arrays.stream(ids).mapToLong(i -> offsets[i]).toArray()),
+                    folderOutput);
+        } finally {
+            context.close();
         }
 
-        //Using cache to delete objects.
-        Set<Integer> indexTobeRemoved = new HashSet<>();
-        for (Iterator<Cache.Entry<Integer, List<Triple<String, PeptidoformClustered, Double>>>> it = clusterScores.iterator(); it.hasNext(); ) {
-            Cache.Entry<Integer, List<Triple<String, PeptidoformClustered, Double>>> score = it.next();
-
-            List<Triple<String, PeptidoformClustered, Double>> peptides = score.getValue();
-            Set<String> isoPeptideSet = peptides.stream().map(pep -> StringUtils.makePeptideIsobaric(pep.getSecond().getSequence())).collect(Collectors.toSet());
-            if(isoPeptideSet.size() > 1)
-                indexTobeRemoved.add(score.getKey());
-
-            Map<PeptidoformClustered, Long> isoPeptideForms = peptides.stream().collect(Collectors.groupingBy(Triple::getSecond, Collectors.counting()));
-            Map<PeptidoformClustered, Long> validPeptideForms = new HashMap<>();
-            for(Map.Entry entry: isoPeptideForms.entrySet()){
-                double ratio = Math.round((Long)entry.getValue()/peptides.size() *100)/100;
-                if(ratio > 0.5)
-                    validPeptideForms.put((PeptidoformClustered) entry.getKey(), (Long) entry.getValue());
+        if (clusterStateDirectory != null && !clusterStateDirectory.trim().isEmpty()) {
+            try (ClusterState state = ClusterState.create(pridePSMPath, offsets, aggregationEngine)) {
+                state.selectRepresentatives(clusterService.getClusteringEngine(), clusterId -> true);
+                state.save(new File(clusterStateDirectory.trim()));
             }
+        }
+        pridePSMJsonReader.close();
+    }
 
-            if (validPeptideForms.size() == 0)
-                    indexTobeRemoved.add(score.getKey());
-
-            Triple<String, PeptidoformClustered, Double> resultPeptide = null;
-            for(Triple<String, PeptidoformClustered, Double> peptide: peptides){
-                if(resultPeptide == null || (peptide.getSecond().equals(resultPeptide.getSecond()) && peptide.getThird() < resultPeptide.getThird()))
-                    resultPeptide = peptide;
+    /**
+     * Add the spectra of a new archive spectra file to the clusters of a previous inference saved with
+     * --app.cluster-state. Each new spectrum joins the most similar existing cluster or opens a new one, only the
+     * clusters that received spectra are evaluated again and only the representatives of the clusters that share
+     * a protein with them are read and written, as a new assay of the project.
+     * @param clusterStatePath cluster state directory, updated at the end
+     * @param pridePSMPath new archive spectra file
+     * @param projectAccession project accession
+     * @param reanalysisAccession reanalysis accession, can be null
+     * @param folderOutput output folder
+     */
+    public void updateProteinInference(String clusterStatePath, String pridePSMPath, String projectAccession,
+                                       String reanalysisAccession, String folderOutput) throws Exception {
+
+        File stateDirectory = new File(clusterStatePath);
+        SpectrumClusteringEngine clusteringEngine = clusterService.getClusteringEngine();
+        try (ClusterState state = ClusterState.load(stateDirectory)) {
+            int source = state.addSource(pridePSMPath);
+            Set<Integer> affectedClusters = new HashSet<>();
+            int clustersBefore = state.getClusterCount();
+
+            PrideJsonRandomAccess pridePSMJsonReader = new PrideJsonRandomAccess(pridePSMPath);
+            try {
+                pridePSMJsonReader.parseIndex();
+                long[] offsets = pridePSMJsonReader.getOffsets();
+                for (int start = 0; start < offsets.length; start += READ_BATCH_SIZE) {
+                    long[] batch = Arrays.copyOfRange(offsets, start, Math.min(offsets.length, start + READ_BATCH_SIZE));
+                    List<BinaryArchiveSpectrum> spectra = pridePSMJsonReader.readArchiveSpectraAt(batch);
+                    for (int i = 0; i < batch.length; i++) {
+                        BinaryArchiveSpectrum spectrum = spectra.get(i);
+                        if (spectrum == null)
+                            continue;
+                        int charge = SpectrumClusteringEngine.clampCharge(spectrum.getPrecursorCharge());
+                        double mz = spectrum.getPrecursorMz() == null ? Double.NaN : spectrum.getPrecursorMz();
+                        PeakVector vector = clusteringEngine.vectorize(spectrum.getMasses(), spectrum.getIntensities());
+                        int clusterId = state.findCluster(clusteringEngine, charge, mz, vector);
+                        if (clusterId < 0)
+                            clusterId = state.newCluster(charge, mz, vector);
+                        state.addRow(source, start + i, batch[i], clusterId, spectrum.getPeptidoform(),
+                                Boolean.TRUE.equals(spectrum.getIsDecoy()),
+                                Double.parseDouble(spectrum.getBestSearchEngineScore().getValue()));
+                        affectedClusters.add(clusterId);
+                    }
+                }
+            } finally {
+                pridePSMJsonReader.close();
             }
-            if(resultPeptide != null)
-                filterScores.put(score.getKey(), resultPeptide);
+            log.info(String.format("New spectra assigned to %d clusters, %d of them new",
+                    affectedClusters.size(), state.getClusterCount() - clustersBefore));
+
+            // The proteins of the affected clusters before and after the new selection.
+            Set<String> affectedProteins = state.getProteins(affectedClusters);
+            state.selectRepresentatives(clusteringEngine, affectedClusters::contains);
+            affectedProteins.addAll(state.getProteins(affectedClusters));
+            int[] representatives = state.getRepresentativeRows(affectedProteins);
+            log.info(String.format("Proteins affected by the new spectra -- %d, representatives written -- %d",
+                    affectedProteins.size(), representatives.length));
+
+            AssayProcessingContext context = new AssayProcessingContext(projectAccession, reanalysisAccession);
+            context.setAssayAccession(HashUtils.getRandomToken());
+            try {
+                writeClusterRepresentatives(context, representatives, state::readRows, folderOutput);
+            } finally {
+                context.close();
+            }
+            state.save(stateDirectory);
         }
+    }
 
-        String hashAssay = HashUtils.getRandomToken();
-        Map<String, Object> assayObjects = new HashMap<>();
-        createBackupFiles(assayObjects, folderOutput, projectAccession, hashAssay);
+    /**
+     * Read the MaraCluster results or, if no MaraCluster file is given, cluster the spectra in the JVM.
+     */
+    private ClusterAssignmentTable loadClusters(PrideJsonRandomAccess pridePSMJsonReader,
+                                                String maraclusterResultsPath) throws Exception {
+        if (maraclusterResultsPath == null)
+            return clusterService.clusterSpectra(pridePSMJsonReader);
+        return clusterService.readMaraClusterResults(maraclusterResultsPath);
+    }
+
+    /**
+     * Write the representative psm of each cluster and compute the protein evidences from them.
+     * @param representatives ids of the representative spectra, in ascending order
+     * @param spectraReader reader of the representatives by id
+     */
+    private void writeClusterRepresentatives(AssayProcessingContext context, int[] representatives,
+                                             SpectraBatchReader spectraReader, String folderOutput) throws Exception {
+
+        context.createBackupFiles(folderOutput, context.getProjectAccession());
 
-        Cache<String, List<PeptideSpectrumOverview>> proteinToPsms = (Cache<String, List<PeptideSpectrumOverview>>) appCacheManager.getProteinToPsmsCache();
-        Map<String, List<Triple<String, Double,String>>> proteinsPSMsScores = new HashMap<>();
-        Map<String, List<String>> peptideToProteins = new HashMap<>();
-        Map<String, Set<String>> proteinPTMs = new HashMap<>();
-        Map<String, List<Boolean>> proteinDecoys = new HashMap<>();
+        Cache<String, List<PeptideSpectrumOverview>> proteinToPsms = context.getProteinToPsms();
+        ProteinAggregateTable proteinAggregates = new ProteinAggregateTable();
         int psmCount = 1;
 
-        for (Iterator<Cache.Entry<Integer, Triple<String, PeptidoformClustered, Double>>> it = filterScores.iterator(); it.hasNext(); ) {
+        List<BinaryArchiveSpectrum> batch = Collections.emptyList();
+        for (int i = 0; i < representatives.length; i++) {
             boolean flush = (psmCount % 1000) == 0;
-            Triple<String, PeptidoformClustered, Double> psm = it.next().getValue();
+            // Read the representatives in batches in file order instead of one random seek per cluster.
+            if (i % READ_BATCH_SIZE == 0)
+                batch = spectraReader.read(Arrays.copyOfRange(representatives, i, Math.min(representatives.length, i + READ_BATCH_SIZE)));
             try {
                 PrintWriter batchBufferWriter = null;
-                BinaryArchiveSpectrum archivePSM = pridePSMJsonReader.readArchiveSpectrum(psm.getFirst());
+                BinaryArchiveSpectrum archivePSM = batch.get(i % READ_BATCH_SIZE);
                 SummaryArchiveSpectrum psmElastic = SummaryArchiveSpectrum
                             .builder()
                             .usi(archivePSM.getUsi())
@@ -177,25 +315,22 @@ public class InferenceService implements Serializable{
                             .sampleProperties(archivePSM.getSampleProperties())
                             .build();
                     // Total number of spectrum in ArchiveSpectrum
-                    BackupUtil.write(archivePSM, (PrintWriter) assayObjects.get("archiveSpectrumPrintWriter"), flush);
+                    BackupUtil.write(archivePSM, context.getArchiveSpectrumWriter(), flush);
                     // Total number of spectrum in Elastic Search summary.
-                    BackupUtil.write(psmElastic, (PrintWriter) assayObjects.get("psmSummaryEvidencePrintWriter"), flush);
+                    BackupUtil.write(psmElastic, context.getPsmSummaryEvidenceWriter(), flush);
                     // Writing in batches.
 
-                    String usi = psm.getFirst();
+                    String usi = archivePSM.getUsi();
                     String batchFile = usi.split(":")[2];
-                    if(!spectraPartitionWriters.containsKey(batchFile)){
-                        String prefix = (String) assayObjects.get("archiveSpectrumFilePrefix");
-                        batchBufferWriter = new PrintWriter(new FileWriter(BackupUtil.getArchiveSpectrumFileBatch(prefix, batchFile), false));
-                        spectraPartitionWriters.put(batchFile, batchBufferWriter);
-                    }else
-                        batchBufferWriter = spectraPartitionWriters.get(batchFile);
+                    batchBufferWriter = context.getSpectraPartitionWriter(batchFile);
 
                     BackupUtil.write(archivePSM, batchBufferWriter, flush);
                     // construction of USI list.
                     PeptideSpectrumOverview psmOverview = new PeptideSpectrumOverview(archivePSM.getPrecursorCharge(),
                             archivePSM.getPrecursorMz(), usi , archivePSM.getPeptideSequence(), SubmissionPipelineUtils.removeChargeState(archivePSM.getPeptidoform()));
 
+                    double pcmScore = Double.parseDouble(archivePSM.getBestSearchEngineScore().getValue());
+                    List<String> modificationNames = archivePSM.getModifications().stream().map(m -> m.getModification().getName()).collect(Collectors.toList());
                     archivePSM.getProteinAccessions().forEach( x -> {
                         // For some reason for protein accessions for PSMs are not in any of the protein reported proteins.
                         List<PeptideSpectrumOverview> usis = new ArrayList<>();
@@ -205,77 +340,35 @@ public class InferenceService implements Serializable{
                         usis.add(psmOverview);
                         proteinToPsms.put(x, usis);
 
-                        //Get the protein Score
-                        List<uk.ac.ebi.pride.archive.dataprovider.common.Triple<String, Double,String>> pcms = new ArrayList<>();
-                        Double pcmScore = Double.valueOf(archivePSM.getBestSearchEngineScore().getValue());
-
-                        if(proteinsPSMsScores.containsKey(x)){
-                            pcms = proteinsPSMsScores.get(x);
-                        }
-                        pcms.add(new uk.ac.ebi.pride.archive.dataprovider.common.Triple<>(archivePSM.getPeptidoform(), pcmScore, archivePSM.getUsi()));
-                        proteinsPSMsScores.put(x, pcms);
-
-                        // Get protein uniqueness
-                        List<String> proteinIds = new ArrayList<>();
-                        if(peptideToProteins.containsKey(archivePSM.getPeptidoform()))
-                            proteinIds = peptideToProteins.get(archivePSM.getPeptidoform());
-                        proteinIds.add(x);
-                        peptideToProteins.put(archivePSM.getPeptidoform(),proteinIds);
-
-                        // Get protein decoys
-                        List<Boolean> decoys = new ArrayList<>();
-                        if(proteinDecoys.containsKey(x))
-                            decoys = proteinDecoys.get(x);
-                        decoys.add(archivePSM.getIsDecoy());
-                        proteinDecoys.put(x, decoys);
-
-                        Set<String> ptms = new HashSet<>();
-                        if(proteinPTMs.containsKey(x))
-                            ptms = proteinPTMs.get(x);
-                        ptms.addAll(archivePSM.getModifications().stream().map(m -> m.getModification().getName()).collect(Collectors.toList()));
-                        proteinPTMs.put(x, ptms);
+                        // Protein score, uniqueness, decoys and PTMs
+                        proteinAggregates.add(x, archivePSM.getPeptidoform(), pcmScore, archivePSM.getIsDecoy(), modificationNames);
                     });
 //                } else {
 //                    System.out.println("USI with error -- " + psm.getFirst());
 //                }
             } catch (Exception e) {
-                log.debug("Error writing the PSMs in the files -- " + psm.getFirst());
+                log.debug("Error writing the PSMs in the files -- " + representatives[i]);
                 throw new RuntimeException(e);
             }
             psmCount++;
-        };
-
-        assayObjects.put("proteinToPsms", proteinToPsms);
-        Map<String, Double> proteinScores = InferenceService.getBestQValue(proteinsPSMsScores);
-        assayObjects.put("proteinScores", proteinScores);
-        Map<String, String> proteinCategories = InferenceService.getInferenceCategories(peptideToProteins, proteinScores.keySet());
-        assayObjects.put("proteinStatus", proteinCategories);
-        // Get decoys
-        Map<String, Boolean> decoyStatus = proteinDecoys.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().stream().anyMatch(x -> x)));
-        assayObjects.put("proteinDecoys", decoyStatus);
-        assayObjects.put("proteinPTMs", proteinPTMs);
+        }
+
+        Map<String, Double> proteinScores = proteinAggregates.getBestScores();
+        context.setProteinScores(proteinScores);
+        context.setProteinStatus(proteinAggregates.getInferenceCategories(proteinScores.keySet()));
+        context.setProteinDecoys(proteinAggregates.getDecoys());
+        context.setProteinPTMs(proteinAggregates.getModifications());
         Set<CvParam> validationMethods = new HashSet<>();
         validationMethods.add(new CvParam(CvTermReference.MS_DECOY_VALIDATION_METHOD.getCvLabel(),
                 CvTermReference.MS_DECOY_VALIDATION_METHOD.getAccession(), CvTermReference.MS_DECOY_VALIDATION_METHOD.getName(), String.valueOf(true)));
 
-        assayObjects.put("validationMethods", validationMethods);
-        spectraPartitionWriters.values().forEach(x -> {
-            x.flush();
-            x.close();
-        });
+        context.setValidationMethods(validationMethods);
+        context.closeSpectraPartitionWriters();
 
         StreamSupport.stream(
                         Spliterators.spliteratorUnknownSize(proteinToPsms.iterator(), Spliterator.ORDERED), false)
                 .forEach( x-> System.out.println("Proteins -- " + x.getKey() + " number of PSMs -- " + x.getValue().size() ));
-        PrideAnalysisAssayService.proteinIndexStep(hashAssay, assayObjects, projectAccession, reanalysisAccession);
-
-        for(Object object: assayObjects.values()){
-            if (object instanceof PrintWriter){
-                PrintWriter PrintWriter = (PrintWriter) object;
-                PrintWriter.flush();
-                PrintWriter.close();
-            }
-        }
+        PrideAnalysisAssayService.proteinIndexStep(context);
     }
 
     public void setqValueThreshold(Double qValueThreshold) {
@@ -290,30 +383,11 @@ public class InferenceService implements Serializable{
         this.peptideLength = peptideLength;
     }
 
-    private Map<String, Object> createBackupFiles(Map<String, Object> assayObjects, String folderOutput, String projectAccession, String assayAccession) throws IOException {
-
-        // Create first the root folder for the project
-        createBackupDir(folderOutput, projectAccession);
-
-        log.info("Creating assay file  -- " + projectAccession);
-
-        final String proteinEvidenceFileName = BackupUtil.getProteinEvidenceFile(folderOutput, projectAccession, assayAccession);
-        assayObjects.put("proteinEvidenceFileName", proteinEvidenceFileName);
-        assayObjects.put("proteinEvidencePrintWriter", new PrintWriter(new FileWriter(proteinEvidenceFileName, false)));
-
-        final String archiveSpectrumFileName = BackupUtil.getArchiveSpectrumFile(folderOutput, projectAccession, assayAccession);
-        assayObjects.put("archiveSpectrumFileName", archiveSpectrumFileName);
-        assayObjects.put("archiveSpectrumPrintWriter", new PrintWriter(new FileWriter(archiveSpectrumFileName, false)));
-
-        final String archiveSpectrumFilePrefix = BackupUtil.getArchiveSpectrumFilePrefix(folderOutput, projectAccession);
-        assayObjects.put("archiveSpectrumFilePrefix", archiveSpectrumFilePrefix);
-
-        final String psmSummaryEvidenceFileName = BackupUtil.getPsmSummaryEvidenceFile(folderOutput, projectAccession, assayAccession);
-        assayObjects.put("psmSummaryEvidenceFileName", psmSummaryEvidenceFileName);
-        assayObjects.put("psmSummaryEvidencePrintWriter", new PrintWriter(new FileWriter(psmSummaryEvidenceFileName, false)));
-
-        return assayObjects;
-
+    public void setWarmCacheDirectory(String warmCacheDirectory) {
+        this.warmCacheDirectory = warmCacheDirectory;
     }
 
+    public void setClusterStateDirectory(String clusterStateDirectory) {
+        this.clusterStateDirectory = clusterStateDirectory;
+    }
 }
@@ -1,22 +1,43 @@
 package uk.ac.ebi.pride.archive.indexer.services;
 
 import lombok.extern.slf4j.Slf4j;
-import org.ehcache.Cache;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import uk.ac.ebi.pride.archive.dataprovider.data.spectra.BinaryArchiveSpectrum;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.ClusterAssignmentTable;
 import uk.ac.ebi.pride.archive.indexer.services.proteomics.MGFPRIDEWriter;
 import uk.ac.ebi.pride.archive.indexer.services.proteomics.PrideJsonRandomAccess;
-import uk.ac.ebi.pride.archive.indexer.utility.AppCacheManager;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.SpectrumClusteringEngine;
 import uk.ac.ebi.pride.archive.indexer.utility.BackupUtil;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 @Slf4j
 @Service
 public class PSMClusteringService {
 
+    // Number of spectra read, decoded and formatted together by the parallel consumers.
+    private static final int BATCH_SIZE = 2000;
+
+    @Value("${clustering.precursor-tolerance-ppm:#{20.0}}")
+    private double precursorTolerancePpm;
+
+    @Value("${clustering.similarity-threshold:#{0.7}}")
+    private double similarityThreshold;
+
+    @Value("${clustering.bin-width:#{1.0005079}}")
+    private double binWidth;
+
+    @Value("${clustering.top-peaks:#{50}}")
+    private int topPeaks;
+
+    @Value("${clustering.max-bucket-size:#{20000}}")
+    private int maxBucketSize;
+
     public PSMClusteringService() {
     }
 
@@ -27,12 +48,25 @@ public class PSMClusteringService {
             OutputStream outputStream       = Files.newOutputStream((new File(mgfOutputFile)).toPath());
             OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream);
 
-            for (Iterator<Cache.Entry<String, Long>> it = pridePSMJsonReader.getKeys(); it.hasNext(); ) {
-                String usi = it.next().getKey();
-                BinaryArchiveSpectrum spec = pridePSMJsonReader.readArchiveSpectrum(usi);
-                if (spec != null && isValidSpectrum(spec)){
-                    MGFPRIDEWriter.appendSpectrum(outputStreamWriter, spec);
-                }
+            List<String> batch = new ArrayList<>();
+            for (Iterator<String> it = pridePSMJsonReader.getKeys(); it.hasNext(); ) {
+                batch.add(it.next());
+                if (batch.size() < BATCH_SIZE && it.hasNext())
+                    continue;
+
+                // Spectra are decoded and formatted in parallel and written in the order of the json file.
+                String[] mgfSpectra = pridePSMJsonReader.readArchiveSpectra(batch).values()
+                        .parallelStream()
+                        .filter(this::isValidSpectrum)
+                        .map(spec -> {
+                            StringBuilder mgfSpectrum = new StringBuilder();
+                            MGFPRIDEWriter.appendSpectrum(mgfSpectrum, spec);
+                            return mgfSpectrum.toString();
+                        })
+                        .toArray(String[]::new);
+                for (String mgfSpectrum : mgfSpectra)
+                    outputStreamWriter.write(mgfSpectrum);
+                batch.clear();
             }
             outputStreamWriter.flush();
             outputStreamWriter.close();
@@ -54,37 +88,39 @@ public class PSMClusteringService {
      * MaraCluster output is a file with 3 columns, with the following structure:
      * spectra file , index of the spectra in the file (0-based), cluster index
      *
-     * This method transform the file into a Map where the key is the index of the spectra in the pridejson (0-based)
-     * and the cluster where it belongs.
+     * This method transform the file into a table where the position is the index of the spectra in the pridejson
+     * (0-based) and the value the cluster where it belongs, see {@link ClusterAssignmentTable#readMaraClusterResults(File)}.
      *
      * @param maraClusterFile MaraCluster file output
-     * @return Map with the index of the spectrum and the cluster index.
+     * @return Table with the cluster index of each spectrum.
      * @throws Exception
      */
-    public Cache<Integer, Integer> readMaraClusterResults(String maraClusterFile) throws Exception {
-
-        AppCacheManager cacheManager = AppCacheManager.getInstance();
-
-        InputStream in = Files.newInputStream(new File(maraClusterFile).toPath());
-        BufferedReader br = new BufferedReader(new InputStreamReader(in));
-
-        // Clusters result will be an index of the spectrum in the pride file and the cluster where it belongs to.
-        Cache<Integer, Integer> clusters = cacheManager.getClustersCache();
-        String line;
-        while ((line = br.readLine()) != null) {
-            if(!line.trim().isEmpty()){
-                String[] values = line.split("\t");
-                if(values.length == 3 && !values[0].trim().isEmpty() &&
-                        !values[1].trim().isEmpty() &&
-                        !values[2].trim().isEmpty()){
-
-                    if(!clusters.containsKey(Integer.parseInt(values[1].trim())))
-                        clusters.put(Integer.parseInt(values[1].trim()), Integer.parseInt(values[2].trim()));
-                    else
-                        throw new Exception("The following spectra -- " + values[1].trim() + " belongs to more than one cluster");
-                }
-            }
-        }
+    public ClusterAssignmentTable readMaraClusterResults(String maraClusterFile) throws Exception {
+        ClusterAssignmentTable clusters = ClusterAssignmentTable.readMaraClusterResults(new File(maraClusterFile));
+        log.info(String.format("MaraCluster results read -- %d spectra, %d with cluster", clusters.size(), clusters.getAssignedCount()));
+        return clusters;
+    }
+
+    /**
+     * Engine of the native clustering with the configured parameters.
+     * @return SpectrumClusteringEngine
+     */
+    public SpectrumClusteringEngine getClusteringEngine() {
+        return new SpectrumClusteringEngine(precursorTolerancePpm, similarityThreshold, binWidth, topPeaks, maxBucketSize);
+    }
+
+    /**
+     * Cluster the spectra of the archive spectra file in the JVM, see {@link SpectrumClusteringEngine}. The result
+     * has the same structure as {@link #readMaraClusterResults(String)}, so it replaces the MGF export
+     * and the MaraCluster run.
+     *
+     * @param pridePSMJsonReader archive spectra file with its index already built
+     * @return Table with the cluster index of each spectrum.
+     * @throws IOException
+     */
+    public ClusterAssignmentTable clusterSpectra(PrideJsonRandomAccess pridePSMJsonReader) throws IOException {
+        ClusterAssignmentTable clusters = new ClusterAssignmentTable((int) pridePSMJsonReader.size());
+        getClusteringEngine().cluster(pridePSMJsonReader, clusters);
         return clusters;
     }
 
@@ -94,19 +130,26 @@ public class PSMClusteringService {
             pridePSMJsonReader.parseIndex();
 
             PrintWriter bw = new PrintWriter(new FileWriter(validatedArchiveFile, false));
-            int lineInt = 0;
-            for (Iterator<Cache.Entry<String, Long>> it = pridePSMJsonReader.getKeys(); it.hasNext(); ) {
-                String usi = it.next().getKey();
-                BinaryArchiveSpectrum spec = pridePSMJsonReader.readArchiveSpectrum(usi);
-                if (spec != null && isValidSpectrum(spec)){
-                    boolean flush = (lineInt % 1000) == 0;
-                    BackupUtil.write(spec, bw, flush);
-                }
+            List<String> batch = new ArrayList<>();
+            for (Iterator<String> it = pridePSMJsonReader.getKeys(); it.hasNext(); ) {
+                batch.add(it.next());
+                if (batch.size() < BATCH_SIZE && it.hasNext())
+                    continue;
+
+                // Spectra are decoded, validated and serialized in parallel and written in the order of the json file.
+                String[] validSpectra = pridePSMJsonReader.readArchiveSpectra(batch).values()
+                        .parallelStream()
+                        .filter(this::isValidSpectrum)
+                        .map(BackupUtil::writeAsString)
+                        .toArray(String[]::new);
+                for (String spectrum : validSpectra)
+                    bw.println(spectrum);
                 bw.flush();
-                lineInt++;
+                batch.clear();
             }
             bw.flush();
             bw.close();
+            pridePSMJsonReader.close();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
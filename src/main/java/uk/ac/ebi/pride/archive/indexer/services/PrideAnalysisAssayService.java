@@ -36,11 +36,19 @@ import uk.ac.ebi.pride.archive.dataprovider.param.CvParamProvider;
 import uk.ac.ebi.pride.archive.dataprovider.data.protein.ArchiveProteinEvidence;
 import uk.ac.ebi.pride.archive.dataprovider.data.spectra.SummaryArchiveSpectrum;
 import uk.ac.ebi.pride.archive.dataprovider.param.Param;
-import uk.ac.ebi.pride.archive.indexer.utility.AppCacheManager;
 import uk.ac.ebi.pride.archive.indexer.utility.HashUtils;
 import uk.ac.ebi.pride.archive.indexer.utility.SubmissionPipelineUtils;
 import uk.ac.ebi.pride.archive.indexer.services.proteomics.JmzReaderSpectrumService;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.MappedMgfReader;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.MzIdentMLPsmReader;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.MzTabPsmReader;
 import uk.ac.ebi.pride.archive.indexer.services.proteomics.PIAModelerService;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.ProteinAggregateTable;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.PsmRecordStore;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.ResultFileIdentifications;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.ResultFilePreflight;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.ResultFilePsm;
+import uk.ac.ebi.pride.archive.indexer.services.proteomics.SpectraDataScanner;
 import uk.ac.ebi.pride.archive.indexer.services.ws.PrideArchiveWebService;
 import uk.ac.ebi.pride.archive.indexer.services.ws.PrideFile;
 import uk.ac.ebi.pride.archive.indexer.services.ws.PrideProject;
@@ -94,21 +102,25 @@ public class PrideAnalysisAssayService {
     @Value("${batch:#{20000}}")
     private int numInbatch;
 
+    @Value("${result-files.streaming-mzid-min-mb:#{4096}}")
+    private long streamingMzIdMinMb;
+
+    @Value("${preflight.enabled:#{true}}")
+    private boolean preflightEnabled;
+
+    @Value("${preflight.abort-on-reject:#{false}}")
+    private boolean preflightAbortOnReject;
+
     static final DecimalFormat df = new DecimalFormat("###.#####");
 
     static final OboMapper efoOboMapper = OboMapper.getEFOOboMapper(false);
 
-    static final Map<String, PrintWriter> spectraPartitionWriters = new HashMap<>();
-
     @Bean
     PIAModelerService getPIAModellerService() {
         piaModellerService = new PIAModelerService();
         return piaModellerService;
     }
 
-    final Map<String, Set<Param>> sampleProperties = new HashMap<>();
-    final Map<String, Set<Param>> globalSampleProperties = new HashMap<>();
-
     /**
      * Write the Related files to one Result file
      * @param projectAccession Project Accession
@@ -138,13 +150,13 @@ public class PrideAnalysisAssayService {
             boolean isCompressFile = SubmissionPipelineUtils.isCompressedByExtension(resultFile);
             if(fileType != null && !isCompressFile){
                 try {
-                    PIAModeller modeller = piaModellerService.performProteinInference(resultFile,resultFile,
-                            fileType, 1.0, 1.0);
-                    Map<String, SpectraData> spectraDataList = modeller.getSpectraData();
+                    // Only the spectra file references are needed, they are read from the header of the result file
+                    // instead of loading the identifications.
                     if(fileType == SubmissionPipelineUtils.FileType.PRIDE)
                         filesRelated.add(new Triple<>(new Tuple<>(resultFile, null), null, null));
                     else{
-                        filesRelated.addAll(getFilesRelatedToResultFile(resultFile, spectraDataList, finalProjectFiles));
+                        List<String> spectraLocations = SpectraDataScanner.readSpectraLocations(resultFile, fileType);
+                        filesRelated.addAll(getFilesRelatedToResultFile(resultFile, spectraLocations, finalProjectFiles));
                     }
                 } catch (IOException e) {
                     log.info(String.format("Error reading the file %s with error %s",resultFile,e.getMessage()));
@@ -204,41 +216,6 @@ public class PrideAnalysisAssayService {
         }
     }
 
-    /**
-     * Create Backup folders for a specific resultFile and assay.
-     * @param assayObjects AssayObjects to store the protein/peptide/psms information
-     * @param folderOutput Root folder containing all the backup files
-     * @param projectAccession Project assay
-     * @return Object Map updated with the {@link PrintWriter}s for each object
-     * @throws IOException
-     */
-    private Map<String, Object> createBackupFiles(Map<String, Object> assayObjects, String folderOutput, String projectAccession, String assayAccession) throws IOException {
-
-        // Create first the root folder for the project
-        createBackupDir(folderOutput, projectAccession);
-
-        log.info("Creating assay file  -- " + projectAccession);
-
-
-        final String proteinEvidenceFileName = BackupUtil.getProteinEvidenceFile(folderOutput, projectAccession, assayAccession);
-        assayObjects.put("proteinEvidenceFileName", proteinEvidenceFileName);
-        assayObjects.put("proteinEvidencePrintWriter", new PrintWriter(new FileWriter(proteinEvidenceFileName, false)));
-
-        final String archiveSpectrumFileName = BackupUtil.getArchiveSpectrumFile(folderOutput, projectAccession, assayAccession);
-        assayObjects.put("archiveSpectrumFileName", archiveSpectrumFileName);
-        assayObjects.put("archiveSpectrumPrintWriter", new PrintWriter(new FileWriter(archiveSpectrumFileName, false)));
-
-        final String archiveSpectrumFilePrefix = BackupUtil.getArchiveSpectrumFilePrefix(folderOutput, projectAccession);
-        assayObjects.put("archiveSpectrumFilePrefix", archiveSpectrumFilePrefix);
-
-        final String psmSummaryEvidenceFileName = BackupUtil.getPsmSummaryEvidenceFile(folderOutput, projectAccession, assayAccession);
-        assayObjects.put("psmSummaryEvidenceFileName", psmSummaryEvidenceFileName);
-        assayObjects.put("psmSummaryEvidencePrintWriter", new PrintWriter(new FileWriter(psmSummaryEvidenceFileName, false)));
-
-        return assayObjects;
-
-    }
-
     public void writeAnalysisOutputFromResultFiles(String projectAccession, List<String> resultFiles, HashSet<String> spectraFiles,
                                                    Set<String> sampleFiles, String folderOutput,
                                                    String reanalysisAccession) throws IOException {
@@ -248,70 +225,146 @@ public class PrideAnalysisAssayService {
         if(!projectOption.isPresent())
             throw new IOException("Project not present in the PRIDE WS for accession: " + projectAccession);
 
-        initGlobalSampleMetadata(projectOption.get(), spectraFiles, sampleFiles,
+        AssayProcessingContext context = new AssayProcessingContext(projectAccession, reanalysisAccession);
+        initGlobalSampleMetadata(context, projectOption.get(), spectraFiles, sampleFiles,
                 resultFiles.stream()
                         .filter( x-> SubmissionPipelineUtils.FileType.getFileTypeFromFileName(x) == SubmissionPipelineUtils.FileType.PRIDE)
                         .collect(Collectors.toSet()));
 
-        Map<String, Object> assayObjectMap = null;
+        String folderAccession = reanalysisAccession != null?reanalysisAccession:projectAccession;
         resultFiles = resultFiles.stream().map(x -> Arrays.asList(x.split(","))).flatMap(List::stream).collect(Collectors.toList());
-        if (resultFiles.size() == 1){
-            String resultFile = resultFiles.get(0);
-            SubmissionPipelineUtils.FileType fileType = SubmissionPipelineUtils.FileType.getFileTypeFromFileName(resultFile);
-            boolean isCompressFile = SubmissionPipelineUtils.isCompressedByExtension(resultFile);
-            if((fileType == SubmissionPipelineUtils.FileType.MZTAB || fileType == SubmissionPipelineUtils.FileType.MZID
-            ) && !isCompressFile){
-                try {
-                    String fileAccession = HashUtils.calculateSha1Checksum(resultFile);
-                    String folderAccession = reanalysisAccession != null?reanalysisAccession:projectAccession;
-                    assayObjectMap = analyzeAssayInformationStep(assayObjectMap, resultFile, fileAccession, fileType);
-                    createBackupFiles(assayObjectMap, folderOutput, folderAccession, fileAccession);
-                    indexSpectraStep(projectAccession, fileAccession, assayObjectMap, spectraFiles, reanalysisAccession);
-                    proteinIndexStep(fileAccession, assayObjectMap, projectAccession, reanalysisAccession);
-                    closeBackupFiles(assayObjectMap);
-
-                } catch (Exception e) {
-                    log.error("Assay -- " + resultFile + " can't be process because of the following error -- " + e.getMessage());
-                    deleteFailingOutputFiles(assayObjectMap);
+        try {
+            if (preflightEnabled && !preflightResultFiles(resultFiles, spectraFiles, folderOutput, folderAccession))
+                return;
+            if (resultFiles.size() == 1){
+                String resultFile = resultFiles.get(0);
+                SubmissionPipelineUtils.FileType fileType = SubmissionPipelineUtils.FileType.getFileTypeFromFileName(resultFile);
+                boolean isCompressFile = SubmissionPipelineUtils.isCompressedByExtension(resultFile);
+                if((fileType == SubmissionPipelineUtils.FileType.MZTAB || fileType == SubmissionPipelineUtils.FileType.MZID
+                ) && !isCompressFile){
+                    try {
+                        context.setAssayAccession(HashUtils.calculateSha1Checksum(resultFile));
+                        // mzTab files and large mzIdentML files with PSM scores and decoys are processed without PIA
+                        ResultFileIdentifications identifications = null;
+                        if (fileType == SubmissionPipelineUtils.FileType.MZTAB)
+                            identifications = MzTabPsmReader.read(resultFile);
+                        else if (isStreamingMzIdentML(resultFile))
+                            identifications = MzIdentMLPsmReader.read(resultFile);
+                        context.setResultFileIdentifications(identifications);
+                        if (identifications != null && identifications.isScored()) {
+                            log.info("The result file has PSM scores and decoys, PIA is not used -- " + resultFile);
+                            analyzeResultFileAssayStep(context, identifications);
+                            context.createBackupFiles(folderOutput, folderAccession);
+                            indexResultFileSpectraStep(context, identifications, spectraFiles);
+                        } else {
+                            if (identifications != null) {
+                                log.info("The result file has no usable PSM scores or decoys, it is processed with PIA -- " + resultFile);
+                                identifications.close();
+                                context.setResultFileIdentifications(null);
+                            }
+                            analyzeAssayInformationStep(context, resultFile, fileType);
+                            context.createBackupFiles(folderOutput, folderAccession);
+                            indexSpectraStep(context, spectraFiles);
+                        }
+                        proteinIndexStep(context);
+                    } catch (Exception e) {
+                        log.error("Assay -- " + resultFile + " can't be process because of the following error -- " + e.getMessage());
+                        context.close();
+                        context.deleteOutputFiles();
+                    }
                 }
-            }
-        }else{
-            assayObjectMap = piaModellerService.performProteinInference(assayObjectMap, resultFiles, SubmissionPipelineUtils.FileType.MZID,
-                    qValueThreshold, qFilterProteinFDR);
-
-            String fileAccession = null;
-            try {
-                fileAccession = HashUtils.sha1InObject(assayObjectMap.get("modeller"));
-                String folderAccession = reanalysisAccession != null?reanalysisAccession:projectAccession;
-                assayObjectMap = analyzeAssayInformationStep(assayObjectMap, null, fileAccession, null);
-                createBackupFiles(assayObjectMap, folderOutput, folderAccession, fileAccession);
-                indexSpectraStep(projectAccession, fileAccession, assayObjectMap, spectraFiles, reanalysisAccession);
-                proteinIndexStep(fileAccession, assayObjectMap, projectAccession, reanalysisAccession);
-                closeBackupFiles(assayObjectMap);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        }
-        if(assayObjectMap != null){
-            for(Object object: assayObjectMap.values()){
-                if (object instanceof PrintWriter){
-                    PrintWriter PrintWriter = (PrintWriter) object;
-                    PrintWriter.flush();
-                    PrintWriter.close();
+            }else{
+                // Large result files with PSM scores and decoys are read concurrently and merged without PIA, as a
+                // single file would be, the other assays are compiled by PIA one file after the other
+                ResultFileIdentifications identifications = readResultFiles(resultFiles);
+                context.setResultFileIdentifications(identifications);
+                if (identifications != null && identifications.isScored()) {
+                    log.info("The result files have PSM scores and decoys, PIA is not used -- " + resultFiles);
+                    try {
+                        List<String> checksums = new ArrayList<>();
+                        for (String resultFile : resultFiles)
+                            checksums.add(HashUtils.calculateSha1Checksum(resultFile));
+                        context.setAssayAccession(HashUtils.sha1InObject(checksums));
+                        analyzeResultFileAssayStep(context, identifications);
+                        context.createBackupFiles(folderOutput, folderAccession);
+                        indexResultFileSpectraStep(context, identifications, spectraFiles);
+                        proteinIndexStep(context);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                } else {
+                    if (identifications != null) {
+                        log.info("The result files have no common PSM score or no decoys, they are processed with PIA -- " + resultFiles);
+                        identifications.close();
+                        context.setResultFileIdentifications(null);
+                    }
+                    context.setModeller(piaModellerService.performProteinInference(resultFiles, SubmissionPipelineUtils.FileType.MZID,
+                            qValueThreshold, qFilterProteinFDR));
+                    try {
+                        context.setAssayAccession(HashUtils.sha1InObject(context.getModeller()));
+                        analyzeAssayInformationStep(context, null, null);
+                        context.createBackupFiles(folderOutput, folderAccession);
+                        indexSpectraStep(context, spectraFiles);
+                        proteinIndexStep(context);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
                 }
             }
+        } finally {
+            context.close();
         }
     }
 
 
+    /**
+     * Pre-flight scan of the result files of an assay, see {@link ResultFilePreflight}. When the assay can't pass the
+     * decoy, minPSMs or spectra files checks, the report is written as reason file in the output folder and the assay
+     * is skipped, or the run aborted with preflight.abort-on-reject. Compressed files and files that are not mzIdentML
+     * or mzTab are not scanned.
+     * @param resultFiles result files of the assay
+     * @param spectraFiles spectra files provided by the user
+     * @param folderOutput Root folder containing all the backup files
+     * @param folderAccession Project or reanalysis accession used as sub-folder
+     * @return true if the assay can be processed
+     * @throws IOException
+     */
+    private boolean preflightResultFiles(List<String> resultFiles, Set<String> spectraFiles, String folderOutput,
+                                         String folderAccession) throws IOException {
+        boolean scannable = resultFiles.stream().allMatch(x -> {
+            SubmissionPipelineUtils.FileType fileType = SubmissionPipelineUtils.FileType.getFileTypeFromFileName(x);
+            return (fileType == SubmissionPipelineUtils.FileType.MZID || fileType == SubmissionPipelineUtils.FileType.MZTAB)
+                    && !SubmissionPipelineUtils.isCompressedByExtension(x);
+        });
+        if (!scannable)
+            return true;
+
+        ResultFilePreflight preflight = ResultFilePreflight.scan(resultFiles, spectraFiles, minPSMs);
+        if (preflight.isAccepted())
+            return true;
+
+        createBackupDir(folderOutput, folderAccession);
+        String reportFile = BackupUtil.getPreflightReportFile(folderOutput, folderAccession, FilenameUtils.getBaseName(resultFiles.get(0)));
+        try (PrintWriter writer = new PrintWriter(new FileWriter(reportFile, false))) {
+            writer.println(BackupUtil.writeAsString(preflight));
+        }
+        String message = "Assay -- " + resultFiles + " rejected by the pre-flight scan -- " + preflight.getReasons() + ", report -- " + reportFile;
+        if (preflightAbortOnReject)
+            throw new IllegalStateException(message);
+        log.error(message);
+        return false;
+    }
+
     /**
      * Parse sample properties parse from SDRF files or from the project properties. The sample metadata will be used from
      * the sample files if provided.
+     * @param context {@link AssayProcessingContext} that receives the sample metadata
      * @param prideProject Pride Project
      * @param spectraFiles SpectraFiles
      * @param sampleProperties Sample files.
      */
-    private void initGlobalSampleMetadata(PrideProject prideProject, Set<String> spectraFiles, Set<String> sampleProperties, Set<String> resultFiles) {
+    private void initGlobalSampleMetadata(AssayProcessingContext context, PrideProject prideProject, Set<String> spectraFiles,
+                                          Set<String> sampleProperties, Set<String> resultFiles) {
 
         if(sampleProperties != null){
             sampleProperties.forEach( sampleFile -> {
@@ -347,8 +400,8 @@ public class PrideAnalysisAssayService {
                             Param param = new Param(accession, key, value);
                             fileSamples.add(param);
                         });
-                        if(!this.sampleProperties.containsKey(sampleFileName))
-                            this.sampleProperties.put(sampleFileName, fileSamples);
+                        if(!context.getSampleProperties().containsKey(sampleFileName))
+                            context.getSampleProperties().put(sampleFileName, fileSamples);
                     });
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -381,22 +434,9 @@ public class PrideAnalysisAssayService {
                     .map(y -> new Param("disease", y.getName()))
                     .collect(Collectors.toSet()));
 
-            globalSampleProperties.put(fileName, properties);
+            context.getGlobalSampleProperties().put(fileName, properties);
         });
-        log.info(globalSampleProperties.toString());
-    }
-
-    /**
-     * Close buffer writers which contains all the peptides/proteins and psms
-     * @param assayObjects Map of array objects
-     * @throws IOException
-     */
-    private void closeBackupFiles(Map<String, Object> assayObjects) throws IOException {
-        for(String bufferName: Arrays.asList("proteinEvidencePrintWriter", "archiveSpectrumPrintWriter","psmSummaryEvidencePrintWriter")){
-            PrintWriter PrintWriter = (PrintWriter) assayObjects.get(bufferName);
-            PrintWriter.flush();
-            PrintWriter.close();
-        }
+        log.info(context.getGlobalSampleProperties().toString());
     }
 
     /**
@@ -414,44 +454,23 @@ public class PrideAnalysisAssayService {
 
     /**
      * Analyze result file to get the list of peptides, psms and proteins identified.
+     * @param context {@link AssayProcessingContext} of the assay, it receives the psms and proteins lists
      * @param resultFile Result file, supported formats [PRIDE, MZTAB, MZIDENTML]
-     * @param fileAccession {@link PrideFile} hash file accession for the result file
      * @param fileType {@link uk.ac.ebi.pride.archive.indexer.utility.SubmissionPipelineUtils.FileType}
-     * @return Object Map with all psms, peptides and proteins lists
      * @throws IOException
      */
-    public Map<String, Object> analyzeAssayInformationStep(Map<String, Object> objectMap, String resultFile, String fileAccession,
-                                                           SubmissionPipelineUtils.FileType fileType) throws IOException {
+    public void analyzeAssayInformationStep(AssayProcessingContext context, String resultFile,
+                                            SubmissionPipelineUtils.FileType fileType) throws IOException {
 
         long initAnalysisAssay = System.currentTimeMillis();
 
         log.info("Analyzing assay file  -- " + resultFile);
 
-        Map<String, Object> assayObjectMap = new HashMap<>();
-        PIAModeller modeller;
-        if(objectMap != null && objectMap.containsKey("modeller"))
-            modeller = (PIAModeller) objectMap.get("modeller");
-        else
-            modeller = piaModellerService.performProteinInference(fileAccession,resultFile,
+        PIAModeller modeller = context.getModeller();
+        if(modeller == null)
+            modeller = piaModellerService.performProteinInference(context.getAssayAccession(),resultFile,
                     fileType, qValueThreshold, qFilterProteinFDR);
 
-        // The first threshold for modeller is not threshold at PSM and Protein level.
-
-        long nrDecoys = modeller.getPSMModeller().getAllFilteredReportPSMs(new ArrayList<>()).stream()
-                .filter(ReportPSM::getIsDecoy)
-                .count();
-        long nrTargets = modeller.getPSMModeller().getAllFilteredReportPSMs(new ArrayList<>()).stream()
-                .filter(x -> !x.getIsDecoy())
-                .count();
-
-        assayObjectMap.put("isValid", nrDecoys > 0);
-
-        Set<CvParam> validationMethods = new HashSet<>();
-        validationMethods.add(new CvParam(CvTermReference.MS_DECOY_VALIDATION_METHOD.getCvLabel(),
-                CvTermReference.MS_DECOY_VALIDATION_METHOD.getAccession(), CvTermReference.MS_DECOY_VALIDATION_METHOD.getName(), String.valueOf(nrDecoys > 0)));
-
-        assayObjectMap.put("validationMethods", validationMethods);
-
         List<AbstractFilter> filters = new ArrayList<>();
         // Remove PSMs with no spectrum reference
         filters.add(RegisteredFilters.PSM_SOURCE_ID_FILTER
@@ -468,36 +487,167 @@ public class PrideAnalysisAssayService {
                 qValueThreshold, ScoreModelEnum.PSM_LEVEL_Q_VALUE.getShortName()));
 
         filters.add(RegisteredFilters.NR_UNIQUE_PEPTIDES_PER_PROTEIN_FILTER.newInstanceOf(FilterComparator.greater_equal, uniquePeptides, false));
-        // get the FDR filtered highQualityPeptides
+        // The first threshold for modeller is not threshold at PSM and Protein level.
+        List<ReportPSM> allPsms = modeller.getPSMModeller().getAllFilteredReportPSMs(new ArrayList<>());
+        long nrDecoys = allPsms.stream()
+                .filter(ReportPSM::getIsDecoy)
+                .count();
+
+        context.setValid(nrDecoys > 0);
+
+        Set<CvParam> validationMethods = new HashSet<>();
+        validationMethods.add(new CvParam(CvTermReference.MS_DECOY_VALIDATION_METHOD.getCvLabel(),
+                CvTermReference.MS_DECOY_VALIDATION_METHOD.getAccession(), CvTermReference.MS_DECOY_VALIDATION_METHOD.getName(), String.valueOf(nrDecoys > 0)));
+
+        context.setValidationMethods(validationMethods);
+
+        // get the FDR filtered highQualityPeptides, PIA applies all the filters in one pass over the report
         List<ReportPSM> psms = modeller.getPSMModeller().getAllFilteredReportPSMs(filters);
 
         List<ReportProtein> proteins = modeller.getProteinModeller()
                 .getFilteredReportProteins(filters);
 
+        // Rejections of the combined filters, the filters are not evaluated one by one because the protein and unique
+        // peptide filters depend on the PSMs accepted by the others.
+        long acceptedDecoys = psms.stream().filter(ReportPSM::getIsDecoy).count();
+        log.info(String.format("PSMs accepted -- %d of %d, rejected by the filters -- %d (targets %d, decoys %d), proteins accepted -- %d",
+                psms.size(), allPsms.size(), allPsms.size() - psms.size(),
+                (allPsms.size() - nrDecoys) - (psms.size() - acceptedDecoys), nrDecoys - acceptedDecoys, proteins.size()));
+
         // The Assay to be considered should have decoy psms a minimun number of PSMS of 1000 (default value)
         if (!(nrDecoys > 0 && proteins.size() > 0 && psms.size() > minPSMs)) {
             throw new NumberFormatException("FDR calculation not possible, no decoys present or number of PSms not bigger than -- !!! " + minPSMs);
         }
 
-        assayObjectMap.put("modeller", modeller);
-        assayObjectMap.put("psms", psms);
-        assayObjectMap.put("proteins", proteins);
+        context.setModeller(modeller);
+        context.setPsms(psms);
+        context.setProteins(proteins);
         log.info(String.valueOf(System.currentTimeMillis() - initAnalysisAssay));
-        return assayObjectMap;
     }
 
-    public void indexSpectraStep(String projectAccession, String fileAccession,
-                                 Map<String, Object> assayObjects,
-                                 Set<String> spectraFiles, String reanalysisAccession) throws Exception {
+    /**
+     * Analyze a result file with PSM scores and decoys without PIA, see {@link ResultFileIdentifications}. The PSM
+     * q-values are computed with a target-decoy pass and the PSMs and proteins are filtered as in
+     * {@link #analyzeAssayInformationStep}, the accepted PSMs are kept as indexes of the PSM store.
+     * @param context {@link AssayProcessingContext} of the assay, it receives the accepted psms and proteins
+     * @param identifications PSMs and metadata of the result file
+     * @throws IOException
+     */
+    public void analyzeResultFileAssayStep(AssayProcessingContext context, ResultFileIdentifications identifications) throws IOException {
+
+        long initAnalysisAssay = System.currentTimeMillis();
+
+        identifications.computeQValues();
+        long nrDecoys = identifications.getDecoyCount();
+
+        context.setValid(nrDecoys > 0);
+
+        Set<CvParam> validationMethods = new HashSet<>();
+        validationMethods.add(new CvParam(CvTermReference.MS_DECOY_VALIDATION_METHOD.getCvLabel(),
+                CvTermReference.MS_DECOY_VALIDATION_METHOD.getAccession(), CvTermReference.MS_DECOY_VALIDATION_METHOD.getName(), String.valueOf(nrDecoys > 0)));
+
+        context.setValidationMethods(validationMethods);
+
+        // Same filters than the PIA path: spectrum reference, peptide length, no UNIMOD:21 in A and PSM q-value
+        BitSet accepted = new BitSet(identifications.getPsmCount());
+        try (PsmRecordStore.Reader reader = identifications.reader()) {
+            ResultFilePsm psm;
+            while ((psm = reader.next()) != null) {
+                if (psm.getSpectrumReference() != null && !"index=null".equals(psm.getSpectrumReference())
+                        && psm.getSequence() != null && psm.getSequence().length() >= peptideLength
+                        && !psm.hasResidueModification('A', "UNIMOD:21")
+                        && identifications.getQValue(psm.getIndex()) <= qValueThreshold)
+                    accepted.set(psm.getIndex());
+            }
+        }
+
+        Set<String> proteins = identifications.getReportedProteins(accepted, 0.01, uniquePeptides);
+
+        // The Assay to be considered should have decoy psms a minimun number of PSMS of 1000 (default value)
+        if (!(nrDecoys > 0 && proteins.size() > 0 && accepted.cardinality() > minPSMs)) {
+            throw new NumberFormatException("FDR calculation not possible, no decoys present or number of PSms not bigger than -- !!! " + minPSMs);
+        }
+
+        context.setAcceptedPsms(accepted);
+        context.setReportedProteins(proteins);
+        log.info(String.format("Result file PSMs accepted -- %d of %d, proteins -- %d", accepted.cardinality(),
+                identifications.getPsmCount(), proteins.size()));
+        log.info(String.valueOf(System.currentTimeMillis() - initAnalysisAssay));
+    }
+
+    /**
+     * Read the result files of a multi-file assay without PIA, see {@link ResultFileIdentifications#merge(List)}. The
+     * files are parsed in parallel, each one into its own PSM store, and merged in the order of the list. The same
+     * rule than for a single file applies: mzTab files are read, mzIdentML files only when together they reach
+     * result-files.streaming-mzid-min-mb, see {@link #isStreamingMzIdentML(String)}. PIA can't merge partial
+     * compilations, the other assays are compiled by PIA file by file.
+     * @param resultFiles mzTab or mzIdentML files of the assay
+     * @return merged identifications, null if the assay has to be processed with PIA
+     */
+    private ResultFileIdentifications readResultFiles(List<String> resultFiles) {
+        long mzIdBytes = 0;
+        for (String resultFile : resultFiles) {
+            SubmissionPipelineUtils.FileType fileType = SubmissionPipelineUtils.FileType.getFileTypeFromFileName(resultFile);
+            if (SubmissionPipelineUtils.isCompressedByExtension(resultFile)
+                    || (fileType != SubmissionPipelineUtils.FileType.MZTAB && fileType != SubmissionPipelineUtils.FileType.MZID))
+                return null;
+            if (fileType == SubmissionPipelineUtils.FileType.MZID)
+                mzIdBytes += new File(resultFile).length();
+        }
+        if (mzIdBytes > 0 && (streamingMzIdMinMb <= 0 || mzIdBytes < streamingMzIdMinMb * 1024 * 1024))
+            return null;
+
+        long start = System.currentTimeMillis();
+        List<ResultFileIdentifications> parts = resultFiles.parallelStream().map(resultFile -> {
+            try {
+                if (SubmissionPipelineUtils.FileType.getFileTypeFromFileName(resultFile) == SubmissionPipelineUtils.FileType.MZTAB)
+                    return MzTabPsmReader.read(resultFile);
+                return MzIdentMLPsmReader.read(resultFile);
+            } catch (IOException | RuntimeException e) {
+                log.warn("The result file can't be read without PIA -- " + resultFile + " -- " + e.getMessage());
+                return null;
+            }
+        }).collect(Collectors.toList());
+
+        try {
+            if (parts.contains(null))
+                return null;
+            ResultFileIdentifications merged = ResultFileIdentifications.merge(parts);
+            log.info(String.format("Result files read in %d ms -- %s", System.currentTimeMillis() - start, resultFiles));
+            return merged;
+        } catch (IOException e) {
+            log.warn("The result files can't be merged -- " + resultFiles + " -- " + e.getMessage());
+            return null;
+        } finally {
+            for (ResultFileIdentifications part : parts)
+                if (part != null)
+                    part.close();
+        }
+    }
+
+    /**
+     * Check if a result file is an mzIdentML big enough to be read with {@link MzIdentMLPsmReader} instead of
+     * loading it in PIA, see result-files.streaming-mzid-min-mb.
+     * @param resultFile result file
+     * @return true if the file is read with the streaming reader
+     */
+    private boolean isStreamingMzIdentML(String resultFile) {
+        return SubmissionPipelineUtils.FileType.getFileTypeFromFileName(resultFile) == SubmissionPipelineUtils.FileType.MZID
+                && streamingMzIdMinMb > 0 && new File(resultFile).length() >= streamingMzIdMinMb * 1024 * 1024;
+    }
+
+    public void indexSpectraStep(AssayProcessingContext context, Set<String> spectraFiles) throws Exception {
 
         long initSpectraStep = System.currentTimeMillis();
-        log.info("indexSpectraStep assay file  -- " + assayObjects.get("modeller").toString());
-        AppCacheManager appCacheManager = AppCacheManager.getInstance();
+        log.info("indexSpectraStep assay file  -- " + context.getModeller().toString());
 
-        List<ReportPSM> psms = (List<ReportPSM>) assayObjects.get("psms");
-        List<ReportProtein> proteins = (List<ReportProtein>) assayObjects.get("proteins");
+        String projectAccession = context.getProjectAccession();
+        String reanalysisAccession = context.getReanalysisAccession();
+        String fileAccession = context.getAssayAccession();
+        List<ReportPSM> psms = context.getPsms();
+        List<ReportProtein> proteins = context.getProteins();
 
-        PIAModeller modeller = (PIAModeller) assayObjects.get("modeller");
+        PIAModeller modeller = context.getModeller();
         JmzReaderSpectrumService service;
 
         if (modeller != null && psms.size() > 0) {
@@ -508,8 +658,8 @@ public class PrideAnalysisAssayService {
             Set<Double> qvalues = psms.stream().map(ReportPSM::getQValue).collect(Collectors.toSet());
             Set<Double> fdrValues = psms.stream().map(x -> x.getFDRScore().getValue()).collect(Collectors.toSet());
 
-            AtomicInteger totalPSM = new AtomicInteger();
-            AtomicInteger errorDeltaPSM = new AtomicInteger();
+            AtomicInteger totalPSM = context.getTotalPSMs();
+            AtomicInteger errorDeltaPSM = context.getErrorDeltaPSMs();
 
             List<Triple<String, SpectraData, SubmissionPipelineUtils.FileType>> relatedFiles;
             relatedFiles = getRelatedFiles(spectrumFiles, spectraFiles);
@@ -522,12 +672,9 @@ public class PrideAnalysisAssayService {
             );
 
             JmzReaderSpectrumService finalService = service;
-            Cache<String, List<PeptideSpectrumOverview>> proteinToPsms = (Cache<String, List<PeptideSpectrumOverview>>) appCacheManager.getProteinToPsmsCache();
+            Cache<String, List<PeptideSpectrumOverview>> proteinToPsms = context.getProteinToPsms();
 
-            Map<String, List<Triple<String, Double,String>>> proteinsPSMsScores = new HashMap<>();
-            Map<String, List<String>> peptideToProteins = new HashMap<>();
-            Map<String, Set<String>> proteinPTMs = new HashMap<>();
-            Map<String, List<Boolean>> proteinDecoys = new HashMap<>();
+            ProteinAggregateTable proteinAggregates = new ProteinAggregateTable();
 
             List<Triple<String, SpectraData, SubmissionPipelineUtils.FileType>> finalRelatedFiles = relatedFiles;
             AtomicInteger psmCount = new AtomicInteger(1);
@@ -571,12 +718,8 @@ public class PrideAnalysisAssayService {
                     if(reanalysisUsi != null)
                         usi = reanalysisUsi;
 
-                    Set<Param> localSampleProperties = new HashSet<>();
                     String fileNameNoExtension = SubmissionPipelineUtils.getFileNameNoExtension(fileName);
-                    if(sampleProperties.containsKey(fileNameNoExtension))
-                        localSampleProperties = sampleProperties.get(fileNameNoExtension);
-                    else if(globalSampleProperties.containsKey(fileNameNoExtension))
-                        localSampleProperties = globalSampleProperties.get(fileNameNoExtension);
+                    Set<Param> localSampleProperties = context.getSampleProperties(fileNameNoExtension);
 
                     if(fileSpectrum != null){
 
@@ -628,20 +771,7 @@ public class PrideAnalysisAssayService {
                         scores.add(new Param(CvTermReference.MS_PIA_PSM_LEVEL_FDRSCORE.getAccession(), CvTermReference.MS_PIA_PSM_LEVEL_FDRSCORE.getName(), String.valueOf(piaFDR)));
                         log.info(String.valueOf(piaQvalue));
 
-                        double retentionTime = Double.NaN;
-                        if (psm.getRetentionTime() != null)
-                            retentionTime = psm.getRetentionTime();
-                        else if (fileSpectrum.getAdditional() != null) {
-                            Optional<uk.ac.ebi.pride.tools.jmzreader.model.impl.CvParam> rtTerm = fileSpectrum.getAdditional().getCvParams().stream().filter(x -> x.getAccession().equalsIgnoreCase("MS:1000016")).findFirst();
-                            if(rtTerm.isPresent() && rtTerm.get().getValue() != null){
-                                try{
-                                    retentionTime = Double.parseDouble(rtTerm.get().getValue());
-                                }catch (NumberFormatException e){
-                                    log.info("Retention tiem from mzML is not Double -- " + rtTerm.get().getValue());
-                                }
-
-                            }
-                        }
+                        double retentionTime = getRetentionTime(psm.getRetentionTime(), fileSpectrum);
 
                         List<Double> ptmMasses = psm.getModifications().values()
                                 .stream().map(Modification::getMass).collect(Collectors.toList());
@@ -695,9 +825,9 @@ public class PrideAnalysisAssayService {
                                 return new IdentifiedModification(neutralLoss, positionMap, modCv, modProperties);
                             }).collect(Collectors.toList());
 
-                        Set<CvParam> validationMethods = (Set<CvParam>) assayObjects.get("validationMethods");
+                        Set<CvParam> validationMethods = context.getValidationMethods();
 
-                        boolean isValid = (boolean) assayObjects.get("isValid");
+                        boolean isValid = context.isValid();
 
                         int misssedCleavages = psm.getMissedCleavages();
                         if (misssedCleavages == -1){
@@ -760,18 +890,13 @@ public class PrideAnalysisAssayService {
                         try {
 
                             // Total number of spectrum in ArchiveSpectrum
-                            BackupUtil.write(archivePSM, (PrintWriter) assayObjects.get("archiveSpectrumPrintWriter"), flush);
+                            BackupUtil.write(archivePSM, context.getArchiveSpectrumWriter(), flush);
                             // Total number of spectrum in Elastic Search summary.
-                            BackupUtil.write(psmElastic, (PrintWriter) assayObjects.get("psmSummaryEvidencePrintWriter"), flush);
+                            BackupUtil.write(psmElastic, context.getPsmSummaryEvidenceWriter(), flush);
                             // Writing in batches.
 
                             String batchFile = usi.split(":")[2];
-                            if(!spectraPartitionWriters.containsKey(batchFile)){
-                                String prefix = (String) assayObjects.get("archiveSpectrumFilePrefix");
-                                batchBufferWriter = new PrintWriter(new FileWriter(BackupUtil.getArchiveSpectrumFileBatch(prefix, batchFile), false));
-                                spectraPartitionWriters.put(batchFile, batchBufferWriter);
-                            }else
-                                batchBufferWriter = spectraPartitionWriters.get(batchFile);
+                            batchBufferWriter = context.getSpectraPartitionWriter(batchFile);
 
                             BackupUtil.write(archivePSM, batchBufferWriter, flush);
 
@@ -781,6 +906,8 @@ public class PrideAnalysisAssayService {
                         // construction of USI list.
                         PeptideSpectrumOverview psmOverview = new PeptideSpectrumOverview(psm.getCharge(), psm.getMassToCharge(), usi,psm.getSequence(),SubmissionPipelineUtils.encodePeptide(psm.getSequence(), psm.getModifications()));
 
+                        double pcmScore = Double.parseDouble(archivePSM.getBestSearchEngineScore().getValue());
+                        List<String> modificationNames = archivePSM.getModifications().stream().map(m -> m.getModification().getName()).collect(Collectors.toList());
                         psm.getAccessions().forEach( x -> {
                             // For some reason for protein accessions for PSMs are not in any of the protein reported proteins.
                             if (findProteinInReports(proteins, x.getAccession()).isPresent()){
@@ -791,35 +918,9 @@ public class PrideAnalysisAssayService {
                                 usis.add(psmOverview);
                                 proteinToPsms.put(x.getAccession(), usis);
                             }
-                            //Get the protein Score
-                            List<Triple<String, Double,String>> pcms = new ArrayList<>();
-                            Double pcmScore = Double.valueOf(archivePSM.getBestSearchEngineScore().getValue());
-
-                            if(proteinsPSMsScores.containsKey(x.getAccession())){
-                                pcms = proteinsPSMsScores.get(x.getAccession());
-                            }
-                            pcms.add(new Triple<>(archivePSM.getPeptidoform(), pcmScore, archivePSM.getUsi()));
-                            proteinsPSMsScores.put(x.getAccession(), pcms);
-
-                            // Get protein uniqueness
-                            List<String> proteinIds = new ArrayList<>();
-                            if(peptideToProteins.containsKey(archivePSM.getPeptidoform()))
-                                proteinIds = peptideToProteins.get(archivePSM.getPeptidoform());
-                            proteinIds.add(x.getAccession());
-                            peptideToProteins.put(archivePSM.getPeptidoform(),proteinIds);
-
-                            // Get protein decoys
-                            List<Boolean> decoys = new ArrayList<>();
-                            if(proteinDecoys.containsKey(x.getAccession()))
-                                decoys = proteinDecoys.get(x.getAccession());
-                            decoys.add(archivePSM.getIsDecoy());
-                            proteinDecoys.put(x.getAccession(), decoys);
-
-                            Set<String> ptms = new HashSet<>();
-                            if(proteinPTMs.containsKey(x.getAccession()))
-                                ptms = proteinPTMs.get(x.getAccession());
-                            ptms.addAll(archivePSM.getModifications().stream().map(m -> m.getModification().getName()).collect(Collectors.toList()));
-                            proteinPTMs.put(x.getAccession(), ptms);
+                            // Protein score, uniqueness, decoys and PTMs
+                            proteinAggregates.add(x.getAccession(), archivePSM.getPeptidoform(), pcmScore,
+                                    archivePSM.getIsDecoy(), modificationNames);
 
                         });
 
@@ -833,28 +934,309 @@ public class PrideAnalysisAssayService {
                 }
                 psmCount.getAndIncrement();
             });
-            assayObjects.put("proteinToPsms", proteinToPsms);
+            Map<String, Double> proteinScores = proteinAggregates.getBestScores();
+            context.setProteinScores(proteinScores);
+            context.setProteinStatus(proteinAggregates.getInferenceCategories(proteinScores.keySet()));
+            context.setProteinDecoys(proteinAggregates.getDecoys());
+            context.setProteinPTMs(proteinAggregates.getModifications());
+
+            context.closeSpectraPartitionWriters();
+            service.close();
+
+            log.info("Delta Mass Rate -- " + (errorDeltaPSM.get() / totalPSM.get()));
+            log.info(String.valueOf(System.currentTimeMillis() - initSpectraStep));
+        }
+    }
 
-            Map<String, Double> proteinScores = InferenceService.getBestQValue(proteinsPSMsScores);
-            assayObjects.put("proteinScores", proteinScores);
+    /**
+     * Write the spectra and PSM summaries of a result file analyzed with {@link #analyzeResultFileAssayStep}, and
+     * compute the protein scores, categories, decoys and PTMs used by {@link #proteinIndexStep}. The accepted PSMs
+     * are read back one by one from the PSM store.
+     * @param context {@link AssayProcessingContext} of the assay
+     * @param identifications PSMs and metadata of the result file
+     * @param spectraFiles List of files provided by the users
+     * @throws Exception
+     */
+    public void indexResultFileSpectraStep(AssayProcessingContext context, ResultFileIdentifications identifications, Set<String> spectraFiles) throws Exception {
 
-            Map<String, String> proteinCategories = InferenceService.getInferenceCategories(peptideToProteins, proteinScores.keySet());
-            assayObjects.put("proteinStatus", proteinCategories);
+        long initSpectraStep = System.currentTimeMillis();
 
-            // Get decoys
-            Map<String, Boolean> decoyStatus = proteinDecoys.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().stream().anyMatch(x -> x)));
-            assayObjects.put("proteinDecoys", decoyStatus);
+        String projectAccession = context.getProjectAccession();
+        String reanalysisAccession = context.getReanalysisAccession();
+        String fileAccession = context.getAssayAccession();
+        BitSet accepted = context.getAcceptedPsms();
+        Set<String> proteins = context.getReportedProteins();
+
+        Map<Integer, Tuple<String, SubmissionPipelineUtils.FileType>> relatedFiles = getRelatedFiles(identifications.getMsRunLocations(), spectraFiles);
+        JmzReaderSpectrumService service = JmzReaderSpectrumService.getInstance(new ArrayList<>(relatedFiles.values()).stream()
+                .map(x -> new uk.ac.ebi.pride.utilities.util.Tuple<>(x.getKey(), x.getValue()))
+                .collect(Collectors.toList()));
+
+        Set<Double> qvalues = accepted.stream().mapToObj(identifications::getQValue).collect(Collectors.toSet());
+        AtomicInteger totalPSM = context.getTotalPSMs();
+        AtomicInteger errorDeltaPSM = context.getErrorDeltaPSMs();
+        Cache<String, List<PeptideSpectrumOverview>> proteinToPsms = context.getProteinToPsms();
+        ProteinAggregateTable proteinAggregates = new ProteinAggregateTable();
+        Set<CvParam> validationMethods = context.getValidationMethods();
+        boolean isValid = context.isValid();
+
+        int psmCount = 1;
+        try (PsmRecordStore.Reader reader = identifications.reader()) {
+            ResultFilePsm psm;
+            while ((psm = reader.next()) != null) {
+                if (!accepted.get(psm.getIndex()))
+                    continue;
+                boolean flush = (psmCount % 1000) == 0;
+                psmCount++;
+                try {
+                    totalPSM.set(totalPSM.get() + 1);
 
-            assayObjects.put("proteinPTMs", proteinPTMs);
+                    Tuple<String, SubmissionPipelineUtils.FileType> spectraFile = relatedFiles.get(psm.getMsRun());
+                    if (spectraFile == null)
+                        throw new IOException(String.format("The psm reference can't be found in the list of files -- %s", psm.getPsmId()));
+                    String spectrumId = SubmissionPipelineUtils.getSpectrumIdFromReference(psm.getSpectrumReference(), spectraFile.getValue());
+                    if (spectrumId == null)
+                        throw new NumberFormatException("The current accession -- " + psm.getSpectrumReference() + " is not a valid scan");
+                    boolean validWiffId = SubmissionPipelineUtils.isValidWiffId(spectrumId);
 
-            spectraPartitionWriters.values().forEach(x -> {
-                x.flush();
-                x.close();
-            });
+                    Spectrum fileSpectrum = null;
+                    if (spectraFile.getValue() == SubmissionPipelineUtils.FileType.MGF)
+                        fileSpectrum = service.getSpectrumByIndex(spectraFile.getKey(), spectrumId);
+                    else if (spectraFile.getValue() == SubmissionPipelineUtils.FileType.MZML)
+                        fileSpectrum = service.getSpectrumById(spectraFile.getKey(), spectrumId);
+                    String fileName = FilenameUtils.getName(spectraFile.getKey());
 
-            log.info("Delta Mass Rate -- " + (errorDeltaPSM.get() / totalPSM.get()));
-            log.info(String.valueOf(System.currentTimeMillis() - initSpectraStep));
+                    // Validation that the id number should be a valid integer
+                    try {
+                        if (!validWiffId)
+                            Integer.parseInt(spectrumId);
+                    } catch (NumberFormatException e) {
+                        throw new NumberFormatException("The current accession -- " + spectrumId + " is not a valid scan");
+                    }
+
+                    String usi = SubmissionPipelineUtils.buildUsi(projectAccession, fileName, null, spectrumId, spectraFile.getValue(), validWiffId);
+                    String reanalysisUsi = null;
+                    if (reanalysisAccession != null)
+                        reanalysisUsi = SubmissionPipelineUtils.buildUsi(reanalysisAccession, fileName, null, spectrumId, spectraFile.getValue(), validWiffId);
+
+                    usi = SubmissionPipelineUtils.cleanUsiFromSpecialCharacters(usi);
+                    String spectraUsi = SubmissionPipelineUtils.getSpectraUsiFromUsi(usi);
+                    if (reanalysisUsi != null)
+                        usi = reanalysisUsi;
+
+                    if (fileSpectrum == null) {
+                        log.info(String.format("The following spectrum ID is not found in the spectra file -- %s", psm.getSpectrumReference()));
+                        continue;
+                    }
+
+                    Set<Param> localSampleProperties = context.getSampleProperties(SubmissionPipelineUtils.getFileNameNoExtension(fileName));
+
+                    Double[] masses = new Double[fileSpectrum.getPeakList().size()];
+                    Double[] intensities = new Double[fileSpectrum.getPeakList().size()];
+                    int count = 0;
+                    for (Map.Entry<Double, Double> entry : fileSpectrum.getPeakList().entrySet()) {
+                        masses[count] = entry.getKey();
+                        intensities[count] = entry.getValue();
+                        count++;
+                    }
+
+                    /** Add the search engine scores and the q-value as best search engine score **/
+                    Set<Param> scores = new HashSet<>();
+                    double[] psmScores = psm.getSearchEngineScores();
+                    for (Map.Entry<Integer, String[]> score : identifications.getSearchEngineScores().entrySet()) {
+                        String accession = score.getValue()[1];
+                        if (score.getKey() > psmScores.length || Double.isNaN(psmScores[score.getKey() - 1]) || accession == null
+                                || Objects.equals(accession, "MS:1002355") || Objects.equals(accession, "MS:1002354"))
+                            continue;
+                        for (CvTermReference ref : CvTermReference.values()) {
+                            if (ref.getAccession().equalsIgnoreCase(accession))
+                                scores.add(new Param(ref.getAccession(), ref.getName(), String.valueOf(psmScores[score.getKey() - 1])));
+                        }
+                    }
+                    double qValue = SubmissionPipelineUtils.getQValueLower(identifications.getQValue(psm.getIndex()), qvalues);
+                    Param bestSearchEngineScore = new Param(CvTermReference.MS_PIA_PSM_LEVEL_QVALUE.getAccession(), CvTermReference.MS_PIA_PSM_LEVEL_QVALUE.getName(), String.valueOf(qValue));
+                    scores.add(bestSearchEngineScore);
+
+                    double retentionTime = getRetentionTime(psm.getRetentionTime(), fileSpectrum);
+
+                    // The result file reports the theoretical m/z, the delta is the same than the PIA path without the masses of the PTMs
+                    if (!Double.isNaN(psm.getCalcMassToCharge()) && !Double.isNaN(psm.getExpMassToCharge())) {
+                        double deltaMass = Math.abs(psm.getExpMassToCharge() - psm.getCalcMassToCharge());
+                        if (deltaMass > 10) {
+                            throw new Exception(String.format("The delta mass for the following PSM --- %s is over 10", usi));
+                        } else if (deltaMass > 0.9) {
+                            errorDeltaPSM.set(errorDeltaPSM.get() + 1);
+                        }
+                    }
+
+                    /** PTMs parsing **/
+                    List<IdentifiedModification> mods = convertResultFileModifications(psm.getModifications(), identifications.getModificationNames());
+                    String peptidoform = SubmissionPipelineUtils.encodePSMAccessions(psm.getSequence(), psm.getModifications(), psm.getCharge());
+
+                    BinaryArchiveSpectrum archivePSM = BinaryArchiveSpectrum
+                            .builder()
+                            .projectAccession(projectAccession)
+                            .reanalysisAccession(reanalysisAccession)
+                            .assayAccession(fileAccession)
+                            .peptideSequence(psm.getSequence())
+                            .peptidoform(peptidoform)
+                            .isDecoy(psm.isDecoy())
+                            .retentionTime(retentionTime)
+                            .msLevel(fileSpectrum.getMsLevel())
+                            .precursorCharge(fileSpectrum.getPrecursorCharge())
+                            .masses(masses)
+                            .numPeaks(intensities.length)
+                            .intensities(intensities)
+                            .modifications(mods)
+                            .precursorMz(fileSpectrum.getPrecursorMZ())
+                            .usi(usi)
+                            .spectraUsi(spectraUsi)
+                            .isValid(isValid)
+                            .missedCleavages(uk.ac.ebi.pride.utilities.mol.MoleculeUtilities.calcMissedCleavages(psm.getSequence()))
+                            .proteinAccessions(psm.getAccessions())
+                            .qualityEstimationMethods(validationMethods.stream()
+                                    .map(x -> new Param(x.getAccession(), x.getName(), x.getValue()))
+                                    .collect(Collectors.toSet()))
+                            .properties(new HashSet<>())
+                            .bestSearchEngineScore(bestSearchEngineScore)
+                            .scores(scores)
+                            .sampleProperties(localSampleProperties)
+                            .build();
+
+                    SummaryArchiveSpectrum psmElastic = SummaryArchiveSpectrum
+                            .builder()
+                            .usi(usi)
+                            .spectraUsi(spectraUsi)
+                            .peptideSequence(psm.getSequence())
+                            .assayAccession(fileAccession)
+                            .isDecoy(psm.isDecoy())
+                            .precursorCharge(psm.getCharge())
+                            .isValid(isValid)
+                            .projectAccession(projectAccession)
+                            .reanalysisAccession(reanalysisAccession)
+                            .scores(scores)
+                            .numPeaks(intensities.length)
+                            .bestSearchEngineScore(bestSearchEngineScore)
+                            .precursorMz(psm.getExpMassToCharge())
+                            .proteinAccessions(psm.getAccessions())
+                            .peptidoform(peptidoform)
+                            .sampleProperties(localSampleProperties)
+                            .build();
+
+                    try {
+                        BackupUtil.write(archivePSM, context.getArchiveSpectrumWriter(), flush);
+                        BackupUtil.write(psmElastic, context.getPsmSummaryEvidenceWriter(), flush);
+                        String batchFile = usi.split(":")[2];
+                        BackupUtil.write(archivePSM, context.getSpectraPartitionWriter(batchFile), flush);
+                    } catch (Exception ex) {
+                        log.debug("Error writing the PSMs in the files -- " + psmElastic.getUsi());
+                    }
+
+                    PeptideSpectrumOverview psmOverview = new PeptideSpectrumOverview(psm.getCharge(), psm.getExpMassToCharge(), usi, psm.getSequence(),
+                            SubmissionPipelineUtils.encodePeptideAccessions(psm.getSequence(), psm.getModifications()));
+
+                    double pcmScore = Double.parseDouble(bestSearchEngineScore.getValue());
+                    List<String> modificationNames = mods.stream().map(m -> m.getModification().getName()).collect(Collectors.toList());
+                    for (String accession : psm.getAccessions()) {
+                        if (proteins.contains(accession)) {
+                            List<PeptideSpectrumOverview> usis = new ArrayList<>();
+                            if (proteinToPsms.containsKey(accession))
+                                usis = proteinToPsms.get(accession);
+                            usis.add(psmOverview);
+                            proteinToPsms.put(accession, usis);
+                        }
+                        proteinAggregates.add(accession, peptidoform, pcmScore, psm.isDecoy(), modificationNames);
+                    }
+                } catch (JMzReaderException e) {
+                    log.error(e.getMessage(), e);
+                }
+            }
         }
+
+        Map<String, Double> proteinScores = proteinAggregates.getBestScores();
+        context.setProteinScores(proteinScores);
+        context.setProteinStatus(proteinAggregates.getInferenceCategories(proteinScores.keySet()));
+        context.setProteinDecoys(proteinAggregates.getDecoys());
+        context.setProteinPTMs(proteinAggregates.getModifications());
+
+        context.closeSpectraPartitionWriters();
+        service.close();
+
+        log.info("Delta Mass Rate -- " + (errorDeltaPSM.get() / totalPSM.get()));
+        log.info(String.valueOf(System.currentTimeMillis() - initSpectraStep));
+    }
+
+    /**
+     * Modifications of a result file PSM, the name of each modification is taken from the result file metadata.
+     * @param modifications position to modification accession
+     * @param modificationNames modification accession to name
+     * @return List of {@link IdentifiedModification}
+     */
+    private static List<IdentifiedModification> convertResultFileModifications(Map<Integer, String> modifications, Map<String, String> modificationNames) {
+        Map<String, List<Tuple<Integer, Set<? extends CvParamProvider>>>> positions = new LinkedHashMap<>();
+        modifications.forEach((position, accession) -> positions.computeIfAbsent(accession, key -> new ArrayList<>())
+                .add(new Tuple<>(position, new HashSet<>())));
+        List<IdentifiedModification> mods = new ArrayList<>();
+        positions.forEach((accession, positionMap) -> {
+            String cvLabel = accession.contains(":") ? accession.substring(0, accession.indexOf(':')).toUpperCase() : null;
+            CvParam modCv = new CvParam(cvLabel, accession, modificationNames.getOrDefault(accession, accession), null);
+            mods.add(new IdentifiedModification(null, positionMap, modCv, new HashSet<>()));
+        });
+        return mods;
+    }
+
+    /**
+     * Match the ms_run locations of a result file with the file names provided by the user.
+     * @param msRunLocations ms_run index to location
+     * @param spectraFiles List of files provided by the users
+     * @return ms_run index to file path and type
+     * @throws IOException
+     */
+    private Map<Integer, Tuple<String, SubmissionPipelineUtils.FileType>> getRelatedFiles(Map<Integer, String> msRunLocations, Set<String> spectraFiles) throws IOException {
+        Map<Integer, Tuple<String, SubmissionPipelineUtils.FileType>> files = new HashMap<>();
+        msRunLocations.forEach((msRun, location) -> {
+            String msRunFileName = FilenameUtils.getName(SubmissionPipelineUtils.returnUnCompressPath(location));
+            for (String filePath : spectraFiles) {
+                if (FilenameUtils.getName(filePath).equalsIgnoreCase(msRunFileName)) {
+                    SubmissionPipelineUtils.FileType fileType = SubmissionPipelineUtils.FileType.getFileTypeFromFileName(filePath);
+                    if (fileType != null)
+                        files.put(msRun, new Tuple<>(filePath, fileType));
+                }
+            }
+        });
+        if (files.size() != msRunLocations.size())
+            throw new IOException("The number of files provided and ms_runs referenced in the result files are different");
+        return files;
+    }
+
+    /**
+     * Retention time of a PSM, the one reported in the result file or the one of the spectrum (MS:1000016, or
+     * RTINSECONDS for MGF files).
+     * @param reportedTime retention time reported in the result file, null if not reported
+     * @param fileSpectrum spectrum of the PSM
+     * @return retention time, NaN if not found
+     */
+    private static double getRetentionTime(Double reportedTime, Spectrum fileSpectrum) {
+        double retentionTime = Double.NaN;
+        if (reportedTime != null)
+            retentionTime = reportedTime;
+        else if (fileSpectrum instanceof MappedMgfReader.MgfSpectrum) {
+            Double mgfTime = ((MappedMgfReader.MgfSpectrum) fileSpectrum).getRetentionTime();
+            if (mgfTime != null)
+                retentionTime = mgfTime;
+        }
+        else if (fileSpectrum.getAdditional() != null) {
+            Optional<uk.ac.ebi.pride.tools.jmzreader.model.impl.CvParam> rtTerm = fileSpectrum.getAdditional().getCvParams().stream().filter(x -> x.getAccession().equalsIgnoreCase("MS:1000016")).findFirst();
+            if(rtTerm.isPresent() && rtTerm.get().getValue() != null){
+                try{
+                    retentionTime = Double.parseDouble(rtTerm.get().getValue());
+                }catch (NumberFormatException e){
+                    log.info("Retention tiem from mzML is not Double -- " + rtTerm.get().getValue());
+                }
+
+            }
+        }
+        return retentionTime;
     }
 
     /**
@@ -896,19 +1278,18 @@ public class PrideAnalysisAssayService {
     }
 
     /**
-     * This method use the SpectraDataFile to find the list of files in the PRIDE WS that correspond to those referenced
+     * This method use the spectra files referenced by the result file to find the list of files in the PRIDE WS that correspond to those referenced
      * files.
      * @param resultFile Result file under analysis
-     * @param spectraDataList List of {@link SpectraData} objects
+     * @param spectraLocations Locations of the spectra files referenced by the result file, see {@link SpectraDataScanner}
      * @param projectFiles Project Files from the PRIDE WS
      * @return Triple
      */
     private List<Triple<Tuple<String, String>, PrideFile, SubmissionPipelineUtils.FileType>> getFilesRelatedToResultFile(String resultFile,
-                                                                                                                         Map<String, SpectraData> spectraDataList,
+                                                                                                                         Collection<String> spectraLocations,
                                                                                                                          List<PrideFile> projectFiles) {
         return projectFiles.stream().map(x -> {
-                    for( SpectraData fileInResult: spectraDataList.values()){
-                        String location = fileInResult.getLocation();
+                    for( String location: spectraLocations){
                         if (location != null){
                             String file = FilenameUtils.getName(location);
                             if (x.getFileName().contains(file)){
@@ -935,12 +1316,16 @@ public class PrideAnalysisAssayService {
 
     }
 
-    public static void proteinIndexStep(String fileAccession, Map<String, Object> assayObjects, String projectAccession, String reanalysisAccession) throws Exception {
+    public static void proteinIndexStep(AssayProcessingContext context) throws Exception {
 
-        Cache<String, List<PeptideSpectrumOverview>> proteinsToPsms = (Cache<String, List<PeptideSpectrumOverview>>) assayObjects.get("proteinToPsms");
-        Map<String, Double> proteinScores = (Map<String, Double>) assayObjects.get("proteinScores");
-        Map<String, String> proteinCategories = (Map<String, String>) assayObjects.get("proteinStatus");
-        Map<String, Boolean> decoyStatus = (Map<String, Boolean>) assayObjects.get("proteinDecoys");Map<String, Set<String>> proteinPTMs = (Map<String, Set<String>>) assayObjects.get("proteinPTMs");
+        String fileAccession = context.getAssayAccession();
+        String projectAccession = context.getProjectAccession();
+        String reanalysisAccession = context.getReanalysisAccession();
+        Cache<String, List<PeptideSpectrumOverview>> proteinsToPsms = context.getProteinToPsms();
+        Map<String, Double> proteinScores = context.getProteinScores();
+        Map<String, String> proteinCategories = context.getProteinStatus();
+        Map<String, Boolean> decoyStatus = context.getProteinDecoys();
+        Map<String, Set<String>> proteinPTMs = context.getProteinPTMs();
         int countProteins = 0;
         for (Iterator<Cache.Entry<String, List<PeptideSpectrumOverview>>> it = proteinsToPsms.iterator(); it.hasNext(); ) {
 
@@ -956,7 +1341,7 @@ public class PrideAnalysisAssayService {
 
             log.info("Protein -- " + entry.getKey() + " # PSMs -- " + proteinToPsms.size());
 
-            Set<CvParam> validationMethods = (Set<CvParam>) assayObjects.get("validationMethods");
+            Set<CvParam> validationMethods = context.getValidationMethods();
 
             boolean isValid = true;
 
@@ -983,7 +1368,7 @@ public class PrideAnalysisAssayService {
                     .build();
 
             try {
-                BackupUtil.write(proteinEvidence, (PrintWriter) assayObjects.get("proteinEvidencePrintWriter"), ((countProteins % 1000) == 0));
+                BackupUtil.write(proteinEvidence, context.getProteinEvidenceWriter(), ((countProteins % 1000) == 0));
                 log.info(String.format("Protein %s -- Number of peptides %s", entry.getKey(), nPeptides));
             }catch (Exception e) {
                 log.error(e.getMessage(), e);
@@ -1113,29 +1498,6 @@ public class PrideAnalysisAssayService {
 
     }
 
-    /**
-     * Delete files when the pipeline fails to produce PSMs, Peptides and Proteins
-     * @param assayObjectMap ObjectMap
-     */
-    public void deleteFailingOutputFiles(Map<String, Object> assayObjectMap) {
-        try{
-            if(assayObjectMap !=null && assayObjectMap.containsKey("proteinEvidenceFileName")){
-                String fileToDelete = (String) assayObjectMap.get("proteinEvidenceFileName");
-                Files.deleteIfExists(new File(fileToDelete).toPath());
-            }
-            if(assayObjectMap !=null && assayObjectMap.containsKey("archiveSpectrumFileName")){
-                String fileToDelete = (String) assayObjectMap.get("archiveSpectrumFileName");
-                Files.deleteIfExists(new File(fileToDelete).toPath());
-            }
-            if(assayObjectMap !=null && assayObjectMap.containsKey("psmSummaryEvidenceFileName")){
-                String fileToDelete = (String) assayObjectMap.get("psmSummaryEvidenceFileName");
-                Files.deleteIfExists(new File(fileToDelete).toPath());
-            }
-        } catch (IOException e) {
-          throw new RuntimeException(e);
-        }
-    }
-
     public void setMinPSMs(int minPSMs) {
         this.minPSMs = minPSMs;
     }
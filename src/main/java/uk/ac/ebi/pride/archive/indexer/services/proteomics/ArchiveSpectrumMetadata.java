@@ -0,0 +1,217 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Projection of a {@link uk.ac.ebi.pride.archive.dataprovider.data.spectra.BinaryArchiveSpectrum} json record that
+ * only contains the requested metadata fields. The record is decoded with the jackson streaming parser: the fields
+ * not requested, including the masses and intensities arrays, are skipped without being materialized, and the parse
+ * stops as soon as all the requested fields have been read.
+ *
+ * @author ypriverol
+ */
+public class ArchiveSpectrumMetadata {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * Fields that can be projected, with their name in the json record.
+     */
+    public enum Field {
+        USI("usi"),
+        SPECTRA_USI("spectraUsi"),
+        ASSAY_ACCESSION("assayAccession"),
+        PEPTIDE_SEQUENCE("peptideSequence"),
+        PEPTIDOFORM("peptidoform"),
+        IS_DECOY("isDecoy"),
+        PRECURSOR_CHARGE("precursorCharge"),
+        PRECURSOR_MZ("precursorMz"),
+        BEST_SEARCH_ENGINE_SCORE("bestSearchEngineScore"),
+        PROTEIN_ACCESSIONS("proteinAccessions"),
+        NUM_PEAKS("numPeaks");
+
+        private final String jsonName;
+
+        Field(String jsonName) {
+            this.jsonName = jsonName;
+        }
+
+        public String getJsonName() {
+            return jsonName;
+        }
+
+        private static Field fromJsonName(String name) {
+            for (Field field : values()) {
+                if (field.jsonName.equals(name))
+                    return field;
+            }
+            // Serializers of boolean properties can drop the "is" prefix.
+            return "decoy".equals(name) ? IS_DECOY : null;
+        }
+    }
+
+    private String usi;
+    private String spectraUsi;
+    private String assayAccession;
+    private String peptideSequence;
+    private String peptidoform;
+    private Boolean isDecoy;
+    private Integer precursorCharge;
+    private Double precursorMz;
+    private String bestSearchEngineScore;
+    private List<String> proteinAccessions;
+    private Integer numPeaks;
+
+    /**
+     * Decode the requested fields of a one line json record.
+     * @param bytes buffer containing the record
+     * @param offset start of the record in the buffer
+     * @param length length of the record
+     * @param fields fields to decode, the other fields are left null
+     * @return ArchiveSpectrumMetadata
+     * @throws IOException if the record is not valid json
+     */
+    public static ArchiveSpectrumMetadata readJson(byte[] bytes, int offset, int length, Set<Field> fields) throws IOException {
+        return readJson(JSON_FACTORY.createParser(bytes, offset, length), fields);
+    }
+
+    /**
+     * Decode the requested fields of a one line json record.
+     * @param line json record
+     * @param fields fields to decode, the other fields are left null
+     * @return ArchiveSpectrumMetadata
+     * @throws IOException if the record is not valid json
+     */
+    public static ArchiveSpectrumMetadata readJson(String line, Set<Field> fields) throws IOException {
+        return readJson(JSON_FACTORY.createParser(line), fields);
+    }
+
+    private static ArchiveSpectrumMetadata readJson(JsonParser jsonParser, Set<Field> fields) throws IOException {
+        ArchiveSpectrumMetadata metadata = new ArchiveSpectrumMetadata();
+        EnumSet<Field> pending = EnumSet.copyOf(fields);
+        try (JsonParser parser = jsonParser) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw new IOException("The spectrum record is not a json object");
+            while (!pending.isEmpty() && parser.nextToken() == JsonToken.FIELD_NAME) {
+                Field field = Field.fromJsonName(parser.getCurrentName());
+                parser.nextToken();
+                if (field == null || !pending.remove(field)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                metadata.read(field, parser);
+            }
+        }
+        return metadata;
+    }
+
+    private void read(Field field, JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL)
+            return;
+        switch (field) {
+            case USI:
+                usi = parser.getText();
+                break;
+            case SPECTRA_USI:
+                spectraUsi = parser.getText();
+                break;
+            case ASSAY_ACCESSION:
+                assayAccession = parser.getText();
+                break;
+            case PEPTIDE_SEQUENCE:
+                peptideSequence = parser.getText();
+                break;
+            case PEPTIDOFORM:
+                peptidoform = parser.getText();
+                break;
+            case IS_DECOY:
+                isDecoy = parser.getValueAsBoolean();
+                break;
+            case PRECURSOR_CHARGE:
+                precursorCharge = parser.getValueAsInt();
+                break;
+            case PRECURSOR_MZ:
+                precursorMz = parser.getValueAsDouble();
+                break;
+            case NUM_PEAKS:
+                numPeaks = parser.getValueAsInt();
+                break;
+            case PROTEIN_ACCESSIONS:
+                proteinAccessions = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY)
+                    proteinAccessions.add(parser.getText());
+                break;
+            case BEST_SEARCH_ENGINE_SCORE:
+                // Only the value of the score param is kept.
+                if (parser.currentToken() != JsonToken.START_OBJECT) {
+                    bestSearchEngineScore = parser.getValueAsString();
+                    break;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("value".equals(name))
+                        bestSearchEngineScore = parser.getValueAsString();
+                    else
+                        parser.skipChildren();
+                }
+                break;
+        }
+    }
+
+    public String getUsi() {
+        return usi;
+    }
+
+    public String getSpectraUsi() {
+        return spectraUsi;
+    }
+
+    public String getAssayAccession() {
+        return assayAccession;
+    }
+
+    public String getPeptideSequence() {
+        return peptideSequence;
+    }
+
+    public String getPeptidoform() {
+        return peptidoform;
+    }
+
+    public Boolean getIsDecoy() {
+        return isDecoy;
+    }
+
+    public Integer getPrecursorCharge() {
+        return precursorCharge;
+    }
+
+    public Double getPrecursorMz() {
+        return precursorMz;
+    }
+
+    /**
+     * Value of the best search engine score param.
+     * @return score value
+     */
+    public String getBestSearchEngineScore() {
+        return bestSearchEngineScore;
+    }
+
+    public List<String> getProteinAccessions() {
+        return proteinAccessions;
+    }
+
+    public Integer getNumPeaks() {
+        return numPeaks;
+    }
+}
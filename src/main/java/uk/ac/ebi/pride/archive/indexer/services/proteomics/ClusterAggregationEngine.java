@@ -0,0 +1,299 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntPredicate;
+
+/**
+ * Selects the representative spectrum of each MaraCluster cluster. The clustered spectra are kept in primitive
+ * columns (ordinal in the archive spectra file, cluster, isobaric peptidoform id of a {@link PeptidoformDictionary},
+ * score and decoy flag), about 28 bytes per spectrum including the sort buffers, instead of lists of boxed objects
+ * per cluster.
+ *
+ * The rows are radix sorted by cluster and every cluster is evaluated in one pass over its rows. Each cluster has
+ * one representative: among the spectra with the same isobaric peptidoform as the first spectrum of the cluster in
+ * the file, the one with the best (lowest) score, the first one in the file in case of tie.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class ClusterAggregationEngine {
+
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int RADIX_BITS = 16;
+    private static final int RADIX_MASK = (1 << RADIX_BITS) - 1;
+    // Ranges of clusters with less rows than this are evaluated in one task.
+    private static final int PARALLEL_THRESHOLD_ROWS = 1 << 15;
+
+    private int size = 0;
+    private int[] ordinals = new int[INITIAL_CAPACITY];
+    private int[] clusterIds = new int[INITIAL_CAPACITY];
+    private int[] peptidoformKeys = new int[INITIAL_CAPACITY];
+    private double[] scores = new double[INITIAL_CAPACITY];
+    private final BitSet decoys = new BitSet();
+
+    private final PeptidoformDictionary dictionary;
+
+    public ClusterAggregationEngine() {
+        this(new PeptidoformDictionary());
+    }
+
+    /**
+     * @param dictionary dictionary of the peptidoforms, it can be shared with other consumers of the same spectra
+     */
+    public ClusterAggregationEngine(PeptidoformDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Add a clustered spectrum. The spectra must be added in the order of the archive spectra file.
+     * @param ordinal position of the spectrum in the archive spectra file
+     * @param clusterId cluster of the spectrum
+     * @param peptidoform peptidoform of the spectrum
+     * @param isDecoy true if the psm is a decoy
+     * @param score best search engine score, lower is better
+     */
+    public void add(int ordinal, int clusterId, String peptidoform, boolean isDecoy, double score) {
+        if (size == ordinals.length)
+            grow();
+        ordinals[size] = ordinal;
+        clusterIds[size] = clusterId;
+        peptidoformKeys[size] = dictionary.getIsobaricId(peptidoform);
+        scores[size] = score;
+        if (isDecoy)
+            decoys.set(size);
+        size++;
+    }
+
+    private void grow() {
+        int capacity = ordinals.length * 2;
+        ordinals = Arrays.copyOf(ordinals, capacity);
+        clusterIds = Arrays.copyOf(clusterIds, capacity);
+        peptidoformKeys = Arrays.copyOf(peptidoformKeys, capacity);
+        scores = Arrays.copyOf(scores, capacity);
+    }
+
+    /**
+     * Number of spectra added.
+     * @return number of spectra
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Evaluate all the clusters and return the representative spectra. The clusters are evaluated in parallel,
+     * see {@link ClusterRangeTask}, the result does not depend on the number of threads.
+     * @return ordinals of the representative spectra in ascending order, one per cluster
+     */
+    public int[] selectRepresentatives() {
+        int[] representatives = selectRepresentativeRows(clusterId -> true);
+        for (int i = 0; i < representatives.length; i++)
+            representatives[i] = ordinals[representatives[i]];
+        Arrays.sort(representatives);
+        return representatives;
+    }
+
+    /**
+     * Evaluate some of the clusters and return the rows of their representative spectra.
+     * @param clusterFilter clusters to evaluate
+     * @return rows of the representative spectra in ascending order, one per cluster
+     */
+    public int[] selectRepresentativeRows(IntPredicate clusterFilter) {
+        int[] rows = sortRowsByCluster(clusterFilter);
+
+        // Start row of each cluster, plus the end of the last one.
+        int[] clusterStarts = new int[16];
+        int clusters = 0;
+        for (int i = 0; i < rows.length; i++) {
+            if (i == 0 || clusterIds[rows[i]] != clusterIds[rows[i - 1]]) {
+                if (clusters + 1 >= clusterStarts.length)
+                    clusterStarts = Arrays.copyOf(clusterStarts, clusterStarts.length * 2);
+                clusterStarts[clusters++] = i;
+            }
+        }
+        clusterStarts[clusters] = rows.length;
+
+        Selection selection = ForkJoinPool.commonPool().invoke(new ClusterRangeTask(rows, clusterStarts, 0, clusters));
+        int[] result = Arrays.copyOf(selection.representatives, selection.count);
+        Arrays.sort(result);
+        log.info(String.format("Clusters -- %d spectra, %d clusters, %d representatives (%d decoys)",
+                rows.length, clusters, selection.count, selection.decoyRepresentatives));
+        return result;
+    }
+
+    public int getOrdinal(int row) {
+        return ordinals[row];
+    }
+
+    public int getClusterId(int row) {
+        return clusterIds[row];
+    }
+
+    /**
+     * Write the rows and the dictionary, see {@link #load(DataInput)}.
+     * @param output destination
+     * @throws IOException
+     */
+    public void save(DataOutput output) throws IOException {
+        dictionary.save(output);
+        output.writeInt(size);
+        for (int row = 0; row < size; row++) {
+            output.writeInt(ordinals[row]);
+            output.writeInt(clusterIds[row]);
+            output.writeInt(peptidoformKeys[row]);
+            output.writeDouble(scores[row]);
+            output.writeBoolean(decoys.get(row));
+        }
+    }
+
+    /**
+     * Read an engine written with {@link #save(DataOutput)}, more spectra can be added to it.
+     * @param input source
+     * @return ClusterAggregationEngine
+     * @throws IOException
+     */
+    public static ClusterAggregationEngine load(DataInput input) throws IOException {
+        ClusterAggregationEngine engine = new ClusterAggregationEngine(PeptidoformDictionary.load(input));
+        int rows = input.readInt();
+        for (int row = 0; row < rows; row++) {
+            if (engine.size == engine.ordinals.length)
+                engine.grow();
+            engine.ordinals[row] = input.readInt();
+            engine.clusterIds[row] = input.readInt();
+            engine.peptidoformKeys[row] = input.readInt();
+            engine.scores[row] = input.readDouble();
+            if (input.readBoolean())
+                engine.decoys.set(row);
+            engine.size++;
+        }
+        return engine;
+    }
+
+    /**
+     * Representative rows and counters of a range of clusters.
+     */
+    private static final class Selection {
+
+        private int[] representatives = new int[16];
+        private int count = 0;
+        private long decoyRepresentatives = 0;
+
+        private void add(int ordinal, boolean decoy) {
+            if (count == representatives.length)
+                representatives = Arrays.copyOf(representatives, count * 2);
+            representatives[count++] = ordinal;
+            if (decoy)
+                decoyRepresentatives++;
+        }
+
+        private Selection merge(Selection other) {
+            for (int i = 0; i < other.count; i++)
+                add(other.representatives[i], false);
+            decoyRepresentatives += other.decoyRepresentatives;
+            return this;
+        }
+    }
+
+    /**
+     * Evaluation of a range of clusters. Ranges are split in halves by number of rows, not of clusters, so a few
+     * huge clusters do not end in the same task, and the halves are balanced by work stealing. The clusters are
+     * independent and the selections are merged in cluster order.
+     */
+    private final class ClusterRangeTask extends RecursiveTask<Selection> {
+
+        private final int[] rows;
+        private final int[] clusterStarts;
+        private final int from;
+        private final int to;
+
+        private ClusterRangeTask(int[] rows, int[] clusterStarts, int from, int to) {
+            this.rows = rows;
+            this.clusterStarts = clusterStarts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Selection compute() {
+            int firstRow = clusterStarts[from];
+            int lastRow = clusterStarts[to];
+            if (to - from <= 1 || lastRow - firstRow <= PARALLEL_THRESHOLD_ROWS)
+                return evaluateClusters();
+
+            int middle = Arrays.binarySearch(clusterStarts, from, to, firstRow + (lastRow - firstRow) / 2);
+            if (middle < 0)
+                middle = -middle - 1;
+            middle = Math.max(from + 1, Math.min(to - 1, middle));
+            ClusterRangeTask left = new ClusterRangeTask(rows, clusterStarts, from, middle);
+            left.fork();
+            Selection right = new ClusterRangeTask(rows, clusterStarts, middle, to).compute();
+            return left.join().merge(right);
+        }
+
+        private Selection evaluateClusters() {
+            Selection selection = new Selection();
+            for (int cluster = from; cluster < to; cluster++) {
+                int representative = evaluateCluster(rows, clusterStarts[cluster], clusterStarts[cluster + 1]);
+                selection.add(representative, decoys.get(representative));
+            }
+            return selection;
+        }
+    }
+
+    /**
+     * Evaluate the rows of one cluster.
+     * @return row of the representative
+     */
+    private int evaluateCluster(int[] rows, int start, int end) {
+        // Rows of a cluster are in file order, so the first best score wins the ties.
+        int peptidoform = peptidoformKeys[rows[start]];
+        int best = rows[start];
+        for (int i = start + 1; i < end; i++) {
+            int row = rows[i];
+            if (peptidoformKeys[row] == peptidoform && scores[row] < scores[best])
+                best = row;
+        }
+        return best;
+    }
+
+    /**
+     * Stable LSD radix sort of the rows of the selected clusters by cluster id, two passes of 16 bits.
+     * @return rows ordered by cluster, in insertion order inside each cluster
+     */
+    private int[] sortRowsByCluster(IntPredicate clusterFilter) {
+        int[] rows = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (clusterFilter.test(clusterIds[i]))
+                rows[count++] = i;
+        }
+        rows = Arrays.copyOf(rows, count);
+        int[] buffer = new int[count];
+        for (int shift = 0; shift < Integer.SIZE; shift += RADIX_BITS) {
+            int[] counts = new int[RADIX_MASK + 2];
+            for (int i = 0; i < count; i++)
+                counts[radix(clusterIds[rows[i]], shift) + 1]++;
+            for (int i = 1; i < counts.length; i++)
+                counts[i] += counts[i - 1];
+            for (int i = 0; i < count; i++)
+                buffer[counts[radix(clusterIds[rows[i]], shift)]++] = rows[i];
+            int[] swap = rows;
+            rows = buffer;
+            buffer = swap;
+        }
+        return rows;
+    }
+
+    private static int radix(int clusterId, int shift) {
+        // The sign bit is flipped so negative ids are ordered before the positive ones.
+        return ((clusterId ^ Integer.MIN_VALUE) >>> shift) & RADIX_MASK;
+    }
+}
@@ -0,0 +1,392 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+/**
+ * Cluster of each spectrum of an archive spectra file, indexed by the ordinal of the spectrum in the file. The
+ * table is a plain int array, {@link #UNASSIGNED} for the spectra without cluster.
+ *
+ * The MaraCluster results are read with {@link #readMaraClusterResults(File)}: the file is parsed at byte level in
+ * chunks in parallel, without creating a String per line.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class ClusterAssignmentTable {
+
+    public static final int UNASSIGNED = -1;
+
+    // Bytes of the MaraCluster results parsed by each task, lines are assigned to the chunk where they start.
+    private static final long CHUNK_BYTES = 16L * 1024 * 1024;
+    // Bytes read after the end of a chunk to finish its last line.
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    private static final int IO_BUFFER_INTS = 1 << 18;
+
+    private int[] clusters;
+    private int size;
+
+    public ClusterAssignmentTable(int capacity) {
+        this.clusters = new int[Math.max(16, capacity)];
+        Arrays.fill(this.clusters, UNASSIGNED);
+    }
+
+    private ClusterAssignmentTable(int[] clusters, int size) {
+        this.clusters = clusters;
+        this.size = size;
+    }
+
+    /**
+     * Cluster of a spectrum.
+     * @param ordinal ordinal of the spectrum in the archive spectra file
+     * @return cluster id, {@link #UNASSIGNED} if the spectrum has no cluster
+     */
+    public int get(int ordinal) {
+        return ordinal < size ? clusters[ordinal] : UNASSIGNED;
+    }
+
+    public void set(int ordinal, int clusterId) {
+        if (ordinal >= clusters.length) {
+            int capacity = Math.max(clusters.length * 2, ordinal + 1);
+            int previous = clusters.length;
+            clusters = Arrays.copyOf(clusters, capacity);
+            Arrays.fill(clusters, previous, capacity, UNASSIGNED);
+        }
+        clusters[ordinal] = clusterId;
+        size = Math.max(size, ordinal + 1);
+    }
+
+    /**
+     * Highest ordinal of the table plus one.
+     * @return size of the table
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getAssignedCount() {
+        int assigned = 0;
+        for (int i = 0; i < size; i++)
+            if (clusters[i] != UNASSIGNED)
+                assigned++;
+        return assigned;
+    }
+
+    /**
+     * Write the table in a file, see {@link #load(File)}.
+     * @param file destination file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_INTS * Integer.BYTES);
+            buffer.putInt(size);
+            for (int start = 0; start < size; ) {
+                IntBuffer ints = buffer.asIntBuffer();
+                int count = Math.min(ints.remaining(), size - start);
+                ints.put(clusters, start, count);
+                ((Buffer) buffer).position(buffer.position() + count * Integer.BYTES);
+                ((Buffer) buffer).flip();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                ((Buffer) buffer).clear();
+                start += count;
+            }
+            if (buffer.position() > 0) {
+                ((Buffer) buffer).flip();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Read a table written with {@link #save(File)}.
+     * @param file table file
+     * @return ClusterAssignmentTable
+     * @throws IOException
+     */
+    public static ClusterAssignmentTable load(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_INTS * Integer.BYTES);
+            readFully(channel, buffer, Integer.BYTES);
+            int size = buffer.getInt();
+            int[] clusters = new int[size];
+            for (int start = 0; start < size; ) {
+                int count = Math.min(IO_BUFFER_INTS, size - start);
+                ((Buffer) buffer).clear();
+                readFully(channel, buffer, count * Integer.BYTES);
+                buffer.asIntBuffer().get(clusters, start, count);
+                start += count;
+            }
+            return new ClusterAssignmentTable(clusters, size);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        ((Buffer) buffer).clear();
+        ((Buffer) buffer).limit(bytes);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0)
+                throw new IOException("Truncated cluster assignment table");
+        ((Buffer) buffer).flip();
+    }
+
+    /**
+     * Read the MaraCluster results, a tab separated file with the spectrum file, the index of the spectrum in that
+     * file and the cluster of the spectrum. Lines without the three values are ignored.
+     *
+     * When the results contain more than one spectrum file, the spectra of the files are numbered one file after
+     * the other, with the files sorted by name, the order of the archive spectra file when the spectrum files were
+     * exported from it in that order. Each file contributes its highest index plus one spectra.
+     *
+     * The file is parsed twice in parallel chunks: the first pass collects the spectrum files and their highest
+     * index to size the table, the second fills it. A spectrum assigned to more than one cluster is an error.
+     *
+     * @param file MaraCluster results
+     * @return ClusterAssignmentTable
+     * @throws IOException
+     */
+    public static ClusterAssignmentTable readMaraClusterResults(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            int chunkCount = (int) Math.max(1, (fileSize + CHUNK_BYTES - 1) / CHUNK_BYTES);
+            Chunk[] chunks = new Chunk[chunkCount];
+            for (int i = 0; i < chunkCount; i++)
+                chunks[i] = new Chunk(channel, fileSize, i * CHUNK_BYTES, Math.min(fileSize, (i + 1) * CHUNK_BYTES));
+
+            // First pass: spectrum files and highest index of each of them.
+            forEachChunk(chunks, chunk -> chunk.scan((localFile, index, clusterId) -> {
+                if (index > chunk.maxIndexes[localFile])
+                    chunk.maxIndexes[localFile] = index;
+            }));
+            Map<String, Integer> maxIndexes = new TreeMap<>();
+            for (Chunk chunk : chunks)
+                for (int i = 0; i < chunk.files.size(); i++)
+                    maxIndexes.merge(chunk.files.get(i), chunk.maxIndexes[i], Math::max);
+            Map<String, Integer> bases = new HashMap<>();
+            long total = 0;
+            for (Map.Entry<String, Integer> entry : maxIndexes.entrySet()) {
+                bases.put(entry.getKey(), (int) total);
+                total += entry.getValue() + 1L;
+            }
+            if (total >= Integer.MAX_VALUE)
+                throw new IOException("Too many spectra in the MaraCluster results -- " + total);
+            if (maxIndexes.size() > 1)
+                log.info("Spectrum files in the MaraCluster results, numbered in this order -- " + maxIndexes);
+            for (Chunk chunk : chunks)
+                chunk.bases = chunk.files.stream().mapToInt(bases::get).toArray();
+
+            // Second pass: the table, each ordinal is claimed once in the bitset.
+            int size = (int) total;
+            int[] clusters = new int[size];
+            Arrays.fill(clusters, UNASSIGNED);
+            AtomicLongArray assigned = new AtomicLongArray((size + 63) / 64);
+            AtomicInteger duplicate = new AtomicInteger(UNASSIGNED);
+            forEachChunk(chunks, chunk -> chunk.scan((localFile, index, clusterId) -> {
+                int ordinal = chunk.bases[localFile] + index;
+                if (claim(assigned, ordinal))
+                    clusters[ordinal] = clusterId;
+                else
+                    duplicate.compareAndSet(UNASSIGNED, ordinal);
+            }));
+            if (duplicate.get() != UNASSIGNED)
+                throw new IOException("The following spectra -- " + duplicate.get() + " belongs to more than one cluster");
+
+            return new ClusterAssignmentTable(clusters, size);
+        }
+    }
+
+    private static boolean claim(AtomicLongArray bits, int index) {
+        int word = index >>> 6;
+        long mask = 1L << (index & 63);
+        while (true) {
+            long current = bits.get(word);
+            if ((current & mask) != 0)
+                return false;
+            if (bits.compareAndSet(word, current, current | mask))
+                return true;
+        }
+    }
+
+    private interface ChunkTask {
+        void run(Chunk chunk) throws IOException;
+    }
+
+    private static void forEachChunk(Chunk[] chunks, ChunkTask task) throws IOException {
+        try {
+            IntStream.range(0, chunks.length).parallel().forEach(i -> {
+                try {
+                    task.run(chunks[i]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private interface LineHandler {
+        void line(int localFile, int index, int clusterId);
+    }
+
+    /**
+     * Region of the MaraCluster results with the lines that start in [chunkStart, chunkEnd) of the file, the region
+     * also has the byte before the chunk and the end of its last line. The bytes are read again in each scan, so
+     * only the chunks being parsed are in memory.
+     */
+    private static final class Chunk {
+        private final FileChannel channel;
+        private final long regionStart;
+        private final int regionLength;
+        private final boolean lastRegion;
+        private final int end;
+        private byte[] buffer;
+        // Spectrum files of the chunk in order of appearance, the local file id is the position in the list.
+        private final List<String> files = new ArrayList<>();
+        private int[] maxIndexes = new int[4];
+        private int[] bases;
+
+        private Chunk(FileChannel channel, long fileSize, long chunkStart, long chunkEnd) throws IOException {
+            this.channel = channel;
+            regionStart = Math.max(0, chunkStart - 1);
+            long regionEnd = Math.min(fileSize, chunkEnd + MAX_LINE_BYTES);
+            regionLength = (int) (regionEnd - regionStart);
+            lastRegion = regionEnd == fileSize;
+            end = (int) (chunkEnd - regionStart);
+        }
+
+        private void scan(LineHandler handler) throws IOException {
+            buffer = new byte[regionLength];
+            ByteBuffer target = ByteBuffer.wrap(buffer);
+            while (target.hasRemaining())
+                if (channel.read(target, regionStart + target.position()) < 0)
+                    throw new IOException("Unexpected end of the MaraCluster results at -- " + (regionStart + target.position()));
+            try {
+                scanLines(handler);
+            } finally {
+                buffer = null;
+            }
+        }
+
+        private void scanLines(LineHandler handler) throws IOException {
+            int limit = buffer.length;
+            int position = 0;
+            if (regionStart > 0) {
+                // The byte before the chunk tells if a line starts at the beginning of the chunk.
+                while (position < limit && buffer[position] != '\n')
+                    position++;
+                position++;
+            }
+            int lastFile = -1;
+            int lastFileStart = 0;
+            int lastFileLength = 0;
+            while (position < end) {
+                // Line end and tabs in one pass over the bytes of the line.
+                int firstTab = -1;
+                int secondTab = -1;
+                boolean extraTab = false;
+                int lineEnd = position;
+                for (; lineEnd < limit; lineEnd++) {
+                    byte value = buffer[lineEnd];
+                    if (value == '\n')
+                        break;
+                    if (value == '\t') {
+                        if (firstTab < 0)
+                            firstTab = lineEnd;
+                        else if (secondTab < 0)
+                            secondTab = lineEnd;
+                        else
+                            extraTab = true;
+                    }
+                }
+                if (lineEnd == limit && !lastRegion)
+                    throw new IOException("Line longer than " + MAX_LINE_BYTES + " bytes in the MaraCluster results at -- " + (regionStart + position));
+
+                if (secondTab >= 0 && !extraTab) {
+                    int fileStart = skipBlanks(position, firstTab);
+                    int fileEnd = trimBlanks(fileStart, firstTab);
+                    int indexStart = skipBlanks(firstTab + 1, secondTab);
+                    int indexEnd = trimBlanks(indexStart, secondTab);
+                    int clusterStart = skipBlanks(secondTab + 1, lineEnd);
+                    int clusterEnd = trimBlanks(clusterStart, lineEnd);
+                    if (fileStart < fileEnd && indexStart < indexEnd && clusterStart < clusterEnd) {
+                        // Consecutive lines usually have the same spectrum file, compare the bytes before decoding.
+                        if (lastFile < 0 || !sameBytes(lastFileStart, lastFileLength, fileStart, fileEnd - fileStart)) {
+                            lastFile = localFile(fileStart, fileEnd);
+                            lastFileStart = fileStart;
+                            lastFileLength = fileEnd - fileStart;
+                        }
+                        handler.line(lastFile, parseInt(indexStart, indexEnd), parseInt(clusterStart, clusterEnd));
+                    }
+                }
+                position = lineEnd + 1;
+            }
+        }
+
+        private int localFile(int from, int to) {
+            String file = new String(buffer, from, to - from, StandardCharsets.UTF_8);
+            int localFile = files.indexOf(file);
+            if (localFile < 0) {
+                localFile = files.size();
+                files.add(file);
+                if (localFile >= maxIndexes.length)
+                    maxIndexes = Arrays.copyOf(maxIndexes, maxIndexes.length * 2);
+            }
+            return localFile;
+        }
+
+        private boolean sameBytes(int first, int firstLength, int second, int secondLength) {
+            if (firstLength != secondLength)
+                return false;
+            for (int i = 0; i < firstLength; i++)
+                if (buffer[first + i] != buffer[second + i])
+                    return false;
+            return true;
+        }
+
+        private int skipBlanks(int from, int to) {
+            while (from < to && isBlank(buffer[from]))
+                from++;
+            return from;
+        }
+
+        private int trimBlanks(int from, int to) {
+            while (to > from && isBlank(buffer[to - 1]))
+                to--;
+            return to;
+        }
+
+        private static boolean isBlank(byte value) {
+            return value == ' ' || value == '\r';
+        }
+
+        private int parseInt(int from, int to) throws IOException {
+            long value = 0;
+            for (int i = from; i < to; i++) {
+                int digit = buffer[i] - '0';
+                if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE)
+                    throw new IOException("Invalid number in the MaraCluster results at -- " + (regionStart + from));
+                value = value * 10 + digit;
+            }
+            if (value > Integer.MAX_VALUE)
+                throw new IOException("Invalid number in the MaraCluster results at -- " + (regionStart + from));
+            return (int) value;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.pride.archive.dataprovider.data.spectra.BinaryArchiveSpectrum;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * Persistent state of the clusters of a project, used to add new spectra to an existing inference without
+ * clustering and evaluating the whole project again. The state contains:
+ * <ul>
+ *     <li>The assignment table: a {@link ClusterAggregationEngine} row for each clustered spectrum, with the archive
+ *     spectra file and the offset where the spectrum can be read again.</li>
+ *     <li>The summary of each cluster: the precursor and peak vector of the spectrum new spectra are compared with,
+ *     the representative psm selected by the inference and the protein accessions of that psm.</li>
+ * </ul>
+ * The state is saved in a directory with {@link #save(File)} and read with {@link #load(File)}. Each save writes a
+ * new generation sub-directory and then switches the CURRENT file to it, so a save that fails leaves the previous
+ * generation as the state.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class ClusterState implements Closeable {
+
+    private static final String SOURCES_FILE = "sources.txt";
+    private static final String ROWS_FILE = "rows.bin";
+    private static final String CLUSTERS_FILE = "clusters.bin";
+    private static final String CURRENT_FILE = "CURRENT";
+    private static final String GENERATION_PREFIX = "generation-";
+    private static final int FORMAT_VERSION = 2;
+    private static final int READ_BATCH_SIZE = 2000;
+
+    // Key of the precursor index: charge (4 bits), precursor m/z in 1e-4 units (27 bits) and cluster id (32 bits).
+    private static final double MZ_UNITS = 1e4;
+    private static final long MZ_MASK = (1L << 27) - 1;
+    private static final int CHARGE_SHIFT = 59;
+    private static final int MZ_SHIFT = 32;
+
+    private final List<String> sources = new ArrayList<>();
+    private final ClusterAggregationEngine rows;
+    private int[] rowSources = new int[1024];
+    private long[] rowOffsets = new long[1024];
+
+    private final Map<Integer, ClusterSummary> clusters = new HashMap<>();
+    private final TreeSet<Long> precursorIndex = new TreeSet<>();
+    private int nextClusterId = 0;
+
+    private final Map<Integer, PrideJsonRandomAccess> readers = new HashMap<>();
+
+    /**
+     * Summary of one cluster.
+     */
+    private static final class ClusterSummary {
+        private int charge;
+        private double mz = Double.NaN;
+        private PeakVector vector;
+        private int representativeRow = -1;
+        private List<String> proteins = Collections.emptyList();
+    }
+
+    private ClusterState(ClusterAggregationEngine rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * State of the clusters of an inference over one archive spectra file.
+     * @param source archive spectra file
+     * @param offsets offsets of the spectra of the file, see {@link PrideJsonRandomAccess#getOffsets()}
+     * @param engine clustered spectra of the file, the ordinals are positions in the file
+     * @return ClusterState
+     */
+    public static ClusterState create(String source, long[] offsets, ClusterAggregationEngine engine) {
+        ClusterState state = new ClusterState(engine);
+        state.sources.add(new File(source).getAbsolutePath());
+        state.rowSources = new int[engine.size()];
+        state.rowOffsets = new long[engine.size()];
+        for (int row = 0; row < engine.size(); row++) {
+            state.rowOffsets[row] = offsets[engine.getOrdinal(row)];
+            int clusterId = engine.getClusterId(row);
+            state.clusters.computeIfAbsent(clusterId, id -> new ClusterSummary());
+            state.nextClusterId = Math.max(state.nextClusterId, clusterId + 1);
+        }
+        return state;
+    }
+
+    /**
+     * Register a new archive spectra file.
+     * @param source archive spectra file
+     * @return id of the file in the rows
+     */
+    public int addSource(String source) {
+        sources.add(new File(source).getAbsolutePath());
+        return sources.size() - 1;
+    }
+
+    /**
+     * Add a clustered spectrum.
+     * @return row of the spectrum
+     */
+    public int addRow(int source, int ordinal, long offset, int clusterId, String peptidoform, boolean isDecoy,
+                      double score) {
+        int row = rows.size();
+        rows.add(ordinal, clusterId, peptidoform, isDecoy, score);
+        if (row >= rowSources.length) {
+            rowSources = Arrays.copyOf(rowSources, Math.max(rowSources.length * 2, row + 1));
+            rowOffsets = Arrays.copyOf(rowOffsets, rowSources.length);
+        }
+        rowSources[row] = source;
+        rowOffsets[row] = offset;
+        return row;
+    }
+
+    /**
+     * Find the cluster a new spectrum belongs to, the most similar of the clusters that accept it.
+     * @return cluster id, -1 if no cluster accepts the spectrum
+     */
+    public int findCluster(SpectrumClusteringEngine engine, int charge, double mz, PeakVector vector) {
+        if (vector == null || Double.isNaN(mz))
+            return -1;
+        double tolerance = engine.tolerance(mz);
+        long from = precursorKey(charge, mz - tolerance, 0);
+        long to = precursorKey(charge, mz + tolerance, 0xFFFFFFFFL);
+        int best = -1;
+        double bestSimilarity = -1;
+        for (long key : precursorIndex.subSet(from, true, to, true)) {
+            int clusterId = (int) key;
+            ClusterSummary summary = clusters.get(clusterId);
+            double similarity = engine.similarity(charge, mz, vector, summary.charge, summary.mz, summary.vector);
+            if (similarity > bestSimilarity) {
+                best = clusterId;
+                bestSimilarity = similarity;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Open a new cluster with the given spectrum as the spectrum new spectra are compared with.
+     * @return id of the new cluster
+     */
+    public int newCluster(int charge, double mz, PeakVector vector) {
+        int clusterId = nextClusterId++;
+        ClusterSummary summary = new ClusterSummary();
+        clusters.put(clusterId, summary);
+        setPrecursor(clusterId, summary, charge, mz, vector);
+        return clusterId;
+    }
+
+    private void setPrecursor(int clusterId, ClusterSummary summary, int charge, double mz, PeakVector vector) {
+        summary.charge = charge;
+        summary.mz = mz;
+        summary.vector = vector;
+        if (vector != null && !Double.isNaN(mz))
+            precursorIndex.add(precursorKey(charge, mz, clusterId));
+    }
+
+    private static long precursorKey(int charge, double mz, long clusterId) {
+        long units = Math.max(0, Math.min(MZ_MASK, Math.round(mz * MZ_UNITS)));
+        return ((long) charge << CHARGE_SHIFT) | (units << MZ_SHIFT) | clusterId;
+    }
+
+    /**
+     * Select the representatives of some clusters with the {@link ClusterAggregationEngine} rules and keep them,
+     * with their protein accessions, in the cluster summaries. Clusters that have no spectrum to compare new spectra
+     * with take the representative.
+     * @param engine engine used to compute the peak vectors
+     * @param clusterFilter clusters to evaluate
+     * @return rows of the representatives in ascending order
+     * @throws IOException
+     */
+    public int[] selectRepresentatives(SpectrumClusteringEngine engine, IntPredicate clusterFilter) throws IOException {
+        int[] selected = rows.selectRepresentativeRows(clusterFilter);
+        for (int row : selected) {
+            ClusterSummary summary = clusters.get(rows.getClusterId(row));
+            summary.representativeRow = row;
+            summary.proteins = Collections.emptyList();
+        }
+
+        // The representatives are read for their proteins and, in clusters without precursor, as the spectrum
+        // new spectra are compared with.
+        for (int start = 0; start < selected.length; start += READ_BATCH_SIZE) {
+            int[] batch = Arrays.copyOfRange(selected, start, Math.min(selected.length, start + READ_BATCH_SIZE));
+            List<BinaryArchiveSpectrum> spectra = readRows(batch);
+            for (int i = 0; i < batch.length; i++) {
+                BinaryArchiveSpectrum spectrum = spectra.get(i);
+                if (spectrum == null)
+                    continue;
+                int clusterId = rows.getClusterId(batch[i]);
+                ClusterSummary summary = clusters.get(clusterId);
+                if (spectrum.getProteinAccessions() != null)
+                    summary.proteins = new ArrayList<>(spectrum.getProteinAccessions());
+                if (summary.vector == null && Double.isNaN(summary.mz) && spectrum.getPrecursorMz() != null)
+                    setPrecursor(clusterId, summary, SpectrumClusteringEngine.clampCharge(spectrum.getPrecursorCharge()),
+                            spectrum.getPrecursorMz(), engine.vectorize(spectrum.getMasses(), spectrum.getIntensities()));
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Protein accessions of the representatives of some clusters.
+     * @param clusterIds clusters
+     * @return protein accessions
+     */
+    public Set<String> getProteins(Collection<Integer> clusterIds) {
+        Set<String> proteins = new HashSet<>();
+        for (Integer clusterId : clusterIds) {
+            ClusterSummary summary = clusters.get(clusterId);
+            if (summary != null)
+                proteins.addAll(summary.proteins);
+        }
+        return proteins;
+    }
+
+    /**
+     * Representatives of all the clusters that support at least one of the proteins.
+     * @param proteins protein accessions
+     * @return rows of the representatives in ascending order
+     */
+    public int[] getRepresentativeRows(Set<String> proteins) {
+        return clusters.values().stream()
+                .filter(summary -> summary.representativeRow >= 0)
+                .filter(summary -> summary.proteins.stream().anyMatch(proteins::contains))
+                .mapToInt(summary -> summary.representativeRow)
+                .sorted()
+                .toArray();
+    }
+
+    /**
+     * Read the spectra of some rows from their archive spectra files.
+     * @param batch rows
+     * @return spectra in the order of the rows, null for the spectra that can't be read
+     * @throws IOException
+     */
+    public List<BinaryArchiveSpectrum> readRows(int[] batch) throws IOException {
+        Map<Integer, List<Integer>> bySource = new TreeMap<>();
+        for (int i = 0; i < batch.length; i++)
+            bySource.computeIfAbsent(rowSources[batch[i]], source -> new ArrayList<>()).add(i);
+        List<BinaryArchiveSpectrum> spectra = new ArrayList<>(Collections.nCopies(batch.length, null));
+        for (Map.Entry<Integer, List<Integer>> source : bySource.entrySet()) {
+            PrideJsonRandomAccess reader = readers.get(source.getKey());
+            if (reader == null) {
+                reader = new PrideJsonRandomAccess(sources.get(source.getKey()));
+                readers.put(source.getKey(), reader);
+            }
+            long[] offsets = source.getValue().stream().mapToLong(i -> rowOffsets[batch[i]]).toArray();
+            List<BinaryArchiveSpectrum> sourceSpectra = reader.readArchiveSpectraAt(offsets);
+            for (int i = 0; i < offsets.length; i++)
+                spectra.set(source.getValue().get(i), sourceSpectra.get(i));
+        }
+        return spectra;
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    public int getClusterCount() {
+        return clusters.size();
+    }
+
+    /**
+     * Write the state in a directory. The files are written in a new generation sub-directory and the generation
+     * becomes the state when the CURRENT file, replaced with an atomic move, points to it. A failure before that
+     * leaves the previous generation in use, older generations are deleted after the switch.
+     * @param directory state directory
+     * @throws IOException
+     */
+    public void save(File directory) throws IOException {
+        Files.createDirectories(directory.toPath());
+        String current = readCurrentGeneration(directory);
+        int generation = current == null ? 1 : Integer.parseInt(current.substring(GENERATION_PREFIX.length())) + 1;
+        File generationDirectory = new File(directory, GENERATION_PREFIX + generation);
+        // Left by a save that failed before the switch.
+        deleteDirectory(generationDirectory);
+        Files.createDirectories(generationDirectory.toPath());
+
+        Files.write(new File(generationDirectory, SOURCES_FILE).toPath(), sources, StandardCharsets.UTF_8);
+
+        File rowsFile = new File(generationDirectory, ROWS_FILE);
+        try (FileOutputStream file = new FileOutputStream(rowsFile);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file, 1 << 20))) {
+            output.writeInt(FORMAT_VERSION);
+            rows.save(output);
+            for (int row = 0; row < rows.size(); row++) {
+                output.writeInt(rowSources[row]);
+                output.writeLong(rowOffsets[row]);
+            }
+            output.flush();
+            file.getFD().sync();
+        }
+
+        File clustersFile = new File(generationDirectory, CLUSTERS_FILE);
+        try (FileOutputStream file = new FileOutputStream(clustersFile);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file, 1 << 20))) {
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(nextClusterId);
+            output.writeInt(clusters.size());
+            for (Map.Entry<Integer, ClusterSummary> entry : clusters.entrySet()) {
+                ClusterSummary summary = entry.getValue();
+                output.writeInt(entry.getKey());
+                output.writeInt(summary.charge);
+                output.writeDouble(summary.mz);
+                output.writeBoolean(summary.vector != null);
+                if (summary.vector != null)
+                    summary.vector.save(output);
+                output.writeInt(summary.representativeRow);
+                output.writeInt(summary.proteins.size());
+                for (String protein : summary.proteins)
+                    output.writeUTF(protein);
+            }
+            output.flush();
+            file.getFD().sync();
+        }
+
+        // Switch to the new generation, this is the commit point of the save.
+        File currentTmp = new File(directory, CURRENT_FILE + ".tmp");
+        Files.write(currentTmp.toPath(), generationDirectory.getName().getBytes(StandardCharsets.UTF_8));
+        Files.move(currentTmp.toPath(), new File(directory, CURRENT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        File[] generations = directory.listFiles(file -> file.isDirectory() && file.getName().startsWith(GENERATION_PREFIX));
+        if (generations != null) {
+            for (File old : generations) {
+                if (!old.equals(generationDirectory))
+                    deleteDirectory(old);
+            }
+        }
+        log.info(String.format("Cluster state saved in %s -- %d spectra, %d clusters, %d archive spectra files",
+                generationDirectory.getAbsolutePath(), rows.size(), clusters.size(), sources.size()));
+    }
+
+    /**
+     * Name of the generation sub-directory the CURRENT file points to.
+     * @return generation name, null if the directory has no saved state
+     */
+    private static String readCurrentGeneration(File directory) throws IOException {
+        File current = new File(directory, CURRENT_FILE);
+        if (!current.exists())
+            return null;
+        String generation = new String(Files.readAllBytes(current.toPath()), StandardCharsets.UTF_8).trim();
+        if (!generation.matches(GENERATION_PREFIX + "\\d+"))
+            throw new IOException("Corrupted cluster state, CURRENT is -- " + generation);
+        return generation;
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                if (!file.delete())
+                    log.warn("Cluster state file can't be deleted --- " + file.getAbsolutePath());
+        }
+        if (directory.exists() && !directory.delete())
+            log.warn("Cluster state directory can't be deleted --- " + directory.getAbsolutePath());
+    }
+
+    /**
+     * Read a state written with {@link #save(File)}.
+     * @param stateDirectory state directory, the generation read is the one CURRENT points to
+     * @return ClusterState
+     * @throws IOException
+     */
+    public static ClusterState load(File stateDirectory) throws IOException {
+        String generation = readCurrentGeneration(stateDirectory);
+        if (generation == null)
+            throw new IOException("No cluster state saved in -- " + stateDirectory.getAbsolutePath());
+        File directory = new File(stateDirectory, generation);
+        ClusterState state;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(directory, ROWS_FILE)), 1 << 20))) {
+            checkVersion(input.readInt(), directory);
+            state = new ClusterState(ClusterAggregationEngine.load(input));
+            state.rowSources = new int[state.rows.size()];
+            state.rowOffsets = new long[state.rows.size()];
+            for (int row = 0; row < state.rows.size(); row++) {
+                state.rowSources[row] = input.readInt();
+                state.rowOffsets[row] = input.readLong();
+            }
+        }
+        state.sources.addAll(Files.readAllLines(new File(directory, SOURCES_FILE).toPath(), StandardCharsets.UTF_8));
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(directory, CLUSTERS_FILE)), 1 << 20))) {
+            checkVersion(input.readInt(), directory);
+            state.nextClusterId = input.readInt();
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                int clusterId = input.readInt();
+                ClusterSummary summary = new ClusterSummary();
+                state.clusters.put(clusterId, summary);
+                int charge = input.readInt();
+                double mz = input.readDouble();
+                PeakVector vector = input.readBoolean() ? PeakVector.load(input) : null;
+                state.setPrecursor(clusterId, summary, charge, mz, vector);
+                summary.representativeRow = input.readInt();
+                int proteins = input.readInt();
+                summary.proteins = new ArrayList<>(proteins);
+                for (int p = 0; p < proteins; p++)
+                    summary.proteins.add(input.readUTF());
+            }
+        }
+        log.info(String.format("Cluster state read from %s -- %d spectra, %d clusters, %d archive spectra files",
+                directory.getAbsolutePath(), state.rows.size(), state.clusters.size(), state.sources.size()));
+        return state;
+    }
+
+    private static void checkVersion(int version, File directory) throws IOException {
+        if (version != FORMAT_VERSION)
+            throw new IOException("Unsupported cluster state version " + version + " in -- " + directory.getAbsolutePath());
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (PrideJsonRandomAccess reader : readers.values())
+            reader.close();
+        readers.clear();
+    }
+}
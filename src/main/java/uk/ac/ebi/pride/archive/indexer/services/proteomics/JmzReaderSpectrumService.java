@@ -5,7 +5,6 @@ import uk.ac.ebi.pride.archive.indexer.utility.SubmissionPipelineUtils;
 import uk.ac.ebi.pride.tools.jmzreader.JMzReader;
 import uk.ac.ebi.pride.tools.jmzreader.JMzReaderException;
 import uk.ac.ebi.pride.tools.jmzreader.model.Spectrum;
-import uk.ac.ebi.pride.tools.mgf_parser.MgfFile;
 import uk.ac.ebi.pride.tools.mzdata_wrapper.MzMlWrapper;
 import uk.ac.ebi.pride.tools.mzxml_parser.MzXMLFile;
 import uk.ac.ebi.pride.tools.mzxml_parser.MzXMLParsingException;
@@ -14,6 +13,7 @@ import uk.ac.ebi.pride.tools.pride_wrapper.PRIDEXmlWrapper;
 import uk.ac.ebi.pride.utilities.util.Tuple;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -25,6 +25,9 @@ public class JmzReaderSpectrumService {
     // Map of all readers containing the spectra
     final Map<String, JMzReader> readers;
 
+    // MGF files are read with the memory-mapped reader
+    final Map<String, MappedMgfReader> mgfReaders;
+
     /**
      * Create a service from a list of files with the corresponding file types {@link uk.ac.ebi.pride.archive.indexer.utility.SubmissionPipelineUtils.FileType}
      * @param spectrumFileList List of Tuple of filePath and corresponding file type
@@ -33,12 +36,13 @@ public class JmzReaderSpectrumService {
      */
     private JmzReaderSpectrumService(List<Tuple<String, SubmissionPipelineUtils.FileType>> spectrumFileList) throws JMzReaderException, MzXMLParsingException {
         this.readers = new HashMap<>();
+        this.mgfReaders = new HashMap<>();
         for (Tuple<String, SubmissionPipelineUtils.FileType> entry : spectrumFileList) {
             String key = entry.getKey();
             SubmissionPipelineUtils.FileType value = entry.getValue();
 
             if (value == SubmissionPipelineUtils.FileType.MGF) {
-                this.readers.put(key, new MgfFile(new File(key)));
+                this.mgfReaders.put(key, MappedMgfReader.open(new File(key)));
             }
             if (value == SubmissionPipelineUtils.FileType.PRIDE) {
                 this.readers.put(key, new PRIDEXmlWrapper(new File(key)));
@@ -67,6 +71,8 @@ public class JmzReaderSpectrumService {
     }
 
     public Spectrum getSpectrumById(String filePath, String id) throws JMzReaderException {
+        if (mgfReaders.containsKey(filePath))
+            return mgfReaders.get(filePath).getSpectrumById(id);
         JMzReader reader = readers.get(filePath);
         try{
             if(id.startsWith("scan="))
@@ -121,11 +127,25 @@ public class JmzReaderSpectrumService {
         JMzReader reader = readers.get(filePath);
         try{
             int index = Integer.parseInt(id);
+            if (mgfReaders.containsKey(filePath))
+                return mgfReaders.get(filePath).getSpectrumByIndex(index);
             return reader.getSpectrumByIndex(index);
         }catch (Exception e){
             throw new JMzReaderException("Error parsing the following Accession -- " + id);
         }
     }
 
+    /**
+     * Close the memory-mapped MGF files.
+     */
+    public void close() {
+        for (MappedMgfReader reader : mgfReaders.values()) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                log.debug("Error closing the MGF reader -- " + e.getMessage());
+            }
+        }
+    }
 
 }
\ No newline at end of file
@@ -0,0 +1,556 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.pride.archive.indexer.utility.AppCacheManager;
+import uk.ac.ebi.pride.tools.jmzreader.JMzReaderException;
+import uk.ac.ebi.pride.tools.jmzreader.model.Spectrum;
+import uk.ac.ebi.pride.tools.jmzreader.model.impl.ParamGroup;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * MGF reader over a memory-mapped file, used by {@link JmzReaderSpectrumService} instead of jmzReader's MgfFile.
+ * The offsets of the BEGIN IONS lines are found with a byte search over the mapped file and saved next to the file
+ * (or in the scratch directory when the folder is read only) as {@code <file>.offsets}, the index is reused while the
+ * size and modification time of the file do not change. A spectrum is parsed from its bytes: PEPMASS, CHARGE,
+ * RTINSECONDS and the peaks, the numbers with a float parser that doesn't create strings.
+ *
+ * The spectra are numbered from 1 in file order, as in MgfFile, and the id of a spectrum is its number.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class MappedMgfReader implements Closeable {
+
+    private static final byte[] BEGIN_IONS = "BEGIN IONS".getBytes(StandardCharsets.US_ASCII);
+    private static final long INDEX_MAGIC = 0x4d47464f46465331L;   // MGFOFFS1
+    private static final String INDEX_EXTENSION = ".offsets";
+
+    /** Size of the mapped regions, each one overlaps the next one by MAX_SPECTRUM_BYTES. */
+    private static final long REGION_BYTES = 1L << 30;
+    private static final long MAX_SPECTRUM_BYTES = 1L << 26;
+
+    /** Powers of ten exact as doubles, a mantissa of up to 15 digits times or divided by one is correctly rounded. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final long fileLength;
+    private final MappedByteBuffer[] regions;
+    private long[] offsets;
+    private volatile boolean closed;
+
+    private MappedMgfReader(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.fileLength = channel.size();
+        int regionCount = (int) Math.max(1, (fileLength + REGION_BYTES - 1) / REGION_BYTES);
+        this.regions = new MappedByteBuffer[regionCount];
+        for (int i = 0; i < regionCount; i++) {
+            long start = i * REGION_BYTES;
+            regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(fileLength - start, REGION_BYTES + MAX_SPECTRUM_BYTES));
+        }
+    }
+
+    /**
+     * Open an MGF file, the index is read from its offsets file or built and saved.
+     * @param file MGF file, not compressed
+     * @return MappedMgfReader
+     * @throws JMzReaderException if the file can't be read
+     */
+    public static MappedMgfReader open(File file) throws JMzReaderException {
+        try {
+            long start = System.currentTimeMillis();
+            MappedMgfReader reader = new MappedMgfReader(file);
+            File indexFile = reader.loadIndex();
+            if (indexFile != null) {
+                log.info(String.format("MGF index reused from -- %s (%d spectra)", indexFile.getAbsolutePath(), reader.offsets.length));
+            } else {
+                reader.offsets = reader.scanOffsets();
+                reader.saveIndex();
+                log.info(String.format("MGF index -- %s, %d spectra, %d ms", file.getAbsolutePath(), reader.offsets.length,
+                        System.currentTimeMillis() - start));
+            }
+            return reader;
+        } catch (IOException e) {
+            throw new JMzReaderException("Error reading the MGF file -- " + file.getAbsolutePath() + " -- " + e.getMessage());
+        }
+    }
+
+    /**
+     * Spectrum by its number in the file.
+     * @param index number of the spectrum, the first one is 1
+     * @return Spectrum, null if there is no spectrum with that number
+     * @throws JMzReaderException if the spectrum can't be parsed
+     */
+    public Spectrum getSpectrumByIndex(int index) throws JMzReaderException {
+        if (closed)
+            throw new JMzReaderException("The MGF file is closed -- " + file.getAbsolutePath());
+        if (index < 1 || index > offsets.length)
+            return null;
+        long start = offsets[index - 1];
+        long end = index < offsets.length ? offsets[index] : fileLength;
+        try {
+            return parseSpectrum(String.valueOf(index), slice(start, end));
+        } catch (IOException | RuntimeException e) {
+            throw new JMzReaderException("Error parsing the spectrum " + index + " of the MGF file -- " + file.getAbsolutePath() + " -- " + e.getMessage());
+        }
+    }
+
+    /**
+     * Spectrum by its id, the id is the number of the spectrum in the file.
+     * @param id number of the spectrum
+     * @return Spectrum, null if the id is not a spectrum number
+     * @throws JMzReaderException if the spectrum can't be parsed
+     */
+    public Spectrum getSpectrumById(String id) throws JMzReaderException {
+        try {
+            return getSpectrumByIndex(Integer.parseInt(id.trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public int getSpectraCount() {
+        return offsets.length;
+    }
+
+    public List<String> getSpectraIds() {
+        List<String> ids = new ArrayList<>(offsets.length);
+        for (int i = 1; i <= offsets.length; i++)
+            ids.add(String.valueOf(i));
+        return ids;
+    }
+
+    /**
+     * Close the file and unmap its regions, the spectra can't be read after it. It must not be called while other
+     * threads read spectra, the bytes of an unmapped region can't be accessed.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+        for (int i = 0; i < regions.length; i++) {
+            if (regions[i] != null)
+                unmap(regions[i]);
+            regions[i] = null;
+        }
+    }
+
+    /**
+     * Release a mapping without waiting for the garbage collector, with the cleaner of the buffer in Java 8 or
+     * Unsafe.invokeCleaner in Java 9 and later. If neither can be used the mapping is released when the buffer is
+     * collected.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("The MGF mapping is released by the garbage collector -- " + e.getMessage());
+        }
+    }
+
+    /**
+     * Bytes of the file between two positions, from the mapped region that contains them.
+     */
+    private ByteBuffer slice(long start, long end) throws IOException {
+        int region = (int) (start / REGION_BYTES);
+        long regionStart = region * REGION_BYTES;
+        if (end - regionStart <= regions[region].capacity()) {
+            ByteBuffer buffer = regions[region].duplicate();
+            ((Buffer) buffer).limit((int) (end - regionStart));
+            ((Buffer) buffer).position((int) (start - regionStart));
+            return buffer.slice();
+        }
+        // Spectrum bigger than the overlap of the regions
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    }
+
+    /**
+     * Offsets of the BEGIN IONS lines, the lines can start with spaces.
+     */
+    private long[] scanOffsets() {
+        long[] found = new long[1 << 16];
+        int count = 0;
+        // The regions are scanned without their overlap, so the state of the line continues in the next region
+        boolean lineStart = true;
+        for (int region = 0; region < regions.length; region++) {
+            ByteBuffer buffer = regions[region].duplicate();
+            long regionStart = region * REGION_BYTES;
+            int limit = (int) Math.min(buffer.capacity(), REGION_BYTES);
+            int capacity = buffer.capacity();
+            for (int i = 0; i < limit; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    lineStart = true;
+                } else if (lineStart && (b == ' ' || b == '\t' || b == '\r')) {
+                    // leading spaces of the line
+                } else {
+                    if (lineStart && b == 'B' && matches(buffer, i, capacity)) {
+                        if (count == found.length)
+                            found = Arrays.copyOf(found, count * 2);
+                        found[count++] = regionStart + i;
+                    }
+                    lineStart = false;
+                }
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private static boolean matches(ByteBuffer buffer, int position, int limit) {
+        if (position + BEGIN_IONS.length > limit)
+            return false;
+        for (int j = 1; j < BEGIN_IONS.length; j++)
+            if (buffer.get(position + j) != BEGIN_IONS[j])
+                return false;
+        return true;
+    }
+
+    /**
+     * Read the offsets file of the MGF if it matches the size and modification time of the file.
+     * @return offsets file, null if there is no valid one
+     */
+    private File loadIndex() {
+        for (File indexFile : indexFiles()) {
+            if (!indexFile.exists())
+                continue;
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 1 << 16))) {
+                if (input.readLong() != INDEX_MAGIC || input.readLong() != fileLength || input.readLong() != file.lastModified())
+                    continue;
+                long[] stored = new long[input.readInt()];
+                for (int i = 0; i < stored.length; i++)
+                    stored[i] = input.readLong();
+                offsets = stored;
+                return indexFile;
+            } catch (IOException e) {
+                log.warn("The MGF index can't be read -- " + indexFile.getAbsolutePath() + " -- " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Save the offsets next to the MGF, or in the scratch directory if the folder of the MGF is read only.
+     */
+    private void saveIndex() {
+        for (File indexFile : indexFiles()) {
+            File temporary = new File(indexFile.getAbsolutePath() + ".tmp");
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))) {
+                output.writeLong(INDEX_MAGIC);
+                output.writeLong(fileLength);
+                output.writeLong(file.lastModified());
+                output.writeInt(offsets.length);
+                for (long offset : offsets)
+                    output.writeLong(offset);
+            } catch (IOException e) {
+                log.debug("The MGF index can't be written -- " + indexFile.getAbsolutePath() + " -- " + e.getMessage());
+                temporary.delete();
+                continue;
+            }
+            if (temporary.renameTo(indexFile) || (indexFile.delete() && temporary.renameTo(indexFile)))
+                return;
+            temporary.delete();
+        }
+        log.warn("The MGF index can't be saved -- " + file.getAbsolutePath());
+    }
+
+    private List<File> indexFiles() {
+        File scratchIndex = new File(AppCacheManager.getScratchDirectory(), file.getName() + "-"
+                + Integer.toHexString(file.getAbsolutePath().hashCode()) + INDEX_EXTENSION);
+        return Arrays.asList(new File(file.getAbsolutePath() + INDEX_EXTENSION), scratchIndex);
+    }
+
+    /**
+     * Parse the lines of a spectrum, from BEGIN IONS to END IONS.
+     */
+    static MgfSpectrum parseSpectrum(String id, ByteBuffer buffer) {
+        MgfSpectrum spectrum = new MgfSpectrum(id);
+        double[] mz = new double[256];
+        double[] intensity = new double[256];
+        int peaks = 0;
+        int limit = buffer.limit();
+        int position = buffer.position();
+        double[] number = new double[1];
+
+        while (position < limit) {
+            int lineEnd = position;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n')
+                lineEnd++;
+            int start = skipSpaces(buffer, position, lineEnd);
+            int end = lineEnd;
+            while (end > start && isSpace(buffer.get(end - 1)))
+                end--;
+            position = lineEnd + 1;
+            if (start == end)
+                continue;
+
+            byte first = buffer.get(start);
+            if ((first >= '0' && first <= '9') || first == '.' || first == '-' || first == '+') {
+                int next = parseNumber(buffer, start, end, number);
+                if (next < 0)
+                    continue;
+                double peakMz = number[0];
+                next = skipSpaces(buffer, next, end);
+                double peakIntensity = 0;
+                if (next < end && parseNumber(buffer, next, end, number) >= 0)
+                    peakIntensity = number[0];
+                if (peaks == mz.length) {
+                    mz = Arrays.copyOf(mz, peaks * 2);
+                    intensity = Arrays.copyOf(intensity, peaks * 2);
+                }
+                mz[peaks] = peakMz;
+                intensity[peaks] = peakIntensity;
+                peaks++;
+            } else if (startsWith(buffer, start, end, "END IONS")) {
+                break;
+            } else if (startsWith(buffer, start, end, "PEPMASS=")) {
+                int next = parseNumber(buffer, start + 8, end, number);
+                if (next >= 0) {
+                    spectrum.precursorMz = number[0];
+                    next = skipSpaces(buffer, next, end);
+                    if (next < end && parseNumber(buffer, next, end, number) >= 0)
+                        spectrum.precursorIntensity = number[0];
+                }
+            } else if (startsWith(buffer, start, end, "CHARGE=")) {
+                spectrum.precursorCharge = parseCharge(buffer, start + 7, end);
+            } else if (startsWith(buffer, start, end, "RTINSECONDS=")) {
+                if (parseNumber(buffer, start + 12, end, number) >= 0)
+                    spectrum.retentionTime = number[0];
+            } else if (startsWith(buffer, start, end, "TITLE=")) {
+                byte[] title = new byte[end - start - 6];
+                for (int i = 0; i < title.length; i++)
+                    title[i] = buffer.get(start + 6 + i);
+                spectrum.title = new String(title, StandardCharsets.UTF_8);
+            }
+        }
+        spectrum.mz = Arrays.copyOf(mz, peaks);
+        spectrum.intensity = Arrays.copyOf(intensity, peaks);
+        return spectrum;
+    }
+
+    /**
+     * First charge of a CHARGE line such as 2+, 3- or "2+ and 3+".
+     */
+    private static Integer parseCharge(ByteBuffer buffer, int start, int end) {
+        int i = skipSpaces(buffer, start, end);
+        int charge = 0;
+        boolean digits = false;
+        while (i < end && buffer.get(i) >= '0' && buffer.get(i) <= '9') {
+            charge = charge * 10 + (buffer.get(i) - '0');
+            digits = true;
+            i++;
+        }
+        if (!digits)
+            return null;
+        return i < end && buffer.get(i) == '-' ? -charge : charge;
+    }
+
+    /**
+     * Parse a decimal number such as 445.1203, -1.5e-3 or 1E5. The fast path multiplies or divides a mantissa of up to
+     * 15 significant digits by an exact power of ten, which gives the same double as {@link Double#parseDouble(String)}.
+     * Longer mantissas or larger scales are parsed with {@link Double#parseDouble(String)}.
+     * @param buffer bytes
+     * @param start first byte of the number
+     * @param end end of the line
+     * @param result the number is written in result[0]
+     * @return position after the number, -1 if there is no number at start
+     */
+    static int parseNumber(ByteBuffer buffer, int start, int end, double[] result) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = 0;
+        boolean any = false;
+        while (i < end && buffer.get(i) >= '0' && buffer.get(i) <= '9') {
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (buffer.get(i) - '0');
+                if (mantissa > 0)
+                    digits++;
+            } else {
+                decimals--;
+            }
+            any = true;
+            i++;
+        }
+        if (i < end && buffer.get(i) == '.') {
+            i++;
+            while (i < end && buffer.get(i) >= '0' && buffer.get(i) <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (buffer.get(i) - '0');
+                    if (mantissa > 0)
+                        digits++;
+                    decimals++;
+                }
+                any = true;
+                i++;
+            }
+        }
+        if (!any)
+            return -1;
+        int exponent = 0;
+        if (i < end && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+            int j = i + 1;
+            boolean negativeExponent = false;
+            if (j < end && (buffer.get(j) == '-' || buffer.get(j) == '+')) {
+                negativeExponent = buffer.get(j) == '-';
+                j++;
+            }
+            int value = 0;
+            boolean exponentDigits = false;
+            while (j < end && buffer.get(j) >= '0' && buffer.get(j) <= '9') {
+                value = Math.min(value * 10 + (buffer.get(j) - '0'), 10000);
+                exponentDigits = true;
+                j++;
+            }
+            if (exponentDigits) {
+                exponent = negativeExponent ? -value : value;
+                i = j;
+            }
+        }
+        int scale = exponent - decimals;
+        if (digits <= MAX_EXACT_DIGITS && scale > -POWERS_OF_TEN.length && scale < POWERS_OF_TEN.length) {
+            double value = scale >= 0 ? mantissa * POWERS_OF_TEN[scale] : mantissa / POWERS_OF_TEN[-scale];
+            result[0] = negative ? -value : value;
+            return i;
+        }
+        byte[] text = new byte[i - start];
+        for (int k = 0; k < text.length; k++)
+            text[k] = buffer.get(start + k);
+        result[0] = Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+        return i;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int start, int end, String prefix) {
+        if (end - start < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++)
+            if (Character.toUpperCase((char) buffer.get(start + i)) != prefix.charAt(i))
+                return false;
+        return true;
+    }
+
+    private static int skipSpaces(ByteBuffer buffer, int start, int end) {
+        while (start < end && isSpace(buffer.get(start)))
+            start++;
+        return start;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * Spectrum of an MGF file, the peaks are kept in arrays and the peak list map is built when it is requested.
+     */
+    public static class MgfSpectrum implements Spectrum {
+
+        private final String id;
+        private String title;
+        private Double precursorMz;
+        private Double precursorIntensity;
+        private Integer precursorCharge;
+        private Double retentionTime;
+        private double[] mz;
+        private double[] intensity;
+
+        MgfSpectrum(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public Integer getPrecursorCharge() {
+            return precursorCharge;
+        }
+
+        @Override
+        public Double getPrecursorMZ() {
+            return precursorMz;
+        }
+
+        @Override
+        public Double getPrecursorIntensity() {
+            return precursorIntensity;
+        }
+
+        @Override
+        public Map<Double, Double> getPeakList() {
+            Map<Double, Double> peaks = new LinkedHashMap<>(mz.length * 2);
+            for (int i = 0; i < mz.length; i++)
+                peaks.put(mz[i], intensity[i]);
+            return peaks;
+        }
+
+        @Override
+        public Integer getMsLevel() {
+            return 2;
+        }
+
+        @Override
+        public ParamGroup getAdditional() {
+            return null;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        /**
+         * Retention time of the RTINSECONDS line.
+         * @return retention time in seconds, null if the spectrum has no RTINSECONDS
+         */
+        public Double getRetentionTime() {
+            return retentionTime;
+        }
+
+        public double[] getMzValues() {
+            return mz;
+        }
+
+        public double[] getIntensityValues() {
+            return intensity;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Reads an mzIdentML with StAX into {@link ResultFileIdentifications} without building the object model of the file.
+ * The peptides, peptide evidences and protein accessions of the sequence collection stay on heap, they scale with the
+ * number of peptides and proteins, and each SpectrumIdentificationItem is written to the {@link PsmRecordStore} when
+ * its SpectrumIdentificationResult ends. All the items are read as PSMs, as PIA does with the top identifications
+ * filter disabled. A PSM is decoy when all its peptide evidences are decoy.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class MzIdentMLPsmReader {
+
+    private static final String MASCOT_QUERY_NUMBER = "MS:1001528";
+    private static final String RETENTION_TIME = "MS:1000894";
+    private static final String SCAN_START_TIME = "MS:1000016";
+
+    private final ResultFileIdentifications identifications;
+
+    private final Map<String, String> proteinAccessions = new HashMap<>();
+    private final Map<String, Peptide> peptides = new HashMap<>();
+    private final Map<String, PeptideEvidence> peptideEvidences = new HashMap<>();
+    private final Map<String, Integer> spectraDataIndexes = new HashMap<>();
+    private final Set<String> queryNumberSpectraData = new HashSet<>();
+    private final Map<String, Integer> scoreIndexes = new HashMap<>();
+    private String rankingScoreAccession;
+
+    private MzIdentMLPsmReader(ResultFileIdentifications identifications) {
+        this.identifications = identifications;
+    }
+
+    private static class Peptide {
+        private String sequence;
+        private final Map<Integer, String> modifications = new HashMap<>();
+    }
+
+    private static class PeptideEvidence {
+        private final String peptideRef;
+        private final String accession;
+        private final boolean decoy;
+
+        private PeptideEvidence(String peptideRef, String accession, boolean decoy) {
+            this.peptideRef = peptideRef;
+            this.accession = accession;
+            this.decoy = decoy;
+        }
+    }
+
+    /** SpectrumIdentificationItem waiting for the end of its SpectrumIdentificationResult. */
+    private static class Item {
+        private String id;
+        private String peptideRef;
+        private Integer charge;
+        private double expMassToCharge = Double.NaN;
+        private double calcMassToCharge = Double.NaN;
+        private final List<String> peptideEvidenceRefs = new ArrayList<>();
+        private final Map<Integer, Double> scores = new HashMap<>();
+    }
+
+    /**
+     * Read the PSMs of an mzIdentML file.
+     * @param resultFile mzIdentML file, not compressed
+     * @return ResultFileIdentifications, to be closed by the caller
+     * @throws IOException
+     */
+    public static ResultFileIdentifications read(String resultFile) throws IOException {
+        ResultFileIdentifications identifications = new ResultFileIdentifications(new PsmRecordStore("mzid-"));
+        MzIdentMLPsmReader reader = new MzIdentMLPsmReader(identifications);
+        try (InputStream input = new BufferedInputStream(new FileInputStream(resultFile), 1 << 16)) {
+            reader.parse(input);
+        } catch (XMLStreamException e) {
+            identifications.close();
+            throw new IOException("Error reading the mzIdentML -- " + resultFile, e);
+        } catch (IOException | RuntimeException e) {
+            identifications.close();
+            throw e;
+        }
+        log.info(String.format("mzIdentML PSMs -- %d, decoys -- %d, peptides -- %d, proteins -- %d, ranking score -- %s",
+                identifications.getPsmCount(), identifications.getDecoyCount(), reader.peptides.size(),
+                reader.proteinAccessions.size(), identifications.getRankingScore()));
+        return identifications;
+    }
+
+    private void parse(InputStream input) throws XMLStreamException, IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XMLStreamReader reader = factory.createXMLStreamReader(input);
+
+        Peptide peptide = null;
+        boolean inModification = false;
+        int modificationLocation = -1;
+        String spectraDataId = null;
+        String spectrumResultData = null;
+        String spectrumId = null;
+        Double retentionTime = null;
+        List<Item> items = new ArrayList<>();
+        Item item = null;
+
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "DBSequence":
+                            proteinAccessions.put(reader.getAttributeValue(null, "id"), reader.getAttributeValue(null, "accession"));
+                            break;
+                        case "Peptide":
+                            peptide = new Peptide();
+                            peptides.put(reader.getAttributeValue(null, "id"), peptide);
+                            break;
+                        case "PeptideSequence":
+                            if (peptide != null)
+                                peptide.sequence = reader.getElementText().trim();
+                            break;
+                        case "Modification":
+                            inModification = peptide != null;
+                            String location = reader.getAttributeValue(null, "location");
+                            modificationLocation = location == null ? -1 : Integer.parseInt(location);
+                            break;
+                        case "PeptideEvidence":
+                            peptideEvidences.put(reader.getAttributeValue(null, "id"), new PeptideEvidence(
+                                    reader.getAttributeValue(null, "peptide_ref"),
+                                    proteinAccessions.get(reader.getAttributeValue(null, "dBSequence_ref")),
+                                    "true".equalsIgnoreCase(reader.getAttributeValue(null, "isDecoy"))));
+                            break;
+                        case "SpectraData":
+                            spectraDataId = reader.getAttributeValue(null, "id");
+                            int msRun = spectraDataIndexes.size() + 1;
+                            spectraDataIndexes.put(spectraDataId, msRun);
+                            identifications.getMsRunLocations().put(msRun, reader.getAttributeValue(null, "location"));
+                            break;
+                        case "SpectrumIdentificationResult":
+                            spectrumResultData = reader.getAttributeValue(null, "spectraData_ref");
+                            spectrumId = reader.getAttributeValue(null, "spectrumID");
+                            retentionTime = null;
+                            items.clear();
+                            break;
+                        case "SpectrumIdentificationItem":
+                            item = new Item();
+                            item.id = reader.getAttributeValue(null, "id");
+                            item.peptideRef = reader.getAttributeValue(null, "peptide_ref");
+                            String charge = reader.getAttributeValue(null, "chargeState");
+                            item.charge = charge == null ? null : Integer.parseInt(charge);
+                            item.expMassToCharge = parseDouble(reader.getAttributeValue(null, "experimentalMassToCharge"));
+                            item.calcMassToCharge = parseDouble(reader.getAttributeValue(null, "calculatedMassToCharge"));
+                            items.add(item);
+                            break;
+                        case "PeptideEvidenceRef":
+                            if (item != null)
+                                item.peptideEvidenceRefs.add(reader.getAttributeValue(null, "peptideEvidence_ref"));
+                            break;
+                        case "cvParam":
+                            String accession = reader.getAttributeValue(null, "accession");
+                            if (accession == null)
+                                break;
+                            if (inModification && modificationLocation >= 0) {
+                                if (!peptide.modifications.containsKey(modificationLocation)
+                                        || "UNIMOD".equalsIgnoreCase(reader.getAttributeValue(null, "cvRef")))
+                                    peptide.modifications.put(modificationLocation, accession);
+                                String name = reader.getAttributeValue(null, "name");
+                                if (name != null)
+                                    identifications.getModificationNames().putIfAbsent(accession, name);
+                            } else if (spectraDataId != null && MASCOT_QUERY_NUMBER.equals(accession)) {
+                                queryNumberSpectraData.add(spectraDataId);
+                            } else if (item != null) {
+                                addScore(item, accession, reader.getAttributeValue(null, "cvRef"),
+                                        reader.getAttributeValue(null, "name"), reader.getAttributeValue(null, "value"));
+                            } else if (spectrumId != null && (RETENTION_TIME.equals(accession) || SCAN_START_TIME.equals(accession))) {
+                                double time = parseDouble(reader.getAttributeValue(null, "value"));
+                                if (!Double.isNaN(time))
+                                    retentionTime = "minute".equalsIgnoreCase(reader.getAttributeValue(null, "unitName")) ? time * 60 : time;
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "Peptide":
+                            peptide = null;
+                            break;
+                        case "Modification":
+                            inModification = false;
+                            break;
+                        case "SpectraData":
+                            spectraDataId = null;
+                            break;
+                        case "SpectrumIdentificationItem":
+                            item = null;
+                            break;
+                        case "SpectrumIdentificationResult":
+                            for (Item resultItem : items)
+                                identifications.add(createPsm(resultItem, spectrumResultData, spectrumId, retentionTime));
+                            items.clear();
+                            spectrumId = null;
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void addScore(Item item, String accession, String cvRef, String name, String value) {
+        double score = parseDouble(value);
+        if (Double.isNaN(score))
+            return;
+        Integer index = scoreIndexes.get(accession);
+        if (index == null) {
+            index = scoreIndexes.size() + 1;
+            scoreIndexes.put(accession, index);
+            identifications.getSearchEngineScores().put(index, new String[]{cvRef, accession, name, null});
+        }
+        item.scores.put(index, score);
+        // The ranking score is the preferred score of the first PSM with a known score.
+        int preference = ResultFileIdentifications.getRankingPreference(accession);
+        if (preference >= 0 && identifications.getPsmCount() == 0 && (rankingScoreAccession == null
+                || preference < ResultFileIdentifications.getRankingPreference(rankingScoreAccession))) {
+            rankingScoreAccession = accession;
+            identifications.setRankingScore(name);
+        }
+    }
+
+    private ResultFilePsm createPsm(Item item, String spectraDataRef, String spectrumId, Double retentionTime) {
+        Peptide peptide = peptides.get(item.peptideRef);
+        String sequence = peptide == null ? null : peptide.sequence;
+        Map<Integer, String> modifications = peptide == null ? new HashMap<>() : peptide.modifications;
+
+        double[] scores = new double[scoreIndexes.size()];
+        Arrays.fill(scores, Double.NaN);
+        item.scores.forEach((index, score) -> scores[index - 1] = score);
+
+        String reference = spectrumId;
+        if (reference != null && queryNumberSpectraData.contains(spectraDataRef) && reference.startsWith("query="))
+            reference = "index=" + reference.substring("query=".length());
+        Integer msRun = spectraDataIndexes.get(spectraDataRef);
+
+        ResultFilePsm psm = new ResultFilePsm(item.id, sequence, modifications, item.charge, item.expMassToCharge,
+                item.calcMassToCharge, retentionTime, msRun == null ? -1 : msRun, reference, scores);
+
+        // Decoy when all the peptide evidences are decoy, as in PIA and MzTabPsmReader
+        boolean known = false;
+        boolean decoy = true;
+        for (String evidenceRef : item.peptideEvidenceRefs) {
+            PeptideEvidence evidence = peptideEvidences.get(evidenceRef);
+            if (evidence == null)
+                continue;
+            psm.addAccession(evidence.accession);
+            known = true;
+            decoy &= evidence.decoy;
+        }
+        psm.setDecoy(known && decoy);
+
+        Integer rankingIndex = rankingScoreAccession == null ? null : scoreIndexes.get(rankingScoreAccession);
+        if (rankingIndex != null && item.scores.containsKey(rankingIndex))
+            psm.setRankingScore(item.scores.get(rankingIndex));
+        return psm;
+    }
+
+    private static double parseDouble(String value) {
+        if (value == null)
+            return Double.NaN;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the metadata and the PSM section of an mzTab in one pass into {@link ResultFileIdentifications}: the ms_run
+ * locations, the fixed and variable modifications, the psm_search_engine_score definitions and the PSMs. The
+ * consecutive rows of the same PSM that map to different proteins are merged in one PSM. As in PIA and
+ * {@link MzIdentMLPsmReader}, a PSM is decoy when all its rows are decoy, a peptide shared by a target and a decoy
+ * protein is a target.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class MzTabPsmReader {
+
+    private static final Pattern INDEXED_KEY = Pattern.compile("(\\w+)\\[(\\d+)](?:-(\\S+))?");
+
+    /** PSM columns of quantms and OpenMS with a score where lower is better, used when no known score is declared. */
+    private static final List<String> RANKING_COLUMNS = Arrays.asList("opt_global_q-value",
+            "opt_global_Posterior_Error_Probability_score");
+
+    static final List<String> DECOY_COLUMNS = Arrays.asList("opt_global_cv_MS:1002217_decoy_peptide",
+            "opt_global_decoy");
+
+    private MzTabPsmReader() {
+    }
+
+    /**
+     * Read the metadata and the PSMs of an mzTab file, the protein and peptide sections are skipped.
+     * @param resultFile mzTab file, not compressed
+     * @return ResultFileIdentifications, to be closed by the caller
+     * @throws IOException
+     */
+    public static ResultFileIdentifications read(String resultFile) throws IOException {
+        ResultFileIdentifications mzTab = new ResultFileIdentifications(new PsmRecordStore("mztab-"));
+        try {
+            Map<String, Integer> header = null;
+            int rankingScoreIndex = -1;
+            String rankingScoreAccession = null;
+            int rankingScoreColumn = -1;
+            int decoyColumn = -1;
+            ResultFilePsm previous = null;
+            String previousKey = null;
+            boolean previousDecoyKnown = false;
+            boolean previousAllDecoy = true;
+
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(resultFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("MTD")) {
+                        readMetadata(mzTab, line.split("\t"));
+                    } else if (line.startsWith("PSH")) {
+                        header = new HashMap<>();
+                        String[] columns = line.split("\t");
+                        for (int i = 0; i < columns.length; i++)
+                            header.put(columns[i].trim(), i);
+                        for (Map.Entry<Integer, String[]> entry : mzTab.getSearchEngineScores().entrySet()) {
+                            int preference = ResultFileIdentifications.getRankingPreference(entry.getValue()[1]);
+                            if (preference >= 0 && (rankingScoreAccession == null
+                                    || preference < ResultFileIdentifications.getRankingPreference(rankingScoreAccession))) {
+                                rankingScoreIndex = entry.getKey();
+                                rankingScoreAccession = entry.getValue()[1];
+                                mzTab.setRankingScore(entry.getValue()[2]);
+                            }
+                        }
+                        if (rankingScoreIndex < 0) {
+                            for (String column : RANKING_COLUMNS)
+                                if (header.containsKey(column)) {
+                                    rankingScoreColumn = header.get(column);
+                                    mzTab.setRankingScore(column);
+                                    break;
+                                }
+                        }
+                        for (String column : DECOY_COLUMNS)
+                            if (header.containsKey(column)) {
+                                decoyColumn = header.get(column);
+                                break;
+                            }
+                    } else if (line.startsWith("PSM") && header != null) {
+                        String[] values = line.split("\t", -1);
+                        String psmId = value(values, header.get("PSM_ID"));
+                        String spectraRef = value(values, header.get("spectra_ref"));
+                        String key = psmId + "\t" + spectraRef;
+                        if (!key.equals(previousKey)) {
+                            if (previous != null)
+                                mzTab.add(previous);
+                            previous = createPsm(mzTab, values, header, psmId, spectraRef);
+                            previousKey = key;
+                            previousDecoyKnown = false;
+                            previousAllDecoy = true;
+                            double ranking = Double.NaN;
+                            if (rankingScoreIndex > 0 && rankingScoreIndex <= previous.getSearchEngineScores().length)
+                                ranking = previous.getSearchEngineScores()[rankingScoreIndex - 1];
+                            else if (rankingScoreColumn >= 0)
+                                ranking = parseDouble(value(values, rankingScoreColumn));
+                            previous.setRankingScore(ranking);
+                        }
+                        String accession = value(values, header.get("accession"));
+                        previous.addAccession(accession);
+                        if (decoyColumn >= 0) {
+                            String decoy = value(values, decoyColumn);
+                            previousAllDecoy &= "1".equals(decoy) || "true".equalsIgnoreCase(decoy);
+                            previousDecoyKnown = true;
+                        } else if (accession != null) {
+                            previousAllDecoy &= isDecoyAccession(accession);
+                            previousDecoyKnown = true;
+                        }
+                        previous.setDecoy(previousDecoyKnown && previousAllDecoy);
+                    }
+                }
+            }
+            if (previous != null)
+                mzTab.add(previous);
+        } catch (IOException | RuntimeException e) {
+            mzTab.close();
+            throw e;
+        }
+
+        log.info(String.format("mzTab PSMs -- %d, decoys -- %d, ranking score -- %s", mzTab.getPsmCount(),
+                mzTab.getDecoyCount(), mzTab.getRankingScore()));
+        return mzTab;
+    }
+
+    private static void readMetadata(ResultFileIdentifications mzTab, String[] values) {
+        if (values.length < 3)
+            return;
+        Matcher matcher = INDEXED_KEY.matcher(values[1].trim());
+        if (!matcher.matches())
+            return;
+        String element = matcher.group(1);
+        int index = Integer.parseInt(matcher.group(2));
+        String property = matcher.group(3);
+        String value = values[2].trim();
+        if ("ms_run".equals(element) && "location".equals(property)) {
+            mzTab.getMsRunLocations().put(index, value);
+        } else if (("fixed_mod".equals(element) || "variable_mod".equals(element)) && property == null) {
+            String[] param = parseParam(value);
+            if (param != null && param[1] != null && param[2] != null)
+                mzTab.getModificationNames().put(param[1], param[2]);
+        } else if ("psm_search_engine_score".equals(element) && property == null) {
+            String[] param = parseParam(value);
+            if (param != null)
+                mzTab.getSearchEngineScores().put(index, param);
+        }
+    }
+
+    private static ResultFilePsm createPsm(ResultFileIdentifications mzTab, String[] values, Map<String, Integer> header,
+                                           String psmId, String spectraRef) {
+        int scoreCount = mzTab.getSearchEngineScores().isEmpty() ? 0 : Collections.max(mzTab.getSearchEngineScores().keySet());
+        double[] scores = new double[scoreCount];
+        for (int i = 0; i < scoreCount; i++)
+            scores[i] = parseDouble(value(values, header.get("search_engine_score[" + (i + 1) + "]")));
+
+        // Only the first spectrum of a PSM is used, the references of several spectra are separated by |
+        int msRun = -1;
+        String reference = null;
+        if (spectraRef != null) {
+            String first = spectraRef.split("\\|")[0];
+            int colon = first.indexOf(':');
+            Matcher matcher = INDEXED_KEY.matcher(colon < 0 ? first : first.substring(0, colon));
+            if (colon > 0 && matcher.matches()) {
+                msRun = Integer.parseInt(matcher.group(2));
+                reference = first.substring(colon + 1);
+            } else
+                reference = first;
+        }
+
+        String charge = value(values, header.get("charge"));
+        double retentionTime = parseDouble(value(values, header.get("retention_time")));
+        String sequence = value(values, header.get("sequence"));
+        return new ResultFilePsm(psmId, sequence, parseModifications(value(values, header.get("modifications"))),
+                charge == null ? null : (int) Math.round(Double.parseDouble(charge)),
+                parseDouble(value(values, header.get("exp_mass_to_charge"))),
+                parseDouble(value(values, header.get("calc_mass_to_charge"))),
+                Double.isNaN(retentionTime) ? null : retentionTime, msRun, reference, scores);
+    }
+
+    /**
+     * Parse the modifications column, for example 3-UNIMOD:35,5[MS,MS:1001876,modification probability,0.8]-UNIMOD:21.
+     * Ambiguous positions keep the first one, neutral losses and modifications without position are ignored.
+     */
+    static Map<Integer, String> parseModifications(String value) {
+        Map<Integer, String> modifications = new HashMap<>();
+        if (value == null || "0".equals(value))
+            return modifications;
+        for (String modification : splitOutsideBrackets(value, ',')) {
+            int dash = indexOutsideBrackets(modification, '-');
+            if (dash <= 0)
+                continue;
+            String accession = modification.substring(dash + 1).trim();
+            if (accession.startsWith("["))
+                continue;
+            int end = 0;
+            while (end < dash && Character.isDigit(modification.charAt(end)))
+                end++;
+            if (end == 0)
+                continue;
+            modifications.putIfAbsent(Integer.parseInt(modification.substring(0, end)), accession);
+        }
+        return modifications;
+    }
+
+    private static List<String> splitOutsideBrackets(String value, char separator) {
+        List<String> parts = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '[')
+                depth++;
+            else if (c == ']')
+                depth--;
+            else if (c == separator && depth == 0) {
+                parts.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(value.substring(start));
+        return parts;
+    }
+
+    private static int indexOutsideBrackets(String value, char character) {
+        int depth = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '[')
+                depth++;
+            else if (c == ']')
+                depth--;
+            else if (c == character && depth == 0)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Parse a CV parameter of the metadata such as [MS, MS:1002354, PSM-level q-value, ].
+     * @return label, accession, name and value, null for empty parts
+     */
+    private static String[] parseParam(String value) {
+        if (!value.startsWith("[") || !value.endsWith("]"))
+            return null;
+        String[] parts = value.substring(1, value.length() - 1).split(",", 4);
+        String[] param = new String[4];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim();
+            param[i] = part.isEmpty() ? null : part;
+        }
+        return param;
+    }
+
+    private static String value(String[] values, Integer column) {
+        if (column == null || column >= values.length)
+            return null;
+        String value = values[column].trim();
+        return value.isEmpty() || "null".equalsIgnoreCase(value) ? null : value;
+    }
+
+    private static double parseDouble(String value) {
+        if (value == null)
+            return Double.NaN;
+        try {
+            return Double.parseDouble(value.split("\\|")[0]);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    static boolean isDecoyAccession(String accession) {
+        String upper = accession.toUpperCase();
+        return upper.startsWith("DECOY_") || upper.startsWith("REV_");
+    }
+}
@@ -15,6 +15,7 @@ import de.mpc.pia.modeller.score.FDRData;
 import de.mpc.pia.modeller.score.ScoreModelEnum;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.FilenameUtils;
+import uk.ac.ebi.pride.archive.indexer.utility.AppCacheManager;
 import uk.ac.ebi.pride.archive.indexer.utility.SubmissionPipelineUtils;
 
 
@@ -22,7 +23,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 @Slf4j
 public class PIAModelerService {
@@ -45,15 +45,11 @@ public class PIAModelerService {
 
     }
 
-    public Map<String, Object> performProteinInference(Map<String, Object> objectMap, List<String> filePaths, SubmissionPipelineUtils.FileType fileType,
-                                                       double psmQThreshold, double proteinQThreshold) throws IOException {
+    public PIAModeller performProteinInference(List<String> filePaths, SubmissionPipelineUtils.FileType fileType,
+                                               double psmQThreshold, double proteinQThreshold) throws IOException {
 
-        if (objectMap == null)
-            objectMap = new HashMap<>();
         PIAModeller piaModeller = computeFDRPSMLevel(filePaths, fileType);
-        piaModeller = performInference(piaModeller, psmQThreshold, proteinQThreshold);
-        objectMap.put("modeller", piaModeller);
-        return objectMap;
+        return performInference(piaModeller, psmQThreshold, proteinQThreshold);
 
     }
 
@@ -164,11 +160,7 @@ public class PIAModelerService {
         PIAModeller piaModeller = null;
         PIACompiler piaCompiler = new PIASimpleCompiler();
 
-        String type = InputFileParserFactory.InputFileTypes.MZTAB_INPUT.getFileTypeShort();
-        if(fileType == SubmissionPipelineUtils.FileType.MZID)
-           type = InputFileParserFactory.InputFileTypes.MZIDENTML_INPUT.getFileTypeShort();
-
-        piaCompiler.getDataFromFile(assayKey, filePath, null, type);
+        piaCompiler.getDataFromFile(assayKey, filePath, null, getInputFileType(fileType));
 
         piaCompiler.buildClusterList();
         piaCompiler.buildIntermediateStructure();
@@ -176,14 +168,7 @@ public class PIAModelerService {
         if (piaCompiler.getAllPeptideSpectrumMatcheIDs() != null
                 && !piaCompiler.getAllPeptideSpectrumMatcheIDs().isEmpty()) {
 
-            File inferenceTempFile = File.createTempFile(assayKey, ".tmp");
-            piaCompiler.writeOutXML(inferenceTempFile);
-            piaCompiler.finish();
-            piaModeller = new PIAModeller(inferenceTempFile.getAbsolutePath());
-
-            if (inferenceTempFile.exists()) {
-                inferenceTempFile.deleteOnExit();
-            }
+            piaModeller = buildModeller(piaCompiler, "pia-" + assayKey + "-");
         }
         return piaModeller;
     }
@@ -193,12 +178,23 @@ public class PIAModelerService {
         PIAModeller piaModeller = null;
         PIACompiler piaCompiler = new PIASimpleCompiler();
 
-        String type = InputFileParserFactory.InputFileTypes.MZTAB_INPUT.getFileTypeShort();
-        if(fileType == SubmissionPipelineUtils.FileType.MZID)
-            type = InputFileParserFactory.InputFileTypes.MZIDENTML_INPUT.getFileTypeShort();
-
-        String finalType = type;
-        filePath.forEach(x -> piaCompiler.getDataFromFile(FilenameUtils.getName(x), x, null, finalType));
+        // The PIA compiler is not thread safe and can't merge compilations, the files are added one by one.
+        int compiledFiles = 0;
+        for (int i = 0; i < filePath.size(); i++) {
+            String file = filePath.get(i);
+            SubmissionPipelineUtils.FileType type = SubmissionPipelineUtils.FileType.getFileTypeFromFileName(file);
+            if (type != SubmissionPipelineUtils.FileType.MZID && type != SubmissionPipelineUtils.FileType.MZTAB)
+                type = fileType;
+            long start = System.currentTimeMillis();
+            if (piaCompiler.getDataFromFile(FilenameUtils.getName(file), file, null, getInputFileType(type)))
+                compiledFiles++;
+            else
+                log.warn("The result file can't be read by PIA -- " + file);
+            log.info(String.format("Result file %d of %d compiled in %d ms, %d PSMs in total -- %s", i + 1, filePath.size(),
+                    System.currentTimeMillis() - start, piaCompiler.getAllPeptideSpectrumMatcheIDs().size(), file));
+        }
+        if (compiledFiles < filePath.size())
+            log.warn(String.format("Only %d of %d result files were compiled", compiledFiles, filePath.size()));
 
         piaCompiler.buildClusterList();
         piaCompiler.buildIntermediateStructure();
@@ -206,16 +202,34 @@ public class PIAModelerService {
         if (piaCompiler.getAllPeptideSpectrumMatcheIDs() != null
                 && !piaCompiler.getAllPeptideSpectrumMatcheIDs().isEmpty()) {
 
-            File inferenceTempFile = File.createTempFile("pia_compiler_temp", ".xml");
-            piaCompiler.writeOutXML(inferenceTempFile);
-            piaCompiler.finish();
-            piaModeller = new PIAModeller(inferenceTempFile.getAbsolutePath());
-
-            if (inferenceTempFile.exists()) {
-                inferenceTempFile.deleteOnExit();
-            }
+            piaModeller = buildModeller(piaCompiler, "pia-compiler-");
         }
         return piaModeller;
     }
 
+    private static String getInputFileType(SubmissionPipelineUtils.FileType fileType) {
+        if (fileType == SubmissionPipelineUtils.FileType.MZID)
+            return InputFileParserFactory.InputFileTypes.MZIDENTML_INPUT.getFileTypeShort();
+        return InputFileParserFactory.InputFileTypes.MZTAB_INPUT.getFileTypeShort();
+    }
+
+    /**
+     * Hand the compiled intermediate structure to a new {@link PIAModeller}. PIA only builds the modeller from a file,
+     * the intermediate XML is written to the scratch directory and removed as soon as the modeller has read it.
+     * @param piaCompiler compiler with the intermediate structure built
+     * @param prefix prefix of the intermediate file
+     * @return PIAModeller
+     * @throws IOException
+     */
+    private PIAModeller buildModeller(PIACompiler piaCompiler, String prefix) throws IOException {
+        File inferenceTempFile = File.createTempFile(prefix, ".xml", AppCacheManager.getScratchDirectory());
+        try {
+            piaCompiler.writeOutXML(inferenceTempFile);
+            piaCompiler.finish();
+            return new PIAModeller(inferenceTempFile.getAbsolutePath());
+        } finally {
+            if (!inferenceTempFile.delete() && inferenceTempFile.exists())
+                log.warn("The PIA intermediate file can't be deleted -- " + inferenceTempFile.getAbsolutePath());
+        }
+    }
 }
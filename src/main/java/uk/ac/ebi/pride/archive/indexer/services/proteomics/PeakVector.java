@@ -0,0 +1,61 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Sparse peak vector of a spectrum with the bins in ascending order and unit norm, built by
+ * {@link SpectrumClusteringEngine#vectorize(Double[], Double[])}.
+ *
+ * @author ypriverol
+ */
+public final class PeakVector {
+
+    private final int[] bins;
+    private final float[] weights;
+
+    PeakVector(int[] bins, float[] weights) {
+        this.bins = bins;
+        this.weights = weights;
+    }
+
+    /**
+     * Cosine similarity, the dot product of the two unit vectors.
+     * @param other vector to compare with
+     * @return similarity between 0 and 1
+     */
+    public double cosine(PeakVector other) {
+        double dot = 0;
+        int i = 0;
+        int j = 0;
+        while (i < bins.length && j < other.bins.length) {
+            if (bins[i] == other.bins[j])
+                dot += weights[i++] * (double) other.weights[j++];
+            else if (bins[i] < other.bins[j])
+                i++;
+            else
+                j++;
+        }
+        return dot;
+    }
+
+    public void save(DataOutput output) throws IOException {
+        output.writeShort(bins.length);
+        for (int i = 0; i < bins.length; i++) {
+            output.writeInt(bins[i]);
+            output.writeFloat(weights[i]);
+        }
+    }
+
+    public static PeakVector load(DataInput input) throws IOException {
+        int size = input.readUnsignedShort();
+        int[] bins = new int[size];
+        float[] weights = new float[size];
+        for (int i = 0; i < size; i++) {
+            bins[i] = input.readInt();
+            weights[i] = input.readFloat();
+        }
+        return new PeakVector(bins, weights);
+    }
+}
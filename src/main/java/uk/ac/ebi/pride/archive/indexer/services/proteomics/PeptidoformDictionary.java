@@ -0,0 +1,131 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import uk.ac.ebi.pride.archive.indexer.utility.StringUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interning dictionary of peptide sequences and peptidoforms. Each distinct string gets an int id the first time
+ * it is seen. The isobaric form (L replaced by I, see {@link StringUtils#makePeptideIsobaric(String)}) is only
+ * interned when it is asked for with {@link #getIsobaricId(String)}, and it is computed once per distinct
+ * peptidoform, so two peptidoforms are isobaric when their isobaric ids are equal.
+ *
+ * The dictionary can be used from several threads: lookups of known strings don't lock and new strings only lock
+ * the bin of the concurrent map they are added to.
+ *
+ * @author ypriverol
+ */
+public class PeptidoformDictionary {
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Integer> isobaricIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    // Strings by id in pages of 4096, pages are never moved so they can be written while the index grows.
+    private volatile String[][] pages = new String[16][];
+
+    /**
+     * Id of a peptidoform, assigned if it is not in the dictionary yet.
+     * @param peptidoform peptide sequence or peptidoform
+     * @return id of the peptidoform
+     */
+    public int getId(String peptidoform) {
+        Integer id = ids.get(peptidoform);
+        if (id != null)
+            return id;
+        return ids.computeIfAbsent(peptidoform, value -> {
+            int newId = nextId.getAndIncrement();
+            store(newId, value);
+            return newId;
+        });
+    }
+
+    /**
+     * Id of the isobaric form of a peptidoform, the isobaric form is added to the dictionary if needed.
+     * @param peptidoform peptide sequence or peptidoform
+     * @return id of the isobaric form
+     */
+    public int getIsobaricId(String peptidoform) {
+        Integer id = isobaricIds.get(peptidoform);
+        if (id != null)
+            return id;
+        return isobaricIds.computeIfAbsent(peptidoform, value -> getId(StringUtils.makePeptideIsobaric(value)));
+    }
+
+    /**
+     * Peptidoform of an id.
+     * @param id id returned by this dictionary
+     * @return peptidoform
+     */
+    public String get(int id) {
+        return pages[id >>> PAGE_BITS][id & PAGE_MASK];
+    }
+
+    private void store(int id, String value) {
+        int page = id >>> PAGE_BITS;
+        String[][] current = pages;
+        if (page >= current.length || current[page] == null) {
+            synchronized (this) {
+                current = pages;
+                if (page >= current.length)
+                    current = Arrays.copyOf(current, Math.max(current.length * 2, page + 1));
+                if (current[page] == null)
+                    current[page] = new String[1 << PAGE_BITS];
+                pages = current;
+            }
+        }
+        current[page][id & PAGE_MASK] = value;
+    }
+
+    /**
+     * Write the dictionary, see {@link #load(DataInput)}. It must not be called while strings are added.
+     * @param output destination
+     * @throws IOException
+     */
+    public void save(DataOutput output) throws IOException {
+        int size = size();
+        output.writeInt(size);
+        for (int id = 0; id < size; id++) {
+            byte[] bytes = get(id).getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * Read a dictionary written with {@link #save(DataOutput)}, the ids are preserved.
+     * @param input source
+     * @return PeptidoformDictionary
+     * @throws IOException
+     */
+    public static PeptidoformDictionary load(DataInput input) throws IOException {
+        PeptidoformDictionary dictionary = new PeptidoformDictionary();
+        int size = input.readInt();
+        for (int i = 0; i < size; i++) {
+            byte[] bytes = new byte[input.readInt()];
+            input.readFully(bytes);
+            // The strings were written in id order, ids are assigned again in the same order.
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            if (dictionary.getId(value) != i)
+                throw new IOException("Corrupted peptidoform dictionary at -- " + i);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Number of distinct strings in the dictionary, including the isobaric forms that were asked for.
+     * @return size of the dictionary
+     */
+    public int size() {
+        return nextId.get();
+    }
+}
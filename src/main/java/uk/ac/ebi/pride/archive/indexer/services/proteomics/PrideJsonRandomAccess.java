@@ -1,32 +1,58 @@
 package uk.ac.ebi.pride.archive.indexer.services.proteomics;
 
 import lombok.extern.slf4j.Slf4j;
-import org.ehcache.Cache;
 import uk.ac.ebi.pride.archive.dataprovider.data.spectra.ArchiveSpectrum;
 import uk.ac.ebi.pride.archive.dataprovider.data.spectra.BinaryArchiveSpectrum;
 import uk.ac.ebi.pride.archive.indexer.utility.AppCacheManager;
+import uk.ac.ebi.pride.archive.indexer.utility.OffHeapStringLongMap;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.IntStream;
 
 /**
  * {@link PrideJsonRandomAccess} is a reader of the
  * {@link uk.ac.ebi.pride.archive.dataprovider.data.spectra.SummaryArchiveSpectrum}
  * json files.
  *
+ * The index is built sequentially by {@link #parseIndex()}. After that, the reads use positional reads on the
+ * file channel with per-thread buffers and no shared cursor, so the same instance can be used concurrently
+ * from any number of threads.
+ *
  * @author ypriverol
  */
 @Slf4j
 public class PrideJsonRandomAccess {
 
+    // Json files bigger than this keep the index in memory-mapped files instead of direct memory.
+    private static final long MAPPED_INDEX_FILE_SIZE = 4L * 1024 * 1024 * 1024;
+    private static final int LATENCY_SAMPLE = 10000;
+
+    // Batch reads merge records closer than the gap into one read of at most the coalesced size.
+    private static final long MAX_COALESCED_READ = 8 * 1024 * 1024;
+    private static final long MAX_COALESCED_GAP = 256 * 1024;
+    private static final int RECORD_READ_AHEAD = 64 * 1024;
+
     private final BufferedRandomAccessFile raf;
 
-    private final Cache<String, Long> index;
+    private final FileChannel channel;
+
+    private OffHeapStringLongMap index;
+
+    private final ThreadLocal<ByteBuffer> readBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(RECORD_READ_AHEAD));
 
     public PrideJsonRandomAccess(String fileAbsolutePath) throws IOException {
         this.raf = new BufferedRandomAccessFile(fileAbsolutePath, "r", 1024 * 100);
-        AppCacheManager appCacheManager = AppCacheManager.getInstance();
-        this.index = appCacheManager.getPrideJsonSpectra();
+        this.channel = raf.getChannel();
+        File indexDirectory = null;
+        if (raf.length() > MAPPED_INDEX_FILE_SIZE)
+            indexDirectory = new File(AppCacheManager.getScratchDirectory(), ".spectra-index-" + UUID.randomUUID());
+        this.index = new OffHeapStringLongMap(1 << 16, indexDirectory, true);
     }
 
     /**
@@ -40,16 +66,56 @@ public class PrideJsonRandomAccess {
 
         String line;
         long pos = raf.getFilePointer();
+        Set<ArchiveSpectrumMetadata.Field> usiField = EnumSet.of(ArchiveSpectrumMetadata.Field.USI);
 
         while( (line = raf.readLine()) != null){
             try {
-                BinaryArchiveSpectrum spectrum = BinaryArchiveSpectrum.readJson(line);
+                // Only the usi is decoded, the parse stops before the peaks.
+                ArchiveSpectrumMetadata spectrum = ArchiveSpectrumMetadata.readJson(line, usiField);
+                if (spectrum.getUsi() == null)
+                    throw new IOException("Spectrum without usi");
                 index.put(spectrum.getUsi(), pos);
             }catch (Exception e){
                 log.error("Error reading line --- " + line);
             }
             pos = raf.getFilePointer();
         }
+        logIndexStatistics();
+    }
+
+    /**
+     * Reuse the index stored in a file by a previous run or, if the file does not exist, build the index with
+     * {@link #parseIndex()} and store it in the file.
+     * @param indexFile file of the stored index
+     * @throws IOException
+     */
+    public void parseIndex(File indexFile) throws IOException {
+        if (indexFile.exists()) {
+            index.close();
+            index = OffHeapStringLongMap.load(indexFile);
+            log.info("Spectra index reused from -- " + indexFile.getAbsolutePath() + " (" + index.size() + " entries)");
+            return;
+        }
+        parseIndex();
+        index.save(indexFile);
+    }
+
+    /**
+     * Log the footprint of the index per entry and the average lookup latency measured on a sample of the keys.
+     */
+    private void logIndexStatistics() {
+        if (index.size() == 0)
+            return;
+        List<String> sample = new ArrayList<>();
+        for (Iterator<Map.Entry<String, Long>> it = index.iterator(); it.hasNext() && sample.size() < LATENCY_SAMPLE; )
+            sample.add(it.next().getKey());
+        long start = System.nanoTime();
+        long checksum = 0;
+        for (String usi : sample)
+            checksum += index.get(usi, -1);
+        long lookupNanos = (System.nanoTime() - start) / sample.size();
+        log.info(String.format("Spectra index -- %d entries, %d bytes/entry, %d ns/lookup (checksum %d)",
+                index.size(), index.bytesUsed() / index.size(), lookupNanos, checksum));
     }
 
     /**
@@ -60,11 +126,11 @@ public class PrideJsonRandomAccess {
      * @throws IOException
      */
     public BinaryArchiveSpectrum readArchiveSpectrum(String usi) throws IOException {
-        if(index.containsKey(usi)){
-            long pos = index.get(usi);
-            raf.seek(pos);
+        long pos = index.get(usi, -1);
+        if(pos >= 0){
+            String line = readLineAt(pos);
             try {
-                return  BinaryArchiveSpectrum.readJson(raf.readLine());
+                return  BinaryArchiveSpectrum.readJson(line);
             }catch (Exception e){
                 log.error("Error reading usi --- " + usi);
             }
@@ -73,15 +139,256 @@ public class PrideJsonRandomAccess {
     }
 
     /**
-     * Return all the spectra from the Json file
+     * Read the line starting at a given position with a positional read into the buffer of the current thread.
+     * @param position position of the line in the file
+     * @return line without the end of line characters, null if the position is at the end of the file.
+     */
+    private String readLineAt(long position) throws IOException {
+        ByteBuffer buffer = readBuffers.get();
+        ((Buffer) buffer).clear();
+        int filled = 0;
+        int end = -1;
+        while (end < 0) {
+            int read = channel.read(buffer, position + filled);
+            if (read < 0) {
+                if (filled == 0)
+                    return null;
+                end = filled;
+                break;
+            }
+            end = indexOfNewLine(buffer.array(), filled, filled + read);
+            filled += read;
+            if (end < 0 && !buffer.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                bigger.put(buffer.array(), 0, filled);
+                readBuffers.set(bigger);
+                buffer = bigger;
+            }
+        }
+        byte[] bytes = buffer.array();
+        if (end > 0 && bytes[end - 1] == '\r')
+            end--;
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a batch of {@link BinaryArchiveSpectrum} with the minimum number of disk accesses. The offsets of the
+     * usis are resolved and sorted, records that are close in the file are read with one large positional read
+     * and the json records are decoded in parallel.
      *
-     * @return List of usis
+     * @param usis identifiers of the spectra
+     * @return Map of usi and spectrum, iterated in the order of the provided usis. Usis not found are not included.
+     * @throws IOException
+     */
+    public Map<String, BinaryArchiveSpectrum> readArchiveSpectra(Collection<String> usis) throws IOException {
+        return readRecords(usis, (bytes, offset, length) ->
+                BinaryArchiveSpectrum.readJson(new String(bytes, offset, length, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Read a batch of spectra like {@link #readArchiveSpectra(Collection)} but only decode the requested metadata
+     * fields, the peaks and the rest of the record are skipped by the streaming parser.
+     *
+     * @param usis identifiers of the spectra
+     * @param fields fields to decode
+     * @return Map of usi and metadata, iterated in the order of the provided usis. Usis not found are not included.
+     * @throws IOException
+     */
+    public Map<String, ArchiveSpectrumMetadata> readArchiveSpectraMetadata(Collection<String> usis,
+                                                                          Set<ArchiveSpectrumMetadata.Field> fields) throws IOException {
+        return readRecords(usis, (bytes, offset, length) -> ArchiveSpectrumMetadata.readJson(bytes, offset, length, fields));
+    }
+
+    /**
+     * Decoder of one json record stored in a region of a buffer.
+     */
+    @FunctionalInterface
+    private interface RecordDecoder<T> {
+        T decode(byte[] bytes, int offset, int length) throws Exception;
+    }
+
+    private <T> Map<String, T> readRecords(Collection<String> usis, RecordDecoder<T> decoder) throws IOException {
+
+        List<String> found = new ArrayList<>();
+        List<Long> foundOffsets = new ArrayList<>();
+        for (String usi : new LinkedHashSet<>(usis)) {
+            long pos = index.get(usi, -1);
+            if (pos >= 0) {
+                found.add(usi);
+                foundOffsets.add(pos);
+            }
+        }
+
+        List<T> records = readRecordsAt(foundOffsets.stream().mapToLong(Long::longValue).toArray(), decoder);
+        Map<String, T> result = new LinkedHashMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            if (records.get(i) != null)
+                result.put(found.get(i), records.get(i));
+            else
+                log.error("Error reading usi --- " + found.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Read and decode the records at the given offsets. The offsets are sorted, records that are close in the file
+     * are read with one large positional read and the records are decoded in parallel.
+     * @return records in the order of the offsets, null for the records that can't be decoded
+     */
+    private <T> List<T> readRecordsAt(long[] offsets, RecordDecoder<T> decoder) throws IOException {
+
+        Integer[] order = new Integer[offsets.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparingLong(i -> offsets[i]));
+
+        // Each record is kept as a region of the buffer of its window, records are not copied before decoding.
+        byte[][] buffers = new byte[offsets.length][];
+        int[] starts = new int[offsets.length];
+        int[] lengths = new int[offsets.length];
+        int windowStart = 0;
+        while (windowStart < order.length) {
+            long start = offsets[order[windowStart]];
+            int windowEnd = windowStart + 1;
+            while (windowEnd < order.length) {
+                long offset = offsets[order[windowEnd]];
+                long previous = offsets[order[windowEnd - 1]];
+                if (offset - start > MAX_COALESCED_READ || offset - previous > MAX_COALESCED_GAP)
+                    break;
+                windowEnd++;
+            }
+            readWindow(start, order, windowStart, windowEnd, offsets, buffers, starts, lengths);
+            windowStart = windowEnd;
+        }
+
+        List<T> records = new ArrayList<>(Collections.nCopies(offsets.length, null));
+        IntStream.range(0, offsets.length).parallel().forEach(i -> {
+            try {
+                records.set(i, decoder.decode(buffers[i], starts[i], lengths[i]));
+            } catch (Exception e) {
+                log.debug("Error decoding the record at --- " + offsets[i]);
+            }
+        });
+        return records;
+    }
+
+    /**
+     * Read a batch of {@link BinaryArchiveSpectrum} by position in the file, see {@link #getOffsets()}.
+     * @param offsets positions of the spectra in the file
+     * @return spectra in the order of the offsets, null for the spectra that can't be decoded
+     * @throws IOException
+     */
+    public List<BinaryArchiveSpectrum> readArchiveSpectraAt(long[] offsets) throws IOException {
+        return readRecordsAt(offsets, (bytes, offset, length) ->
+                BinaryArchiveSpectrum.readJson(new String(bytes, offset, length, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Read a batch of spectra by position in the file decoding only the requested metadata fields.
+     * @param offsets positions of the spectra in the file
+     * @param fields fields to decode
+     * @return metadata in the order of the offsets, null for the spectra that can't be decoded
+     * @throws IOException
+     */
+    public List<ArchiveSpectrumMetadata> readArchiveSpectraMetadataAt(long[] offsets,
+                                                                      Set<ArchiveSpectrumMetadata.Field> fields) throws IOException {
+        return readRecordsAt(offsets, (bytes, offset, length) -> ArchiveSpectrumMetadata.readJson(bytes, offset, length, fields));
+    }
+
+    /**
+     * Position in the file of every spectrum of the index, in file order: the position in the array is the
+     * ordinal of the spectrum, the same order as {@link #getKeys()}.
+     * @return offsets of the spectra
+     */
+    public long[] getOffsets() {
+        long[] offsets = new long[(int) index.size()];
+        int i = 0;
+        for (Iterator<Map.Entry<String, Long>> it = index.iterator(); it.hasNext(); )
+            offsets[i++] = it.next().getValue();
+        return offsets;
+    }
+
+    /**
+     * Read in one positional read all the records between the first and the last offset of a window,
+     * extending the read until the end of the last record.
+     */
+    private void readWindow(long start, Integer[] order, int from, int to, long[] offsets,
+                            byte[][] buffers, int[] starts, int[] lengths) throws IOException {
+        long last = offsets[order[to - 1]];
+        long fileLength = channel.size();
+        int length = (int) Math.min(fileLength - start, (last - start) + RECORD_READ_AHEAD);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(channel, buffer, start);
+        // The last record can be longer than the read ahead, grow the buffer until its end of line is found.
+        while (indexOfNewLine(buffer.array(), (int) (last - start), buffer.limit()) < 0 && start + buffer.limit() < fileLength) {
+            int newLength = (int) Math.min(fileLength - start, (long) buffer.capacity() * 2);
+            ByteBuffer bigger = ByteBuffer.allocate(newLength);
+            bigger.put(buffer.array(), 0, buffer.limit());
+            readFully(channel, bigger, start + buffer.limit());
+            buffer = bigger;
+        }
+        byte[] bytes = buffer.array();
+        for (int i = from; i < to; i++) {
+            int recordStart = (int) (offsets[order[i]] - start);
+            int recordEnd = indexOfNewLine(bytes, recordStart, buffer.limit());
+            if (recordEnd < 0)
+                recordEnd = buffer.limit();
+            if (recordEnd > recordStart && bytes[recordEnd - 1] == '\r')
+                recordEnd--;
+            buffers[order[i]] = bytes;
+            starts[order[i]] = recordStart;
+            lengths[order[i]] = recordEnd - recordStart;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                break;
+            position += read;
+        }
+        ((Buffer) buffer).flip();
+    }
+
+    private static int indexOfNewLine(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Return all the usis from the Json file, in the order they appear in the file.
+     *
+     * @return Iterator of usis
+     */
+    public Iterator<String> getKeys(){
+        Iterator<Map.Entry<String, Long>> entries = index.iterator();
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return entries.next().getKey();
+            }
+        };
+    }
+
+    /**
+     * Number of spectra in the index.
+     * @return number of spectra
      */
-    public Iterator<Cache.Entry<String, Long>> getKeys(){
-        return index.iterator();
+    public long size() {
+        return index.size();
     }
 
     public void close() throws IOException {
         raf.close();
+        index.close();
     }
 }
@@ -0,0 +1,62 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Summary of the psms of one protein: best (lowest) score, decoy flag, modification names, distinct peptidoforms
+ * as ids of a {@link PeptidoformDictionary}. The scalar parts take constant memory, the peptidoforms are a sorted
+ * int array. Instances are not thread safe, see {@link ProteinAggregateTable}.
+ *
+ * @author ypriverol
+ */
+public class ProteinAggregate {
+
+    private double bestScore = Double.POSITIVE_INFINITY;
+    private boolean decoy;
+    private final Set<String> modifications = new HashSet<>();
+    private int[] peptidoformIds = new int[4];
+    private int peptidoformCount;
+
+    void add(int peptidoformId, double score, boolean isDecoy, Collection<String> modificationNames) {
+        bestScore = Math.min(bestScore, score);
+        decoy |= isDecoy;
+        if (modificationNames != null)
+            modifications.addAll(modificationNames);
+        addPeptidoform(peptidoformId);
+    }
+
+    private void addPeptidoform(int peptidoformId) {
+        int position = Arrays.binarySearch(peptidoformIds, 0, peptidoformCount, peptidoformId);
+        if (position >= 0)
+            return;
+        position = -position - 1;
+        if (peptidoformCount == peptidoformIds.length)
+            peptidoformIds = Arrays.copyOf(peptidoformIds, peptidoformCount * 2);
+        System.arraycopy(peptidoformIds, position, peptidoformIds, position + 1, peptidoformCount - position);
+        peptidoformIds[position] = peptidoformId;
+        peptidoformCount++;
+    }
+
+    public double getBestScore() {
+        return bestScore;
+    }
+
+    public boolean isDecoy() {
+        return decoy;
+    }
+
+    public Set<String> getModifications() {
+        return modifications;
+    }
+
+    /**
+     * Distinct peptidoforms of the protein.
+     * @return sorted ids of the peptidoforms
+     */
+    public int[] getPeptidoformIds() {
+        return Arrays.copyOf(peptidoformIds, peptidoformCount);
+    }
+}
@@ -0,0 +1,88 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import java.util.*;
+
+/**
+ * Per protein roll-up of the psms of an assay, see {@link ProteinAggregate}. The psms are added by the single thread
+ * that writes the assay, the results are read after all the psms are added. Instances are not thread safe.
+ *
+ * @author ypriverol
+ */
+public class ProteinAggregateTable {
+
+    private final PeptidoformDictionary dictionary;
+    private final Map<String, ProteinAggregate> aggregates = new HashMap<>();
+
+    public ProteinAggregateTable() {
+        this(new PeptidoformDictionary());
+    }
+
+    public ProteinAggregateTable(PeptidoformDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Add a psm to one of its proteins.
+     * @param accession protein accession
+     * @param peptidoform peptidoform of the psm
+     * @param score best search engine score of the psm, lower is better
+     * @param isDecoy decoy flag of the psm, null is not decoy
+     * @param modificationNames names of the modifications of the psm
+     */
+    public void add(String accession, String peptidoform, double score, Boolean isDecoy, Collection<String> modificationNames) {
+        int peptidoformId = dictionary.getId(peptidoform);
+        aggregates.computeIfAbsent(accession, key -> new ProteinAggregate())
+                .add(peptidoformId, score, Boolean.TRUE.equals(isDecoy), modificationNames);
+    }
+
+    /**
+     * Best score of each protein.
+     * @return protein accession to lowest psm score
+     */
+    public Map<String, Double> getBestScores() {
+        Map<String, Double> scores = new HashMap<>();
+        for (Map.Entry<String, ProteinAggregate> entry : aggregates.entrySet())
+            scores.put(entry.getKey(), entry.getValue().getBestScore());
+        return scores;
+    }
+
+    /**
+     * Decoy status of each protein, decoy if any of its psms is decoy.
+     * @return protein accession to decoy flag
+     */
+    public Map<String, Boolean> getDecoys() {
+        Map<String, Boolean> decoys = new HashMap<>();
+        for (Map.Entry<String, ProteinAggregate> entry : aggregates.entrySet())
+            decoys.put(entry.getKey(), entry.getValue().isDecoy());
+        return decoys;
+    }
+
+    /**
+     * Modification names of the psms of each protein.
+     * @return protein accession to modification names
+     */
+    public Map<String, Set<String>> getModifications() {
+        Map<String, Set<String>> modifications = new HashMap<>();
+        for (Map.Entry<String, ProteinAggregate> entry : aggregates.entrySet())
+            modifications.put(entry.getKey(), entry.getValue().getModifications());
+        return modifications;
+    }
+
+    /**
+     * Protein inference category of the given proteins, computed on the peptidoforms of the table with
+     * {@link ProteinGroupingEngine}.
+     * @param accessions proteins to classify
+     * @return protein accession to category
+     */
+    public Map<String, String> getInferenceCategories(Set<String> accessions) {
+        ProteinGroupingEngine engine = new ProteinGroupingEngine();
+        for (Map.Entry<String, ProteinAggregate> entry : aggregates.entrySet())
+            for (int peptidoformId : entry.getValue().getPeptidoformIds())
+                engine.add(dictionary.get(peptidoformId), entry.getKey());
+        return engine.classify(accessions);
+    }
+
+    public int size() {
+        return aggregates.size();
+    }
+}
@@ -0,0 +1,188 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Protein inference categories computed on the bipartite graph of peptidoforms and proteins. Peptidoforms and
+ * proteins get int ids, the proteins connected by shared peptidoforms are grouped in components with union-find and
+ * the components are classified in parallel:
+ * <ul>
+ *     <li>{@link #DISTINGUISHABLE}: the protein has at least one peptidoform that is not shared with other proteins.</li>
+ *     <li>{@link #SUBSET}: all the peptidoforms of the protein are shared and they are a strict subset of the
+ *     peptidoforms of another protein of the component.</li>
+ *     <li>{@link #INDISTINGUISHABLE}: the rest, proteins whose peptidoforms are all shared with other proteins.</li>
+ * </ul>
+ * The cost is linear in the number of edges plus the subset checks, which only compare proteins that share
+ * peptidoforms.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class ProteinGroupingEngine {
+
+    public static final String DISTINGUISHABLE = "distinguishable";
+    public static final String INDISTINGUISHABLE = "indistinguishable";
+    public static final String SUBSET = "subset";
+
+    private final Map<String, Integer> proteinIds = new HashMap<>();
+    private final List<String> proteins = new ArrayList<>();
+    private final Map<String, Integer> peptideIds = new HashMap<>();
+    private int[] edgePeptides = new int[1024];
+    private int[] edgeProteins = new int[1024];
+    private int edgeCount;
+
+    /**
+     * Graph of a map of peptidoform to the proteins it maps to, repeated proteins are allowed.
+     * @param peptideToProteins peptidoform to protein accessions
+     * @return ProteinGroupingEngine
+     */
+    public static ProteinGroupingEngine of(Map<String, ? extends Collection<String>> peptideToProteins) {
+        ProteinGroupingEngine engine = new ProteinGroupingEngine();
+        peptideToProteins.forEach((peptidoform, accessions) -> accessions.forEach(accession -> engine.add(peptidoform, accession)));
+        return engine;
+    }
+
+    /**
+     * Add an edge of the graph, a peptidoform that maps to a protein.
+     * @param peptidoform peptidoform
+     * @param protein protein accession
+     */
+    public synchronized void add(String peptidoform, String protein) {
+        Integer peptideId = peptideIds.get(peptidoform);
+        if (peptideId == null) {
+            peptideId = peptideIds.size();
+            peptideIds.put(peptidoform, peptideId);
+        }
+        Integer proteinId = proteinIds.get(protein);
+        if (proteinId == null) {
+            proteinId = proteins.size();
+            proteinIds.put(protein, proteinId);
+            proteins.add(protein);
+        }
+        if (edgeCount == edgePeptides.length) {
+            edgePeptides = Arrays.copyOf(edgePeptides, edgeCount * 2);
+            edgeProteins = Arrays.copyOf(edgeProteins, edgeCount * 2);
+        }
+        edgePeptides[edgeCount] = peptideId;
+        edgeProteins[edgeCount] = proteinId;
+        edgeCount++;
+    }
+
+    /**
+     * Category of each protein, proteins that are not in the graph are {@link #INDISTINGUISHABLE}.
+     * @param accessions proteins to classify
+     * @return protein accession to category
+     */
+    public synchronized Map<String, String> classify(Set<String> accessions) {
+        int proteinCount = proteins.size();
+        int peptideCount = peptideIds.size();
+
+        // Adjacency lists in both directions with distinct, sorted ids.
+        int[][] proteinPeptides = adjacency(edgeProteins, edgePeptides, proteinCount);
+        int[][] peptideProteins = adjacency(edgePeptides, edgeProteins, peptideCount);
+
+        int[] parent = new int[proteinCount];
+        int[] componentSize = new int[proteinCount];
+        for (int i = 0; i < proteinCount; i++) {
+            parent[i] = i;
+            componentSize[i] = 1;
+        }
+        for (int[] sharing : peptideProteins)
+            for (int i = 1; i < sharing.length; i++)
+                union(parent, componentSize, sharing[0], sharing[i]);
+
+        Map<Integer, List<Integer>> components = new HashMap<>();
+        for (int protein = 0; protein < proteinCount; protein++)
+            components.computeIfAbsent(find(parent, protein), root -> new ArrayList<>()).add(protein);
+        List<List<Integer>> componentList = new ArrayList<>(components.values());
+
+        String[] categories = new String[proteinCount];
+        IntStream.range(0, componentList.size()).parallel().forEach(component -> {
+            for (int protein : componentList.get(component))
+                categories[protein] = category(protein, proteinPeptides, peptideProteins);
+        });
+
+        log.info(String.format("Protein groups -- %d proteins, %d peptidoforms, %d components",
+                proteinCount, peptideCount, componentList.size()));
+
+        Map<String, String> result = new HashMap<>();
+        for (String accession : accessions) {
+            Integer protein = proteinIds.get(accession);
+            result.put(accession, protein == null ? INDISTINGUISHABLE : categories[protein]);
+        }
+        return result;
+    }
+
+    private static String category(int protein, int[][] proteinPeptides, int[][] peptideProteins) {
+        int[] peptides = proteinPeptides[protein];
+        for (int peptide : peptides)
+            if (peptideProteins[peptide].length == 1)
+                return DISTINGUISHABLE;
+        // A protein that contains all the peptidoforms also contains the first one.
+        if (peptides.length > 0)
+            for (int other : peptideProteins[peptides[0]])
+                if (other != protein && proteinPeptides[other].length > peptides.length
+                        && containsAll(proteinPeptides[other], peptides))
+                    return SUBSET;
+        return INDISTINGUISHABLE;
+    }
+
+    private static boolean containsAll(int[] sorted, int[] values) {
+        int i = 0;
+        for (int value : values) {
+            while (i < sorted.length && sorted[i] < value)
+                i++;
+            if (i == sorted.length || sorted[i] != value)
+                return false;
+        }
+        return true;
+    }
+
+    private int[][] adjacency(int[] from, int[] to, int count) {
+        int[] degree = new int[count];
+        for (int i = 0; i < edgeCount; i++)
+            degree[from[i]]++;
+        int[][] lists = new int[count][];
+        for (int i = 0; i < count; i++)
+            lists[i] = new int[degree[i]];
+        int[] fill = new int[count];
+        for (int i = 0; i < edgeCount; i++)
+            lists[from[i]][fill[from[i]]++] = to[i];
+        for (int i = 0; i < count; i++) {
+            int[] list = lists[i];
+            Arrays.sort(list);
+            int distinct = 0;
+            for (int j = 0; j < list.length; j++)
+                if (j == 0 || list[j] != list[j - 1])
+                    list[distinct++] = list[j];
+            if (distinct < list.length)
+                lists[i] = Arrays.copyOf(list, distinct);
+        }
+        return lists;
+    }
+
+    private static int find(int[] parent, int node) {
+        while (parent[node] != node) {
+            parent[node] = parent[parent[node]];
+            node = parent[node];
+        }
+        return node;
+    }
+
+    private static void union(int[] parent, int[] size, int first, int second) {
+        int a = find(parent, first);
+        int b = find(parent, second);
+        if (a == b)
+            return;
+        if (size[a] < size[b]) {
+            int swap = a;
+            a = b;
+            b = swap;
+        }
+        parent[b] = a;
+        size[a] += size[b];
+    }
+}
@@ -0,0 +1,173 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.pride.archive.indexer.utility.AppCacheManager;
+import uk.ac.ebi.pride.archive.indexer.utility.CompactEncoding;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append only store of {@link ResultFilePsm} in a file of the scratch directory. The PSMs are encoded with
+ * {@link CompactEncoding} as they are parsed and read back in order with a {@link Reader}, only the ranking score and
+ * the decoy flag of each PSM stay on heap for the target-decoy computation. The file is deleted on close.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class PsmRecordStore implements Closeable {
+
+    private final File file;
+    private DataOutputStream output;
+    private int size;
+    private double[] rankingScores = new double[1024];
+    private final BitSet decoys = new BitSet();
+
+    public PsmRecordStore(String prefix) throws IOException {
+        this.file = File.createTempFile(prefix, ".psms", AppCacheManager.getScratchDirectory());
+        this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    /**
+     * Append a PSM, the index of the PSM is set to its position in the store.
+     * @param psm PSM
+     * @return index of the PSM
+     * @throws IOException
+     */
+    public synchronized int add(ResultFilePsm psm) throws IOException {
+        CompactEncoding.Output encoded = new CompactEncoding.Output();
+        encoded.writeString(psm.getPsmId());
+        encoded.writeString(psm.getSequence());
+        encoded.writeVarInt(psm.getModifications().size());
+        for (Map.Entry<Integer, String> modification : psm.getModifications().entrySet()) {
+            encoded.writeVarInt(modification.getKey());
+            encoded.writeString(modification.getValue());
+        }
+        encoded.writeVarInt(psm.getAccessions().size());
+        for (String accession : psm.getAccessions())
+            encoded.writeString(accession);
+        encoded.writeVarInt(psm.getCharge() == null ? 0 : psm.getCharge() + 1);
+        encoded.writeDouble(psm.getExpMassToCharge());
+        encoded.writeDouble(psm.getCalcMassToCharge());
+        encoded.writeDouble(psm.getRetentionTime() == null ? Double.NaN : psm.getRetentionTime());
+        encoded.writeVarInt(psm.getMsRun() + 1);
+        encoded.writeString(psm.getSpectrumReference());
+        encoded.writeVarInt(psm.getSearchEngineScores().length);
+        for (double score : psm.getSearchEngineScores())
+            encoded.writeDouble(score);
+        encoded.writeByte(psm.isDecoy() ? 1 : 0);
+        encoded.writeDouble(psm.getRankingScore());
+
+        ByteBuffer buffer = encoded.toByteBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+
+        if (size == rankingScores.length)
+            rankingScores = Arrays.copyOf(rankingScores, size * 2);
+        rankingScores[size] = psm.getRankingScore();
+        decoys.set(size, psm.isDecoy());
+        psm.setIndex(size);
+        return size++;
+    }
+
+    /**
+     * Reader of the PSMs in the order they were added, the PSMs added after the reader is opened are not read.
+     * @return Reader
+     * @throws IOException
+     */
+    public synchronized Reader reader() throws IOException {
+        output.flush();
+        return new Reader(size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getRankingScore(int index) {
+        return rankingScores[index];
+    }
+
+    public boolean isDecoy(int index) {
+        return decoys.get(index);
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (output != null)
+                output.close();
+        } catch (IOException e) {
+            log.debug("Error closing the PSM store -- " + e.getMessage());
+        }
+        output = null;
+        if (!file.delete() && file.exists())
+            log.warn("The PSM store can't be deleted -- " + file.getAbsolutePath());
+    }
+
+    public class Reader implements Closeable {
+
+        private final DataInputStream input;
+        private final int count;
+        private int index;
+
+        private Reader(int count) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            this.count = count;
+        }
+
+        /**
+         * Next PSM of the store.
+         * @return PSM, null at the end of the store
+         * @throws IOException
+         */
+        public ResultFilePsm next() throws IOException {
+            if (index == count)
+                return null;
+            byte[] bytes = new byte[input.readInt()];
+            input.readFully(bytes);
+            CompactEncoding.Input encoded = new CompactEncoding.Input(ByteBuffer.wrap(bytes));
+
+            String psmId = encoded.readString();
+            String sequence = encoded.readString();
+            int modificationCount = encoded.readVarInt();
+            Map<Integer, String> modifications = new HashMap<>();
+            for (int i = 0; i < modificationCount; i++)
+                modifications.put(encoded.readVarInt(), encoded.readString());
+            int accessionCount = encoded.readVarInt();
+            String[] accessions = new String[accessionCount];
+            for (int i = 0; i < accessionCount; i++)
+                accessions[i] = encoded.readString();
+            int charge = encoded.readVarInt();
+            double expMassToCharge = encoded.readDouble();
+            double calcMassToCharge = encoded.readDouble();
+            double retentionTime = encoded.readDouble();
+            int msRun = encoded.readVarInt() - 1;
+            String spectrumReference = encoded.readString();
+            double[] scores = new double[encoded.readVarInt()];
+            for (int i = 0; i < scores.length; i++)
+                scores[i] = encoded.readDouble();
+
+            ResultFilePsm psm = new ResultFilePsm(psmId, sequence, modifications, charge == 0 ? null : charge - 1,
+                    expMassToCharge, calcMassToCharge, Double.isNaN(retentionTime) ? null : retentionTime, msRun,
+                    spectrumReference, scores);
+            for (String accession : accessions)
+                psm.addAccession(accession);
+            psm.setDecoy(encoded.readByte() == 1);
+            psm.setRankingScore(encoded.readDouble());
+            psm.setIndex(index++);
+            return psm;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+}
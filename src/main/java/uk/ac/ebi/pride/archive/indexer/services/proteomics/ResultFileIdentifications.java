@@ -0,0 +1,334 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * PSMs and metadata of a result file read without PIA by {@link MzTabPsmReader} or {@link MzIdentMLPsmReader}: the
+ * spectra file locations, the modification and search engine score definitions and the PSMs. The PSMs are kept on
+ * disk in a {@link PsmRecordStore}, the heap holds the metadata and one score, one decoy flag and one q-value per PSM.
+ * When the PSMs have decoy flags and a known search engine score the q-values are computed with a target-decoy pass
+ * over the sorted scores, see {@link #isScored()}. Otherwise the file has to be processed with PIA.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class ResultFileIdentifications implements Closeable {
+
+    /** Scores where lower is better, in order of preference to rank the PSMs. */
+    private static final List<String> LOWER_IS_BETTER = Arrays.asList(
+            "MS:1002354",   // PSM-level q-value
+            "MS:1001491",   // percolator:Q value
+            "MS:1001868",   // distinct peptide-level q-value
+            "MS:1001493",   // percolator:PEP
+            "MS:1002052",   // MS-GF:SpecEValue
+            "MS:1002053",   // MS-GF:EValue
+            "MS:1001330",   // X!Tandem:expect
+            "MS:1002257",   // Comet:expectation value
+            "MS:1001328");  // OMSSA:evalue
+
+    private final Map<Integer, String> msRunLocations = new TreeMap<>();
+    private final Map<String, String> modificationNames = new HashMap<>();
+    private final Map<Integer, String[]> searchEngineScores = new TreeMap<>();
+    private final PsmRecordStore store;
+    private String rankingScore;
+    private double[] qValues = new double[0];
+
+    ResultFileIdentifications(PsmRecordStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Preference of a search engine score to rank the PSMs.
+     * @param accession CV accession of the score
+     * @return position in the preference order, lower is preferred, -1 if the score can't be used. Scores where higher
+     * is better are not used, their values are not comparable across search engines and files; those files are
+     * processed with PIA.
+     */
+    static int getRankingPreference(String accession) {
+        if (accession == null)
+            return -1;
+        return LOWER_IS_BETTER.indexOf(accession.toUpperCase());
+    }
+
+    void setRankingScore(String rankingScore) {
+        this.rankingScore = rankingScore;
+    }
+
+    /**
+     * Add a PSM to the store of the result file.
+     * @param psm PSM
+     * @throws IOException
+     */
+    void add(ResultFilePsm psm) throws IOException {
+        store.add(psm);
+    }
+
+    /**
+     * Merge the PSMs of several result files of an assay in one {@link ResultFileIdentifications}, so the q-values are
+     * computed on all the PSMs as PIA does for a multi-file assay. The ms_run indexes of each file are shifted after
+     * the ones of the previous files and the search engine scores are matched by accession. The ranking score is kept
+     * only when all the files are ranked by the same score, otherwise the merge is not scored, see
+     * {@link #isScored()}. The parts are not closed.
+     * @param parts identifications of each result file
+     * @return merged identifications, to be closed by the caller
+     * @throws IOException
+     */
+    public static ResultFileIdentifications merge(List<ResultFileIdentifications> parts) throws IOException {
+        ResultFileIdentifications merged = new ResultFileIdentifications(new PsmRecordStore("merged-"));
+        try {
+            Map<String, Integer> scoreIndexes = new HashMap<>();
+            boolean sameRankingScore = true;
+            int msRunOffset = 0;
+            for (ResultFileIdentifications part : parts) {
+                sameRankingScore &= part.rankingScore != null
+                        && (merged.rankingScore == null || merged.rankingScore.equals(part.rankingScore));
+                merged.rankingScore = part.rankingScore;
+
+                int offset = msRunOffset;
+                part.msRunLocations.forEach((msRun, location) -> merged.msRunLocations.put(offset + msRun, location));
+                msRunOffset += part.msRunLocations.isEmpty() ? 0 : Collections.max(part.msRunLocations.keySet());
+                merged.modificationNames.putAll(part.modificationNames);
+
+                // Position of each score of the part in the merged scores
+                int partScoreCount = part.searchEngineScores.isEmpty() ? 0 : Collections.max(part.searchEngineScores.keySet());
+                int[] scorePositions = new int[partScoreCount];
+                Arrays.fill(scorePositions, -1);
+                for (Map.Entry<Integer, String[]> score : part.searchEngineScores.entrySet()) {
+                    String key = score.getValue()[1] != null ? score.getValue()[1] : score.getValue()[2];
+                    Integer index = scoreIndexes.get(key);
+                    if (index == null) {
+                        index = scoreIndexes.size() + 1;
+                        scoreIndexes.put(key, index);
+                        merged.searchEngineScores.put(index, score.getValue());
+                    }
+                    scorePositions[score.getKey() - 1] = index - 1;
+                }
+
+                try (PsmRecordStore.Reader reader = part.reader()) {
+                    ResultFilePsm psm;
+                    while ((psm = reader.next()) != null) {
+                        double[] scores = new double[scoreIndexes.size()];
+                        Arrays.fill(scores, Double.NaN);
+                        double[] partScores = psm.getSearchEngineScores();
+                        for (int i = 0; i < partScores.length && i < scorePositions.length; i++)
+                            if (scorePositions[i] >= 0)
+                                scores[scorePositions[i]] = partScores[i];
+                        ResultFilePsm copy = new ResultFilePsm(psm.getPsmId(), psm.getSequence(), psm.getModifications(),
+                                psm.getCharge(), psm.getExpMassToCharge(), psm.getCalcMassToCharge(), psm.getRetentionTime(),
+                                psm.getMsRun() < 0 ? -1 : offset + psm.getMsRun(), psm.getSpectrumReference(), scores);
+                        for (String accession : psm.getAccessions())
+                            copy.addAccession(accession);
+                        copy.setDecoy(psm.isDecoy());
+                        copy.setRankingScore(psm.getRankingScore());
+                        merged.add(copy);
+                    }
+                }
+            }
+            if (!sameRankingScore)
+                merged.rankingScore = null;
+        } catch (IOException | RuntimeException e) {
+            merged.close();
+            throw e;
+        }
+        log.info(String.format("Merged result files -- %d, PSMs -- %d, decoys -- %d, ranking score -- %s", parts.size(),
+                merged.getPsmCount(), merged.getDecoyCount(), merged.rankingScore));
+        return merged;
+    }
+
+    /**
+     * Compute the q-values of the PSMs with a target-decoy pass over the PSMs sorted by the ranking score.
+     */
+    public void computeQValues() {
+        double[] scores = new double[store.size()];
+        boolean[] decoys = new boolean[store.size()];
+        for (int i = 0; i < store.size(); i++) {
+            scores[i] = store.getRankingScore(i);
+            decoys[i] = store.isDecoy(i);
+        }
+        qValues = targetDecoyQValues(scores, decoys);
+    }
+
+    /**
+     * Target-decoy q-values, the FDR at a score is the number of decoys divided by the number of targets with the same
+     * or a better score, and the q-value is the lowest FDR of the scores that include it. Equal scores get the same
+     * q-value.
+     * @param scores scores, lower is better
+     * @param decoys decoy flags
+     * @return q-values in the order of the scores
+     */
+    public static double[] targetDecoyQValues(double[] scores, boolean[] decoys) {
+        int size = scores.length;
+        double[] sorted = scores.clone();
+        Arrays.sort(sorted);
+        int decoyCount = 0;
+        for (boolean decoy : decoys)
+            if (decoy)
+                decoyCount++;
+        double[] decoyScores = new double[decoyCount];
+        for (int i = 0, j = 0; i < size; i++)
+            if (decoys[i])
+                decoyScores[j++] = scores[i];
+        Arrays.sort(decoyScores);
+
+        // FDR of each group of equal scores, from the number of decoys and targets up to the end of the group
+        double[] fdr = new double[size];
+        int decoyEnd = 0;
+        int i = 0;
+        while (i < size) {
+            int end = i + 1;
+            while (end < size && Double.compare(sorted[end], sorted[i]) == 0)
+                end++;
+            while (decoyEnd < decoyCount && Double.compare(decoyScores[decoyEnd], sorted[i]) <= 0)
+                decoyEnd++;
+            int targets = end - decoyEnd;
+            double value = targets == 0 ? 1.0 : Math.min(1.0, (double) decoyEnd / targets);
+            Arrays.fill(fdr, i, end, value);
+            i = end;
+        }
+
+        double min = 1.0;
+        for (int j = size - 1; j >= 0; j--) {
+            min = Math.min(min, fdr[j]);
+            fdr[j] = min;
+        }
+
+        // All the positions of a group have the same q-value, any position found for a score is valid
+        double[] qValues = new double[size];
+        for (int j = 0; j < size; j++)
+            qValues[j] = fdr[Arrays.binarySearch(sorted, scores[j])];
+        return qValues;
+    }
+
+    /**
+     * Proteins reported for the accepted PSMs, read in one pass over the store. The score of a protein is the product
+     * of the best PSM q-value of each of its peptides, see {@link #computeQValues()}, so it stays in [0, 1] whatever
+     * the ranking score of the file. The protein q-values are computed with a target-decoy pass
+     * on those scores, and a protein is reported when its q-value is below the threshold and it has enough peptides
+     * not shared with other proteins.
+     * @param acceptedPsms indexes of the PSMs that pass the PSM filters
+     * @param proteinQThreshold protein q-value threshold
+     * @param minUniquePeptides minimum number of unique peptides
+     * @return reported protein accessions
+     * @throws IOException
+     */
+    public Set<String> getReportedProteins(BitSet acceptedPsms, double proteinQThreshold, int minUniquePeptides) throws IOException {
+        Map<String, Map<String, Double>> proteinPeptides = new HashMap<>();
+        Map<String, Boolean> proteinDecoys = new HashMap<>();
+        Map<String, Set<String>> peptideProteins = new HashMap<>();
+        try (PsmRecordStore.Reader reader = store.reader()) {
+            ResultFilePsm psm;
+            while ((psm = reader.next()) != null) {
+                if (!acceptedPsms.get(psm.getIndex()))
+                    continue;
+                for (String accession : psm.getAccessions()) {
+                    proteinPeptides.computeIfAbsent(accession, key -> new HashMap<>())
+                            .merge(psm.getSequence(), getQValue(psm.getIndex()), Math::min);
+                    proteinDecoys.merge(accession, psm.isDecoy(), Boolean::logicalOr);
+                    peptideProteins.computeIfAbsent(psm.getSequence(), key -> new HashSet<>()).add(accession);
+                }
+            }
+        }
+
+        List<String> accessions = new ArrayList<>(proteinPeptides.keySet());
+        double[] scores = new double[accessions.size()];
+        boolean[] decoys = new boolean[accessions.size()];
+        for (int i = 0; i < accessions.size(); i++) {
+            double score = 1.0;
+            for (double peptideScore : proteinPeptides.get(accessions.get(i)).values())
+                score *= peptideScore;
+            scores[i] = score;
+            decoys[i] = proteinDecoys.get(accessions.get(i));
+        }
+        double[] proteinQValues = targetDecoyQValues(scores, decoys);
+
+        Set<String> reported = new HashSet<>();
+        for (int i = 0; i < accessions.size(); i++) {
+            long unique = proteinPeptides.get(accessions.get(i)).keySet().stream()
+                    .filter(sequence -> peptideProteins.get(sequence).size() == 1)
+                    .count();
+            if (proteinQValues[i] <= proteinQThreshold && unique >= minUniquePeptides)
+                reported.add(accessions.get(i));
+        }
+        return reported;
+    }
+
+    /**
+     * Reader of the PSMs in the order of the result file.
+     * @return Reader
+     * @throws IOException
+     */
+    public PsmRecordStore.Reader reader() throws IOException {
+        return store.reader();
+    }
+
+    /**
+     * q-value of a PSM, see {@link #computeQValues()}.
+     * @param index index of the PSM
+     * @return q-value, NaN before the q-values are computed
+     */
+    public double getQValue(int index) {
+        return index < qValues.length ? qValues[index] : Double.NaN;
+    }
+
+    public int getPsmCount() {
+        return store.size();
+    }
+
+    public long getDecoyCount() {
+        long decoys = 0;
+        for (int i = 0; i < store.size(); i++)
+            if (store.isDecoy(i))
+                decoys++;
+        return decoys;
+    }
+
+    /**
+     * True if all the PSMs have a ranking score and there are decoys, the q-values can be computed without PIA.
+     * @return true if the file can be processed without PIA
+     */
+    public boolean isScored() {
+        if (rankingScore == null || store.size() == 0 || getDecoyCount() == 0)
+            return false;
+        for (int i = 0; i < store.size(); i++)
+            if (Double.isNaN(store.getRankingScore(i)))
+                return false;
+        return true;
+    }
+
+    /**
+     * Locations of the spectra files.
+     * @return ms_run index to location
+     */
+    public Map<Integer, String> getMsRunLocations() {
+        return msRunLocations;
+    }
+
+    /**
+     * Names of the modifications declared in the result file.
+     * @return modification accession to name
+     */
+    public Map<String, String> getModificationNames() {
+        return modificationNames;
+    }
+
+    /**
+     * Search engine scores of the PSMs.
+     * @return score index to label, accession, name and value of the CV parameter
+     */
+    public Map<Integer, String[]> getSearchEngineScores() {
+        return searchEngineScores;
+    }
+
+    public String getRankingScore() {
+        return rankingScore;
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+}
@@ -0,0 +1,256 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FilenameUtils;
+import uk.ac.ebi.pride.archive.indexer.utility.SubmissionPipelineUtils;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Pre-flight scan of the result files of an assay, done before PIA is used. Each file is streamed once to count the
+ * PSMs and the decoy PSMs and to read the spectra files it references, which are resolved against the spectra files
+ * provided by the user. The assay is rejected when it can't pass the checks done after the inference: no decoys,
+ * not more PSMs than the minimum, or referenced spectra files that are not provided. The report is written as the
+ * reason file of the assay.
+ *
+ * <ul>
+ *     <li>mzIdentML: a PSM is a SpectrumIdentificationItem, it is decoy when all its PeptideEvidence are decoy.</li>
+ *     <li>mzTab: a PSM is a PSM_ID and spectra_ref, it is decoy when all its rows are decoy, from the decoy column or
+ *     the accession prefix.</li>
+ * </ul>
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class ResultFilePreflight {
+
+    public enum Reason {
+        UNREADABLE_RESULT_FILE,
+        NO_DECOYS,
+        NOT_ENOUGH_PSMS,
+        MISSING_SPECTRA_FILES
+    }
+
+    private final List<String> resultFiles = new ArrayList<>();
+    private long psmCount;
+    private long decoyCount;
+    private final List<String> spectraLocations = new ArrayList<>();
+    private final List<String> missingSpectraFiles = new ArrayList<>();
+    private final List<Reason> reasons = new ArrayList<>();
+    private final List<String> errors = new ArrayList<>();
+    private int minPSMs;
+    private long scanMillis;
+
+    private ResultFilePreflight() {
+    }
+
+    /**
+     * Scan the result files of an assay.
+     * @param resultFiles mzIdentML or mzTab files, not compressed
+     * @param spectraFiles spectra files provided by the user
+     * @param minPSMs the assay needs more PSMs than this number
+     * @return report of the scan
+     */
+    public static ResultFilePreflight scan(List<String> resultFiles, Collection<String> spectraFiles, int minPSMs) {
+        long start = System.currentTimeMillis();
+        ResultFilePreflight preflight = new ResultFilePreflight();
+        preflight.minPSMs = minPSMs;
+
+        Set<String> providedNames = new HashSet<>();
+        for (String spectraFile : spectraFiles)
+            providedNames.add(FilenameUtils.getName(SubmissionPipelineUtils.returnUnCompressPath(spectraFile)).toLowerCase());
+
+        for (String resultFile : resultFiles) {
+            preflight.resultFiles.add(resultFile);
+            SubmissionPipelineUtils.FileType fileType = SubmissionPipelineUtils.FileType.getFileTypeFromFileName(resultFile);
+            List<String> locations = new ArrayList<>();
+            try {
+                if (fileType == SubmissionPipelineUtils.FileType.MZTAB)
+                    preflight.scanMzTab(resultFile, locations);
+                else
+                    preflight.scanMzIdentML(resultFile, locations);
+            } catch (IOException | XMLStreamException | RuntimeException e) {
+                preflight.errors.add(resultFile + " -- " + e.getMessage());
+                if (!preflight.reasons.contains(Reason.UNREADABLE_RESULT_FILE))
+                    preflight.reasons.add(Reason.UNREADABLE_RESULT_FILE);
+            }
+            for (String location : locations) {
+                preflight.spectraLocations.add(location);
+                String name = FilenameUtils.getName(SubmissionPipelineUtils.returnUnCompressPath(location));
+                if (!providedNames.contains(name.toLowerCase()) && !preflight.missingSpectraFiles.contains(name))
+                    preflight.missingSpectraFiles.add(name);
+            }
+        }
+
+        if (!preflight.reasons.contains(Reason.UNREADABLE_RESULT_FILE)) {
+            if (preflight.decoyCount == 0)
+                preflight.reasons.add(Reason.NO_DECOYS);
+            if (preflight.psmCount <= minPSMs)
+                preflight.reasons.add(Reason.NOT_ENOUGH_PSMS);
+        }
+        if (!preflight.missingSpectraFiles.isEmpty())
+            preflight.reasons.add(Reason.MISSING_SPECTRA_FILES);
+
+        preflight.scanMillis = System.currentTimeMillis() - start;
+        log.info(String.format("Pre-flight -- %s PSMs -- %d, decoys -- %d, spectra files -- %d, missing -- %d, reasons -- %s, %d ms",
+                resultFiles, preflight.psmCount, preflight.decoyCount, preflight.spectraLocations.size(),
+                preflight.missingSpectraFiles.size(), preflight.reasons, preflight.scanMillis));
+        return preflight;
+    }
+
+    private void scanMzIdentML(String resultFile, List<String> locations) throws IOException, XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        Set<String> decoyEvidences = new HashSet<>();
+        boolean itemHasEvidence = false;
+        boolean itemIsDecoy = false;
+
+        try (InputStream input = new BufferedInputStream(new FileInputStream(resultFile), 1 << 16)) {
+            XMLStreamReader reader = factory.createXMLStreamReader(input);
+            try {
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        switch (reader.getLocalName()) {
+                            case "PeptideEvidence":
+                                if ("true".equalsIgnoreCase(reader.getAttributeValue(null, "isDecoy")))
+                                    decoyEvidences.add(reader.getAttributeValue(null, "id"));
+                                break;
+                            case "SpectraData":
+                                String location = reader.getAttributeValue(null, "location");
+                                if (location != null)
+                                    locations.add(location);
+                                break;
+                            case "SpectrumIdentificationItem":
+                                itemHasEvidence = false;
+                                itemIsDecoy = true;
+                                break;
+                            case "PeptideEvidenceRef":
+                                itemHasEvidence = true;
+                                itemIsDecoy &= decoyEvidences.contains(reader.getAttributeValue(null, "peptideEvidence_ref"));
+                                break;
+                            default:
+                                break;
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && "SpectrumIdentificationItem".equals(reader.getLocalName())) {
+                        psmCount++;
+                        if (itemHasEvidence && itemIsDecoy)
+                            decoyCount++;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private void scanMzTab(String resultFile, List<String> locations) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(resultFile), StandardCharsets.UTF_8))) {
+            int psmIdColumn = -1;
+            int spectraRefColumn = -1;
+            int accessionColumn = -1;
+            int decoyColumn = -1;
+            String previousKey = null;
+            boolean previousDecoyKnown = false;
+            boolean previousAllDecoy = true;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("MTD")) {
+                    String[] values = line.split("\t");
+                    if (values.length > 2 && values[1].trim().matches("ms_run\\[\\d+]-location"))
+                        locations.add(values[2].trim());
+                } else if (line.startsWith("PSH")) {
+                    List<String> header = Arrays.asList(line.split("\t"));
+                    psmIdColumn = header.indexOf("PSM_ID");
+                    spectraRefColumn = header.indexOf("spectra_ref");
+                    accessionColumn = header.indexOf("accession");
+                    for (String column : MzTabPsmReader.DECOY_COLUMNS)
+                        if (decoyColumn < 0)
+                            decoyColumn = header.indexOf(column);
+                } else if (line.startsWith("PSM") && psmIdColumn >= 0) {
+                    String[] values = line.split("\t", -1);
+                    String key = value(values, psmIdColumn) + "\t" + value(values, spectraRefColumn);
+                    if (!key.equals(previousKey)) {
+                        if (previousKey != null && previousDecoyKnown && previousAllDecoy)
+                            decoyCount++;
+                        psmCount++;
+                        previousKey = key;
+                        previousDecoyKnown = false;
+                        previousAllDecoy = true;
+                    }
+                    // Decoy when all the rows of the PSM are decoy, as MzTabPsmReader and PIA count them
+                    if (decoyColumn >= 0) {
+                        previousAllDecoy &= "1".equals(value(values, decoyColumn)) || "true".equalsIgnoreCase(value(values, decoyColumn));
+                        previousDecoyKnown = true;
+                    } else if (value(values, accessionColumn) != null) {
+                        previousAllDecoy &= MzTabPsmReader.isDecoyAccession(value(values, accessionColumn));
+                        previousDecoyKnown = true;
+                    }
+                }
+            }
+            if (previousKey != null && previousDecoyKnown && previousAllDecoy)
+                decoyCount++;
+        }
+    }
+
+    private static String value(String[] values, int column) {
+        if (column < 0 || column >= values.length)
+            return null;
+        String value = values[column].trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * True if the assay passes the pre-flight checks and can be processed.
+     * @return true if there are no rejection reasons
+     */
+    public boolean isAccepted() {
+        return reasons.isEmpty();
+    }
+
+    public List<String> getResultFiles() {
+        return resultFiles;
+    }
+
+    public long getPsmCount() {
+        return psmCount;
+    }
+
+    public long getDecoyCount() {
+        return decoyCount;
+    }
+
+    public int getMinPSMs() {
+        return minPSMs;
+    }
+
+    public List<String> getSpectraLocations() {
+        return spectraLocations;
+    }
+
+    /**
+     * Names of the spectra files referenced by the result files that are not in the spectra files provided.
+     * @return file names
+     */
+    public List<String> getMissingSpectraFiles() {
+        return missingSpectraFiles;
+    }
+
+    public List<Reason> getReasons() {
+        return reasons;
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public long getScanMillis() {
+        return scanMillis;
+    }
+}
@@ -0,0 +1,157 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PSM read from a result file without PIA, see {@link MzTabPsmReader} and {@link MzIdentMLPsmReader}. The PSMs are
+ * kept in a {@link PsmRecordStore} and read back one by one, the index is the position of the PSM in the store.
+ *
+ * @author ypriverol
+ */
+public class ResultFilePsm {
+
+    private int index = -1;
+    private final String psmId;
+    private final String sequence;
+    private final List<String> accessions = new ArrayList<>();
+    private final Map<Integer, String> modifications;
+    private final Integer charge;
+    private final double expMassToCharge;
+    private final double calcMassToCharge;
+    private final Double retentionTime;
+    private final int msRun;
+    private final String spectrumReference;
+    private final double[] searchEngineScores;
+    private boolean decoy;
+    private double rankingScore = Double.NaN;
+
+    ResultFilePsm(String psmId, String sequence, Map<Integer, String> modifications, Integer charge, double expMassToCharge,
+                  double calcMassToCharge, Double retentionTime, int msRun, String spectrumReference, double[] searchEngineScores) {
+        this.psmId = psmId;
+        this.sequence = sequence;
+        this.modifications = modifications;
+        this.charge = charge;
+        this.expMassToCharge = expMassToCharge;
+        this.calcMassToCharge = calcMassToCharge;
+        this.retentionTime = retentionTime;
+        this.msRun = msRun;
+        this.spectrumReference = spectrumReference;
+        this.searchEngineScores = searchEngineScores;
+    }
+
+    void addAccession(String accession) {
+        if (accession != null && !accessions.contains(accession))
+            accessions.add(accession);
+    }
+
+    /**
+     * Check if the PSM has a modification on a residue.
+     * @param residue amino acid
+     * @param accession modification accession, for example UNIMOD:21
+     * @return true if the modification is on a residue of that type
+     */
+    public boolean hasResidueModification(char residue, String accession) {
+        for (Map.Entry<Integer, String> entry : modifications.entrySet()) {
+            int position = entry.getKey();
+            if (position >= 1 && position <= sequence.length() && sequence.charAt(position - 1) == residue
+                    && accession.equalsIgnoreCase(entry.getValue()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Position of the PSM in its {@link PsmRecordStore}.
+     * @return index, -1 before the PSM is stored
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    void setIndex(int index) {
+        this.index = index;
+    }
+
+    public String getPsmId() {
+        return psmId;
+    }
+
+    public String getSequence() {
+        return sequence;
+    }
+
+    public List<String> getAccessions() {
+        return accessions;
+    }
+
+    /**
+     * Modifications of the PSM.
+     * @return position (0 N-term, length + 1 C-term) to modification accession
+     */
+    public Map<Integer, String> getModifications() {
+        return modifications;
+    }
+
+    public Integer getCharge() {
+        return charge;
+    }
+
+    public double getExpMassToCharge() {
+        return expMassToCharge;
+    }
+
+    public double getCalcMassToCharge() {
+        return calcMassToCharge;
+    }
+
+    public Double getRetentionTime() {
+        return retentionTime;
+    }
+
+    /**
+     * Index of the spectra file of the PSM, the ms_run[n] of mzTab or the position of the SpectraData in mzIdentML.
+     * @return ms_run index
+     */
+    public int getMsRun() {
+        return msRun;
+    }
+
+    /**
+     * Reference of the spectrum in its spectra file, for example index=5 or scan=1200.
+     * @return spectrum reference
+     */
+    public String getSpectrumReference() {
+        return spectrumReference;
+    }
+
+    /**
+     * Scores of the PSM in the order of {@link ResultFileIdentifications#getSearchEngineScores()}, NaN when the
+     * PSM has no value.
+     * @return scores, the score n is at position n - 1
+     */
+    public double[] getSearchEngineScores() {
+        return searchEngineScores;
+    }
+
+    public boolean isDecoy() {
+        return decoy;
+    }
+
+    void setDecoy(boolean decoy) {
+        this.decoy = decoy;
+    }
+
+    /**
+     * Score used to rank the PSMs in the target-decoy q-value computation, lower is better.
+     * @return ranking score, NaN if the PSM has no score
+     */
+    public double getRankingScore() {
+        return rankingScore;
+    }
+
+    void setRankingScore(double rankingScore) {
+        this.rankingScore = rankingScore;
+    }
+}
@@ -0,0 +1,174 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.pride.archive.indexer.utility.SubmissionPipelineUtils;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the locations of the spectra files referenced by a result file without parsing the identifications:
+ * <ul>
+ *     <li>mzIdentML: the {@code SpectraData} elements of the {@code Inputs} section. The file is searched at byte
+ *     level for the start of the section, which is parsed with StAX, and the scan stops at its end.</li>
+ *     <li>mzTab: the {@code ms_run[n]-location} lines of the metadata section, the scan stops at the first line
+ *     that is not metadata.</li>
+ * </ul>
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class SpectraDataScanner {
+
+    private static final byte[] INPUTS = "Inputs".getBytes(StandardCharsets.US_ASCII);
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private SpectraDataScanner() {
+    }
+
+    /**
+     * Locations of the spectra files referenced by a result file.
+     * @param resultFile mzIdentML or mzTab file, not compressed
+     * @param fileType type of the result file
+     * @return locations as written in the result file
+     * @throws IOException
+     */
+    public static List<String> readSpectraLocations(String resultFile, SubmissionPipelineUtils.FileType fileType) throws IOException {
+        if (fileType == SubmissionPipelineUtils.FileType.MZID)
+            return readMzIdentMLLocations(new File(resultFile));
+        if (fileType == SubmissionPipelineUtils.FileType.MZTAB)
+            return readMzTabLocations(new File(resultFile));
+        return new ArrayList<>();
+    }
+
+    private static List<String> readMzIdentMLLocations(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long start = findInputsElement(channel);
+            List<String> locations = new ArrayList<>();
+            if (start < 0) {
+                log.warn("No Inputs section in the mzIdentML -- " + file.getAbsolutePath());
+                return locations;
+            }
+            channel.position(start);
+
+            // The fragment starts at <Inputs> and is well formed until </Inputs>, the namespace prefixes are not
+            // declared in it so the reader is not namespace aware and the prefixes are removed from the names.
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            XMLStreamReader reader = null;
+            try {
+                reader = factory.createXMLStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8.name());
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT && "SpectraData".equals(localName(reader.getLocalName()))) {
+                        String location = reader.getAttributeValue(null, "location");
+                        if (location != null)
+                            locations.add(location);
+                    } else if (event == XMLStreamConstants.END_ELEMENT && "Inputs".equals(localName(reader.getLocalName()))) {
+                        break;
+                    }
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Error reading the Inputs section of the mzIdentML -- " + file.getAbsolutePath(), e);
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (XMLStreamException e) {
+                        log.debug("Error closing the mzIdentML reader -- " + e.getMessage());
+                    }
+                }
+            }
+            return locations;
+        }
+    }
+
+    private static String localName(String name) {
+        int colon = name.indexOf(':');
+        return colon < 0 ? name : name.substring(colon + 1);
+    }
+
+    /**
+     * Position of the start tag of the Inputs element, with or without namespace prefix.
+     * @return position of the '&lt;' of the tag, -1 if the element is not found
+     */
+    private static long findInputsElement(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        // Bytes kept from the previous buffer, enough for a prefixed tag split between two reads.
+        int carry = 64;
+        byte[] window = new byte[BUFFER_BYTES + carry];
+        int windowLength = 0;
+        long windowStart = 0;
+        while (true) {
+            ((Buffer) buffer).clear();
+            int read = channel.read(buffer);
+            if (read <= 0)
+                return -1;
+            ((Buffer) buffer).flip();
+            buffer.get(window, windowLength, read);
+            windowLength += read;
+
+            for (int i = 0; i + INPUTS.length < windowLength; i++) {
+                if (!matches(window, i, INPUTS))
+                    continue;
+                byte next = window[i + INPUTS.length];
+                if (next != '>' && next != ' ' && next != '\t' && next != '\r' && next != '\n')
+                    continue;
+                int tagStart = i - 1;
+                if (tagStart >= 0 && window[tagStart] == ':') {
+                    tagStart--;
+                    while (tagStart >= 0 && isNameByte(window[tagStart]))
+                        tagStart--;
+                }
+                if (tagStart >= 0 && window[tagStart] == '<')
+                    return windowStart + tagStart;
+            }
+
+            int keep = Math.min(carry, windowLength);
+            System.arraycopy(window, windowLength - keep, window, 0, keep);
+            windowStart += windowLength - keep;
+            windowLength = keep;
+        }
+    }
+
+    private static boolean matches(byte[] window, int offset, byte[] pattern) {
+        for (int i = 0; i < pattern.length; i++)
+            if (window[offset + i] != pattern[i])
+                return false;
+        return true;
+    }
+
+    private static boolean isNameByte(byte value) {
+        return (value >= 'a' && value <= 'z') || (value >= 'A' && value <= 'Z') || (value >= '0' && value <= '9')
+                || value == '_' || value == '-' || value == '.';
+    }
+
+    private static List<String> readMzTabLocations(File file) throws IOException {
+        List<String> locations = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("COM"))
+                    continue;
+                if (!line.startsWith("MTD"))
+                    break;
+                String[] values = line.split("\t");
+                if (values.length >= 3 && values[1].trim().matches("ms_run\\[\\d+]-location"))
+                    locations.add(values[2].trim());
+            }
+        }
+        return locations;
+    }
+}
@@ -0,0 +1,323 @@
+package uk.ac.ebi.pride.archive.indexer.services.proteomics;
+
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.pride.archive.dataprovider.data.spectra.BinaryArchiveSpectrum;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Clustering of the spectra of an archive spectra json file inside the JVM, an alternative to exporting the spectra
+ * to MGF and running MaraCluster. The result is the same assignment of spectrum ordinal (position in the file) to
+ * cluster that is read from the MaraCluster output.
+ *
+ * <ol>
+ *     <li>The precursor m/z and charge of all the spectra are read without decoding the peaks and the spectra are
+ *     sorted by charge and precursor m/z.</li>
+ *     <li>The sorted spectra are split in buckets where a gap between consecutive precursors is bigger than the
+ *     precursor tolerance, or when the bucket reaches the maximum size.</li>
+ *     <li>The peaks of each bucket are read and converted in vectors: the most intense peaks, binned by m/z, with
+ *     square root intensities and unit norm.</li>
+ *     <li>Each bucket is clustered with a greedy incremental linkage, as PRIDE Cluster does: a spectrum joins the
+ *     most similar cluster whose representative is within the precursor tolerance and has a cosine similarity over
+ *     the threshold, otherwise it opens a new cluster and becomes its representative.</li>
+ * </ol>
+ * Buckets are independent and are clustered in parallel, the cluster ids are assigned afterwards in bucket order,
+ * so the result does not depend on the number of threads. Spectra without precursor or peaks are singletons.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class SpectrumClusteringEngine {
+
+    private static final int READ_BATCH_SIZE = 2000;
+    private static final Set<ArchiveSpectrumMetadata.Field> PRECURSOR_FIELDS = EnumSet.of(
+            ArchiveSpectrumMetadata.Field.PRECURSOR_MZ, ArchiveSpectrumMetadata.Field.PRECURSOR_CHARGE);
+
+    // Sort key of a spectrum: charge (4 bits), precursor m/z in 1e-4 units (27 bits) and ordinal (32 bits).
+    private static final double MZ_UNITS = 1e4;
+    private static final long MZ_MASK = (1L << 27) - 1;
+    private static final int MAX_CHARGE = 15;
+    private static final int CHARGE_SHIFT = 59;
+    private static final int MZ_SHIFT = 32;
+
+    private final double precursorTolerancePpm;
+    private final double similarityThreshold;
+    private final double binWidth;
+    private final int topPeaks;
+    private final int maxBucketSize;
+
+    /**
+     * @param precursorTolerancePpm maximum precursor m/z difference of the spectra of a cluster, in ppm
+     * @param similarityThreshold minimum cosine similarity with the representative of a cluster to join it
+     * @param binWidth width in m/z of the bins of the peak vectors
+     * @param topPeaks number of most intense peaks of each spectrum used in the vectors
+     * @param maxBucketSize maximum number of spectra compared together
+     */
+    public SpectrumClusteringEngine(double precursorTolerancePpm, double similarityThreshold, double binWidth,
+                                    int topPeaks, int maxBucketSize) {
+        this.precursorTolerancePpm = precursorTolerancePpm;
+        this.similarityThreshold = similarityThreshold;
+        this.binWidth = binWidth;
+        this.topPeaks = topPeaks;
+        this.maxBucketSize = maxBucketSize;
+    }
+
+    /**
+     * Short description of the parameters, the clusters of two engines with the same description are the same.
+     * @return description of the parameters
+     */
+    public String describe() {
+        return String.format(Locale.ROOT, "native-%sppm-%s-%s-%d-%d", precursorTolerancePpm, similarityThreshold,
+                binWidth, topPeaks, maxBucketSize);
+    }
+
+    /**
+     * Cluster all the spectra of the reader.
+     * @param reader archive spectra file with its index already built
+     * @param clusters table that receives the cluster of each spectrum ordinal
+     * @return number of clusters
+     * @throws IOException
+     */
+    public int cluster(PrideJsonRandomAccess reader, ClusterAssignmentTable clusters) throws IOException {
+
+        long[] offsets = reader.getOffsets();
+        long[] keys = new long[offsets.length];
+        int sortable = 0;
+        int[] singletons = new int[16];
+        int singletonCount = 0;
+        for (int batchStart = 0; batchStart < offsets.length; batchStart += READ_BATCH_SIZE) {
+            int batchEnd = Math.min(offsets.length, batchStart + READ_BATCH_SIZE);
+            List<ArchiveSpectrumMetadata> precursors = reader.readArchiveSpectraMetadataAt(
+                    Arrays.copyOfRange(offsets, batchStart, batchEnd), PRECURSOR_FIELDS);
+            for (int i = 0; i < precursors.size(); i++) {
+                int ordinal = batchStart + i;
+                ArchiveSpectrumMetadata precursor = precursors.get(i);
+                if (precursor == null || precursor.getPrecursorMz() == null || precursor.getPrecursorMz() <= 0) {
+                    if (singletonCount == singletons.length)
+                        singletons = Arrays.copyOf(singletons, singletonCount * 2);
+                    singletons[singletonCount++] = ordinal;
+                    continue;
+                }
+                long charge = clampCharge(precursor.getPrecursorCharge());
+                long mz = Math.min(MZ_MASK, Math.round(precursor.getPrecursorMz() * MZ_UNITS));
+                keys[sortable++] = (charge << CHARGE_SHIFT) | (mz << MZ_SHIFT) | ordinal;
+            }
+        }
+        Arrays.parallelSort(keys, 0, sortable);
+
+        int[] bucketStarts = bucketStarts(keys, sortable);
+        int buckets = bucketStarts.length - 1;
+
+        // Consecutive buckets are read together, units of work are split in parallel.
+        List<int[]> units = new ArrayList<>();
+        for (int bucket = 0; bucket < buckets; ) {
+            int last = bucket + 1;
+            while (last < buckets && bucketStarts[last] - bucketStarts[bucket] < READ_BATCH_SIZE)
+                last++;
+            units.add(new int[]{bucket, last});
+            bucket = last;
+        }
+
+        int[] localClusters = new int[sortable];
+        int[] bucketClusters = new int[buckets];
+        IntStream.range(0, units.size()).parallel().forEach(unit -> {
+            try {
+                clusterBuckets(reader, offsets, keys, bucketStarts, units.get(unit)[0], units.get(unit)[1],
+                        localClusters, bucketClusters);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        int clusterId = 0;
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            for (int i = bucketStarts[bucket]; i < bucketStarts[bucket + 1]; i++)
+                clusters.set(ordinal(keys[i]), clusterId + localClusters[i]);
+            clusterId += bucketClusters[bucket];
+        }
+        for (int i = 0; i < singletonCount; i++)
+            clusters.set(singletons[i], clusterId++);
+
+        log.info(String.format("Native clustering (%s) -- %d spectra, %d buckets, %d clusters, %d spectra without precursor",
+                describe(), offsets.length, buckets, clusterId, singletonCount));
+        return clusterId;
+    }
+
+    /**
+     * Split the sorted spectra where the charge changes, where the gap to the previous precursor is bigger than the
+     * tolerance or when the bucket is full.
+     * @return start of each bucket in the sorted keys, plus the end of the last one
+     */
+    private int[] bucketStarts(long[] keys, int size) {
+        int[] starts = new int[16];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            boolean newBucket = i == 0
+                    || charge(keys[i]) != charge(keys[i - 1])
+                    || mz(keys[i]) - mz(keys[i - 1]) > tolerance(mz(keys[i]))
+                    || i - starts[count - 1] >= maxBucketSize;
+            if (newBucket) {
+                if (count + 1 >= starts.length)
+                    starts = Arrays.copyOf(starts, starts.length * 2);
+                starts[count++] = i;
+            }
+        }
+        starts[count] = size;
+        return Arrays.copyOf(starts, count + 1);
+    }
+
+    private void clusterBuckets(PrideJsonRandomAccess reader, long[] offsets, long[] keys, int[] bucketStarts,
+                                int fromBucket, int toBucket, int[] localClusters, int[] bucketClusters) throws IOException {
+        int first = bucketStarts[fromBucket];
+        int last = bucketStarts[toBucket];
+        long[] unitOffsets = new long[last - first];
+        for (int i = first; i < last; i++)
+            unitOffsets[i - first] = offsets[ordinal(keys[i])];
+        List<BinaryArchiveSpectrum> spectra = reader.readArchiveSpectraAt(unitOffsets);
+        PeakVector[] vectors = new PeakVector[last - first];
+        for (int i = 0; i < vectors.length; i++)
+            vectors[i] = spectra.get(i) == null ? null : vectorize(spectra.get(i).getMasses(), spectra.get(i).getIntensities());
+
+        for (int bucket = fromBucket; bucket < toBucket; bucket++) {
+            int start = bucketStarts[bucket];
+            int end = bucketStarts[bucket + 1];
+            // Representatives in creation order, which is ascending precursor m/z.
+            int[] representatives = new int[16];
+            int count = 0;
+            for (int i = start; i < end; i++) {
+                PeakVector vector = vectors[i - first];
+                double mz = mz(keys[i]);
+                int best = -1;
+                double bestSimilarity = similarityThreshold;
+                for (int c = count - 1; vector != null && c >= 0; c--) {
+                    int representative = representatives[c];
+                    if (mz - mz(keys[representative]) > tolerance(mz))
+                        break;
+                    PeakVector representativeVector = vectors[representative - first];
+                    if (representativeVector == null)
+                        continue;
+                    double similarity = vector.cosine(representativeVector);
+                    if (similarity > bestSimilarity || (best < 0 && similarity == bestSimilarity)) {
+                        best = c;
+                        bestSimilarity = similarity;
+                    }
+                }
+                if (best < 0) {
+                    if (count == representatives.length)
+                        representatives = Arrays.copyOf(representatives, count * 2);
+                    best = count;
+                    representatives[count++] = i;
+                }
+                localClusters[i] = best;
+            }
+            bucketClusters[bucket] = count;
+        }
+    }
+
+    /**
+     * Vector of the most intense peaks of a spectrum, binned by m/z, with square root intensities and unit norm.
+     * @return vector, null if the spectrum has no peaks
+     */
+    public PeakVector vectorize(Double[] masses, Double[] intensities) {
+        if (masses == null || intensities == null)
+            return null;
+        int peaks = Math.min(masses.length, intensities.length);
+        if (peaks == 0)
+            return null;
+
+        double threshold = Double.NEGATIVE_INFINITY;
+        if (peaks > topPeaks) {
+            double[] sorted = new double[peaks];
+            for (int i = 0; i < peaks; i++)
+                sorted[i] = intensities[i] == null ? 0 : intensities[i];
+            Arrays.sort(sorted);
+            threshold = sorted[peaks - topPeaks];
+        }
+
+        // Bin and peak index packed in a long to sort the selected peaks by bin.
+        long[] selected = new long[Math.min(peaks, topPeaks)];
+        int count = 0;
+        for (int i = 0; i < peaks && count < selected.length; i++) {
+            if (masses[i] == null || intensities[i] == null || intensities[i] < threshold || intensities[i] <= 0)
+                continue;
+            long bin = (long) (masses[i] / binWidth);
+            selected[count++] = (bin << 32) | i;
+        }
+        if (count == 0)
+            return null;
+        Arrays.sort(selected, 0, count);
+
+        int[] bins = new int[count];
+        float[] weights = new float[count];
+        int size = 0;
+        double norm = 0;
+        for (int i = 0; i < count; i++) {
+            int bin = (int) (selected[i] >>> 32);
+            double weight = Math.sqrt(intensities[(int) selected[i]]);
+            if (size > 0 && bins[size - 1] == bin) {
+                norm -= weights[size - 1] * (double) weights[size - 1];
+                weights[size - 1] += weight;
+            } else {
+                bins[size] = bin;
+                weights[size++] = (float) weight;
+            }
+            norm += weights[size - 1] * (double) weights[size - 1];
+        }
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < size; i++)
+            weights[i] *= scale;
+        return new PeakVector(Arrays.copyOf(bins, size), Arrays.copyOf(weights, size));
+    }
+
+    /**
+     * Test if a spectrum can join a cluster: same charge, precursor within the tolerance and a similarity with the
+     * representative of the cluster over the threshold.
+     * @return similarity with the representative, or a negative value if the spectrum can't join the cluster
+     */
+    double similarity(int charge, double mz, PeakVector vector,
+                      int representativeCharge, double representativeMz, PeakVector representativeVector) {
+        if (charge != representativeCharge || Math.abs(mz - representativeMz) > tolerance(Math.max(mz, representativeMz))
+                || vector == null || representativeVector == null)
+            return -1;
+        double similarity = vector.cosine(representativeVector);
+        return similarity >= similarityThreshold ? similarity : -1;
+    }
+
+    /**
+     * Precursor tolerance in m/z at a given m/z.
+     * @param mz precursor m/z
+     * @return tolerance in m/z
+     */
+    public double tolerance(double mz) {
+        return mz * precursorTolerancePpm / 1e6;
+    }
+
+    /**
+     * Charge used to compare the precursors, missing and out of range charges are clamped.
+     * @param charge precursor charge
+     * @return clamped charge
+     */
+    public static int clampCharge(Integer charge) {
+        return charge == null ? 0 : Math.max(0, Math.min(MAX_CHARGE, charge));
+    }
+
+    private static int charge(long key) {
+        return (int) (key >>> CHARGE_SHIFT);
+    }
+
+    private static double mz(long key) {
+        return ((key >>> MZ_SHIFT) & MZ_MASK) / MZ_UNITS;
+    }
+
+    private static int ordinal(long key) {
+        return (int) key;
+    }
+}
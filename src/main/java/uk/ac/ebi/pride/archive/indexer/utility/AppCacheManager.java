@@ -1,93 +1,236 @@
 package uk.ac.ebi.pride.archive.indexer.utility;
 
+import com.sun.management.HotSpotDiagnosticMXBean;
+import lombok.extern.slf4j.Slf4j;
 import org.ehcache.Cache;
 import org.ehcache.CacheManager;
+import org.ehcache.config.CacheConfiguration;
 import org.ehcache.config.builders.CacheConfigurationBuilder;
 import org.ehcache.config.builders.CacheManagerBuilder;
 import org.ehcache.config.builders.ResourcePoolsBuilder;
 import org.ehcache.config.units.EntryUnit;
 import org.ehcache.config.units.MemoryUnit;
-import uk.ac.ebi.pride.archive.dataprovider.common.Triple;
-import uk.ac.ebi.pride.archive.indexer.services.InferenceService;
+import org.ehcache.core.spi.service.ServiceFactory;
+import org.ehcache.core.spi.service.StatisticsService;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.ServiceLoader;
 import java.util.UUID;
 
+/**
+ * Holder of the ehcache caches used by the indexer. The caches are created the first time {@link #getInstance()}
+ * is called. The size of the tiers is derived from the maximum heap, the maximum direct memory and the size of the
+ * input files, unless it is fixed in the configuration with {@link #configure(long, long, long, String, long)}.
+ */
+@Slf4j
 public class AppCacheManager implements Serializable {
 
     public final static long serialVersionUID = -1012032095143052963L;
-    private static final String PEPTIDOFORM_CACHE = "PeptidoformCache";
-    private static final String FILTER_PEPTIDOFORM_CACHE = "FiterPeptidoformCache";
     private static AppCacheManager instance = null;
-    private final static CacheManager cacheManage;
+    private static CacheManager cacheManage;
+
+    private static CacheConfiguration<String, ArrayList> proteinToPsmsConfiguration;
+
+    // Number of caches sharing the memory and disk budgets.
+    private static final int CACHE_COUNT = 1;
+    // Rough size in heap of one entry (boxed key, value and ehcache holder).
+    private static final long HEAP_ENTRY_BYTES = 256;
+    private static final long MIN_HEAP_ENTRIES = 10_000;
+    private static final long MAX_HEAP_ENTRIES = 1_000_000;
+    private static final long MIN_OFFHEAP_MB = 16;
+    private static final long DEFAULT_OFFHEAP_MB = 300;
+    private static final long DEFAULT_DISK_MB = 5 * 1024;
+    private static final long MB = 1024 * 1024;
+
+    private static long heapEntries = 0;
+    private static long offHeapMB = 0;
+    private static long diskMB = 0;
+    private static long inputBytes = 0;
+    private static File scratchDirectory = new File(System.getProperty("user.dir"));
+    private static long statisticsPeriodSeconds = 0;
+    private static File metricsFile = null;
+    private static CacheStatisticsMonitor statisticsMonitor;
+
+    private static final long timeStamp = UUID.randomUUID().getMostSignificantBits() & Long.MAX_VALUE;
+
+    /**
+     * Configure the caches before they are created. Sizes of 0 are computed from the resources of the JVM
+     * and the size of the input.
+     *
+     * @param heapEntries number of entries in heap for each cache
+     * @param offHeapMB size in MB of the off-heap tier of each cache
+     * @param diskMB size in MB of the disk tier of each cache
+     * @param scratchDirectory directory for the disk tier and other temporary files, the working directory if empty
+     * @param inputBytes total size of the input files of the command
+     */
+    public static synchronized void configure(long heapEntries, long offHeapMB, long diskMB,
+                                              String scratchDirectory, long inputBytes) {
+        if (cacheManage != null) {
+            log.warn("The caches are already created, the cache configuration is ignored");
+            return;
+        }
+        AppCacheManager.heapEntries = heapEntries;
+        AppCacheManager.offHeapMB = offHeapMB;
+        AppCacheManager.diskMB = diskMB;
+        AppCacheManager.inputBytes = inputBytes;
+        if (scratchDirectory != null && !scratchDirectory.trim().isEmpty())
+            AppCacheManager.scratchDirectory = new File(scratchDirectory.trim());
+    }
+
+    /**
+     * Configure the statistics of the caches.
+     * @param periodSeconds seconds between the statistics logged during the run, 0 to log only the summary at the end
+     * @param metricsFile file where the summary is written in json, null or empty to only log it
+     */
+    public static synchronized void configureStatistics(long periodSeconds, String metricsFile) {
+        AppCacheManager.statisticsPeriodSeconds = periodSeconds;
+        if (metricsFile != null && !metricsFile.trim().isEmpty())
+            AppCacheManager.metricsFile = new File(metricsFile.trim());
+    }
+
+    /**
+     * Directory for the temporary files of the indexer, local disk is recommended.
+     * @return scratch directory
+     */
+    public static File getScratchDirectory() {
+        if (!scratchDirectory.exists() && !scratchDirectory.mkdirs())
+            log.warn("The scratch directory can't be created --- " + scratchDirectory.getAbsolutePath());
+        return scratchDirectory;
+    }
+
+    public static synchronized AppCacheManager getInstance() {
+        if (instance == null) {
+            init();
+            instance = new AppCacheManager();
+        }
+        return instance;
+    }
 
-    private static final String INPUT_SPECTRA_CACHE = "InputSpectra";
-    private static final String CLUSTERS_CACHE = "Clusters";
-    private static final String PROTEIN_TO_PSMS_CACHE = "ProteinToPsms";
+    private static void init() {
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        long maxDirect = maxDirectMemory();
+
+        long heap = heapEntries;
+        if (heap <= 0) {
+            heap = maxHeap / 10 / CACHE_COUNT / HEAP_ENTRY_BYTES;
+            // A spectrum record takes more than 1KB of input, so the input bounds the useful number of entries.
+            if (inputBytes > 0)
+                heap = Math.min(heap, inputBytes / 1024);
+            heap = Math.max(MIN_HEAP_ENTRIES, Math.min(MAX_HEAP_ENTRIES, heap));
+        }
+
+        long offHeap = offHeapMB;
+        if (offHeap <= 0) {
+            // The spectra index also lives in direct memory, the caches take 40% of it.
+            offHeap = maxDirect * 4 / 10 / CACHE_COUNT / MB;
+            offHeap = Math.min(offHeap, inputBytes > 0 ? inputBytes / CACHE_COUNT / MB : DEFAULT_OFFHEAP_MB);
+            offHeap = Math.max(MIN_OFFHEAP_MB, offHeap);
+        }
 
-    private static final long timeStamp;
+        long disk = diskMB;
+        if (disk <= 0) {
+            long usable = getScratchDirectory().getUsableSpace() / 2 / CACHE_COUNT / MB;
+            disk = Math.min(usable, inputBytes > 0 ? inputBytes / MB : DEFAULT_DISK_MB);
+        }
+        // ehcache needs every tier to be bigger than the one above it.
+        disk = Math.max(disk, offHeap * 2);
 
-    static {
-        ResourcePoolsBuilder spectraResourceBuilder = ResourcePoolsBuilder.newResourcePoolsBuilder()
-                .heap(100000, EntryUnit.ENTRIES)
-                .offheap(300, MemoryUnit.MB)
-                .disk(5, MemoryUnit.GB);
+        log.info(String.format("Cache tiers per cache -- heap %d entries, off-heap %d MB, disk %d MB in %s " +
+                        "(max heap %d MB, max direct memory %d MB, input %d MB)",
+                heap, offHeap, disk, getCacheFile().getAbsolutePath(), maxHeap / MB, maxDirect / MB, inputBytes / MB));
 
         ResourcePoolsBuilder proteinsResourceBuilder = ResourcePoolsBuilder.newResourcePoolsBuilder()
-                .heap(100000, EntryUnit.ENTRIES)
-                .offheap(300, MemoryUnit.MB);
+                .heap(heap, EntryUnit.ENTRIES)
+                .offheap(offHeap, MemoryUnit.MB);
 
-        timeStamp = UUID.randomUUID().getMostSignificantBits() & Long.MAX_VALUE;
+        // ProteinToPsms caches are created by each assay, see createProteinToPsmsCache
+        proteinToPsmsConfiguration = CacheConfigurationBuilder
+                .newCacheConfigurationBuilder(String.class, ArrayList.class, proteinsResourceBuilder)
+                .withValueSerializer(new PeptideSpectrumOverviewListSerializer())
+                .build();
 
+        StatisticsService statisticsService = createStatisticsService();
         cacheManage = CacheManagerBuilder.newCacheManagerBuilder()
-                .with(CacheManagerBuilder.persistence(System.getProperty("user.dir") + File.separator + "." + Long.toString(timeStamp) + ".cache"))
-                .withCache(INPUT_SPECTRA_CACHE, CacheConfigurationBuilder
-                        .newCacheConfigurationBuilder(String.class, Long.class, spectraResourceBuilder))
-                .withCache(CLUSTERS_CACHE, CacheConfigurationBuilder
-                        .newCacheConfigurationBuilder(Integer.class, Integer.class, spectraResourceBuilder))
-                .withCache(PROTEIN_TO_PSMS_CACHE, CacheConfigurationBuilder
-                        .newCacheConfigurationBuilder(String.class, ArrayList.class, proteinsResourceBuilder))
-                .withCache(PEPTIDOFORM_CACHE, CacheConfigurationBuilder
-                        .newCacheConfigurationBuilder(Integer.class, ArrayList.class, spectraResourceBuilder))
-                .withCache(FILTER_PEPTIDOFORM_CACHE, CacheConfigurationBuilder
-                        .newCacheConfigurationBuilder(Integer.class, Triple.class, spectraResourceBuilder))
+                .using(statisticsService)
+                .with(CacheManagerBuilder.persistence(getCacheFile()))
                 .build();
         cacheManage.init();
 
-        System.out.println("Cache Initialized");
+        statisticsMonitor = new CacheStatisticsMonitor(statisticsService);
+        statisticsMonitor.start(statisticsPeriodSeconds);
+
+        log.info("Cache Initialized");
     }
 
-    public static AppCacheManager getInstance() {
-        if (instance == null) {
-            instance = new AppCacheManager();
+    /**
+     * StatisticsService of ehcache, created through its {@link ServiceFactory} so the indexer only depends on the
+     * StatisticsService interface and not on the implementation, which is internal to ehcache.
+     * @return StatisticsService to register in the cache manager
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static StatisticsService createStatisticsService() {
+        for (ServiceFactory factory : ServiceLoader.load(ServiceFactory.class, AppCacheManager.class.getClassLoader())) {
+            if (StatisticsService.class.isAssignableFrom(factory.getServiceType()))
+                return (StatisticsService) factory.create(null);
         }
-        return instance;
+        throw new IllegalStateException("No ehcache StatisticsService available in the classpath");
     }
 
-    public Cache<Integer, Integer> getClustersCache(){
-        return cacheManage.getCache(CLUSTERS_CACHE, Integer.class, Integer.class);
+    /**
+     * Maximum direct memory of the JVM, -XX:MaxDirectMemorySize or the maximum heap when it is not set.
+     */
+    private static long maxDirectMemory() {
+        try {
+            HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            long value = Long.parseLong(bean.getVMOption("MaxDirectMemorySize").getValue());
+            if (value > 0)
+                return value;
+        } catch (RuntimeException e) {
+            log.debug("MaxDirectMemorySize not available --- " + e.getMessage());
+        }
+        return Runtime.getRuntime().maxMemory();
     }
 
-    public Cache<String, Long> getPrideJsonSpectra() {
-        return cacheManage.getCache(INPUT_SPECTRA_CACHE, String.class, Long.class);
+    private static File getCacheFile() {
+        return new File(scratchDirectory, "." + Long.toString(timeStamp) + ".cache");
     }
 
+    /**
+     * Create a ProteinToPsms cache for one assay. The cache must be removed with {@link #removeCache(String)}
+     * when the assay is done.
+     * @param alias unique name of the cache
+     * @return protein accession to psms cache
+     */
+    public Cache<String, ? extends List> createProteinToPsmsCache(String alias) {
+        synchronized (AppCacheManager.class) {
+            Cache<String, ArrayList> cache = cacheManage.createCache(alias, proteinToPsmsConfiguration);
+            statisticsMonitor.register(alias);
+            return cache;
+        }
+    }
 
-    public Cache<String, ? extends List> getProteinToPsmsCache() {
-        return cacheManage.getCache(PROTEIN_TO_PSMS_CACHE, String.class, ArrayList.class);
+    public void removeCache(String alias) {
+        synchronized (AppCacheManager.class) {
+            if (cacheManage != null) {
+                statisticsMonitor.unregister(alias);
+                cacheManage.removeCache(alias);
+            }
+        }
     }
 
-    public static void closeInstance(){
+    public static synchronized void closeInstance(){
         if(cacheManage != null){
+            statisticsMonitor.stop(metricsFile);
             cacheManage.close();
-            File cacheFile = new File(System.getProperty("user.dir") + File.separator + "." + Long.toString(timeStamp) + ".cache");
+            File cacheFile = getCacheFile();
             if(cacheFile.exists()){
                 try {
                     Files.walk(cacheFile.toPath())
@@ -99,16 +242,9 @@ public class AppCacheManager implements Serializable {
                     throw new RuntimeException(e);
                 }
             }
-
+            cacheManage = null;
+            instance = null;
+            log.info("Cache Closed");
         }
-        System.out.println("Cache Closed");
-    }
-
-    public Cache<Integer, ? extends List> getPeptidoformCache() {
-        return cacheManage.getCache(PEPTIDOFORM_CACHE, Integer.class, ArrayList.class);
-    }
-
-    public Cache<Integer, ? extends Triple> getFilterPeptidoformCache() {
-        return cacheManage.getCache(FILTER_PEPTIDOFORM_CACHE, Integer.class, Triple.class);
     }
 }
@@ -1,5 +1,6 @@
 package uk.ac.ebi.pride.archive.indexer.utility;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.module.paranamer.ParanamerModule;
@@ -46,6 +47,19 @@ public class BackupUtil {
         if(flush) bw.flush();
     }
 
+    /**
+     * Serialize an object to its one line json representation. It can be called concurrently.
+     * @param obj Object to serialize
+     * @return json line
+     */
+    public static String writeAsString(Object obj) {
+        try {
+            return objectMapper.writeValueAsString(obj);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     public static String getProteinEvidenceFile(String backupPath, String projectAccession, String assayAccession) {
         if (!backupPath.endsWith(File.separator)) {
             backupPath = backupPath + File.separator;
@@ -78,6 +92,20 @@ public class BackupUtil {
         return backupPath + projectAccession + File.separator + projectAccession + "_" + assayAccession + "_" + SummaryArchiveSpectrum.class.getSimpleName() + JSON_EXT;
     }
 
+    /**
+     * Reason file of an assay rejected by the pre-flight scan of its result files.
+     * @param backupPath Root folder containing all the backup files
+     * @param projectAccession Project or reanalysis accession
+     * @param resultFileName Name of the result file without extension
+     * @return path of the reason file
+     */
+    public static String getPreflightReportFile(String backupPath, String projectAccession, String resultFileName) {
+        if (!backupPath.endsWith(File.separator)) {
+            backupPath = backupPath + File.separator;
+        }
+        return backupPath + projectAccession + File.separator + projectAccession + "_" + resultFileName + "_Preflight" + JSON_EXT;
+    }
+
     public static <T> List<T> getObjectsFromFile(Path file, Class classType) throws Exception {
         List<T> list = new ArrayList<>();
         JavaType javaType = objectMapper.getTypeFactory().constructType(classType);
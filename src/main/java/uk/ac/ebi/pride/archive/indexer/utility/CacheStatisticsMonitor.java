@@ -0,0 +1,132 @@
+package uk.ac.ebi.pride.archive.indexer.utility;
+
+import lombok.extern.slf4j.Slf4j;
+import org.ehcache.core.statistics.CacheStatistics;
+import org.ehcache.core.statistics.TierStatistics;
+import org.ehcache.core.spi.service.StatisticsService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the ehcache statistics of the {@link AppCacheManager} caches: hits, misses, evictions and, for each tier,
+ * the number of mappings and the bytes allocated and occupied. The samples are logged periodically during the run,
+ * the last sample of each cache is kept after the cache is removed and the summary is logged and written into the
+ * metrics file when the caches are closed.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class CacheStatisticsMonitor {
+
+    private final StatisticsService statisticsService;
+    private final Set<String> aliases = new LinkedHashSet<>();
+    private final Map<String, Map<String, Object>> lastSamples = new LinkedHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    public CacheStatisticsMonitor(StatisticsService statisticsService) {
+        this.statisticsService = statisticsService;
+    }
+
+    public synchronized void register(String alias) {
+        aliases.add(alias);
+    }
+
+    /**
+     * Take a last sample of a cache that is going to be removed.
+     * @param alias cache alias
+     */
+    public synchronized void unregister(String alias) {
+        if (aliases.remove(alias))
+            sample(alias);
+    }
+
+    /**
+     * Log a sample of all the caches every period.
+     * @param periodSeconds seconds between samples, 0 disables the periodic sampling
+     */
+    public synchronized void start(long periodSeconds) {
+        if (periodSeconds <= 0)
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cache-statistics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::logSample, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    private synchronized void logSample() {
+        try {
+            for (String alias : aliases)
+                log.info("Cache statistics -- " + format(alias, sample(alias)));
+        } catch (RuntimeException e) {
+            log.warn("Cache statistics can't be sampled --- " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop the sampling, log the summary of all the caches and write it in the metrics file if provided.
+     * @param metricsFile json file for the statistics, null to only log them
+     */
+    public synchronized void stop(File metricsFile) {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+        for (String alias : new ArrayList<>(aliases))
+            sample(alias);
+        lastSamples.forEach((alias, sample) -> log.info("Cache summary -- " + format(alias, sample)));
+        if (metricsFile != null) {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("cacheStatistics", lastSamples);
+            try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(metricsFile.toPath(), StandardCharsets.UTF_8))) {
+                writer.println(BackupUtil.writeAsString(metrics));
+            } catch (IOException e) {
+                log.error("The metrics file can't be written --- " + metricsFile.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    private Map<String, Object> sample(String alias) {
+        CacheStatistics statistics = statisticsService.getCacheStatistics(alias);
+        Map<String, Object> sample = new LinkedHashMap<>();
+        sample.put("hits", statistics.getCacheHits());
+        sample.put("misses", statistics.getCacheMisses());
+        sample.put("hitPercentage", statistics.getCacheHitPercentage());
+        sample.put("puts", statistics.getCachePuts());
+        sample.put("evictions", statistics.getCacheEvictions());
+        Map<String, Object> tiers = new LinkedHashMap<>();
+        for (Map.Entry<String, TierStatistics> entry : statistics.getTierStatistics().entrySet()) {
+            TierStatistics tier = entry.getValue();
+            Map<String, Object> tierSample = new LinkedHashMap<>();
+            tierSample.put("mappings", tier.getMappings());
+            tierSample.put("hits", tier.getHits());
+            tierSample.put("misses", tier.getMisses());
+            tierSample.put("evictions", tier.getEvictions());
+            tierSample.put("allocatedBytes", tier.getAllocatedByteSize());
+            tierSample.put("occupiedBytes", tier.getOccupiedByteSize());
+            tiers.put(entry.getKey(), tierSample);
+        }
+        sample.put("tiers", tiers);
+        lastSamples.put(alias, sample);
+        return sample;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String format(String alias, Map<String, Object> sample) {
+        StringBuilder builder = new StringBuilder(String.format("%s: hits %s, misses %s (%.1f%% hits), evictions %s",
+                alias, sample.get("hits"), sample.get("misses"), (Float) sample.get("hitPercentage"), sample.get("evictions")));
+        ((Map<String, Map<String, Object>>) sample.get("tiers")).forEach((tier, tierSample) ->
+                builder.append(String.format("; %s %s mappings, %s evictions, %d/%d MB occupied",
+                        tier, tierSample.get("mappings"), tierSample.get("evictions"),
+                        (Long) tierSample.get("occupiedBytes") / (1024 * 1024),
+                        (Long) tierSample.get("allocatedBytes") / (1024 * 1024))));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,189 @@
+package uk.ac.ebi.pride.archive.indexer.utility;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding used by the ehcache serializers of the indexer. Integers and lengths are written as varints,
+ * strings that repeat inside a value (sequences, peptidoforms) are written once and referenced by position in a
+ * dictionary, and consecutive usis are written as the length of the prefix shared with the previous usi and the
+ * remaining suffix. No class descriptors are written, the serializer knows the layout of the value.
+ *
+ * @author ypriverol
+ */
+public final class CompactEncoding {
+
+    private CompactEncoding() {
+    }
+
+    /**
+     * Growable output buffer. The dictionary and the previous usi are scoped to one serialized value.
+     */
+    public static final class Output {
+
+        private byte[] bytes = new byte[256];
+        private int size = 0;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private byte[] previousUsi = new byte[0];
+
+        public void writeByte(int value) {
+            ensure(1);
+            bytes[size++] = (byte) value;
+        }
+
+        public void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        public void writeDouble(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            ensure(8);
+            for (int i = 7; i >= 0; i--)
+                bytes[size++] = (byte) (bits >>> (i * 8));
+        }
+
+        public void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writeBytes(byte[] value) {
+            writeVarInt(value.length + 1);
+            ensure(value.length);
+            System.arraycopy(value, 0, bytes, size, value.length);
+            size += value.length;
+        }
+
+        /**
+         * Write a string that is likely to repeat in the same value. The first occurrence is written inline, the
+         * following ones as a reference to the first.
+         */
+        public void writeDictionaryString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            Integer reference = dictionary.get(value);
+            if (reference != null) {
+                writeVarInt(reference + 2);
+                return;
+            }
+            dictionary.put(value, dictionary.size());
+            writeVarInt(1);
+            writeString(value);
+        }
+
+        /**
+         * Write an usi as the length of the prefix shared with the previous usi of the value plus the suffix.
+         */
+        public void writeUsi(String usi) {
+            if (usi == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] current = usi.getBytes(StandardCharsets.UTF_8);
+            int prefix = 0;
+            int max = Math.min(current.length, previousUsi.length);
+            while (prefix < max && current[prefix] == previousUsi[prefix])
+                prefix++;
+            writeVarInt(prefix + 1);
+            writeBytes(Arrays.copyOfRange(current, prefix, current.length));
+            previousUsi = current;
+        }
+
+        public ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(bytes, 0, size).slice();
+        }
+
+        private void ensure(int length) {
+            if (size + length > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+        }
+    }
+
+    /**
+     * Reader of the values written by {@link Output}.
+     */
+    public static final class Input {
+
+        private final ByteBuffer buffer;
+        private final List<String> dictionary = new ArrayList<>();
+        private byte[] previousUsi = new byte[0];
+
+        public Input(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int readByte() {
+            return buffer.get() & 0xFF;
+        }
+
+        public int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        public double readDouble() {
+            long bits = 0;
+            for (int i = 0; i < 8; i++)
+                bits = (bits << 8) | (buffer.get() & 0xFF);
+            return Double.longBitsToDouble(bits);
+        }
+
+        public String readString() {
+            byte[] value = readBytes();
+            return value == null ? null : new String(value, StandardCharsets.UTF_8);
+        }
+
+        private byte[] readBytes() {
+            int length = readVarInt();
+            if (length == 0)
+                return null;
+            byte[] value = new byte[length - 1];
+            buffer.get(value);
+            return value;
+        }
+
+        public String readDictionaryString() {
+            int reference = readVarInt();
+            if (reference == 0)
+                return null;
+            if (reference > 1)
+                return dictionary.get(reference - 2);
+            String value = readString();
+            dictionary.add(value);
+            return value;
+        }
+
+        public String readUsi() {
+            int prefix = readVarInt();
+            if (prefix == 0)
+                return null;
+            byte[] suffix = readBytes();
+            byte[] current = Arrays.copyOf(previousUsi, prefix - 1 + suffix.length);
+            System.arraycopy(suffix, 0, current, prefix - 1, suffix.length);
+            previousUsi = current;
+            return new String(current, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package uk.ac.ebi.pride.archive.indexer.utility;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link OffHeapStringLongMap} is an open-addressing hash map from {@link String} keys to primitive long values
+ * that keeps all its data outside the Java heap. It is designed for large static lookup tables such as the
+ * USI to file offset index of the PRIDE json spectrum files.
+ *
+ * - Keys are stored UTF-8 encoded in an append-only arena together with their values. Iterating the map
+ *   walks the arena, so the entries are returned in insertion order.
+ * - The slot table contains the 64-bit hash of the key and the position of the record in the arena, collisions
+ *   are resolved by linear probing.
+ * - Pages are allocated as direct buffers or, when a backing directory is provided, as memory-mapped files so the
+ *   operating system can page them in and out for huge projects.
+ *
+ * Entries can not be removed. The map is not thread-safe for writers, but once populated it can be read
+ * concurrently from any number of threads. A populated map can be saved to a file with {@link #save(File)} and
+ * memory-mapped again, read-only, with {@link #load(File)} without rebuilding it.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class OffHeapStringLongMap implements Closeable {
+
+    private static final int PAGE_BITS = 30;
+    private static final long PAGE_SIZE = 1L << PAGE_BITS;
+    private static final long PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final int SLOT_BYTES = 16;
+    private static final int RECORD_HEADER = Integer.BYTES + Long.BYTES;
+    private static final double MAX_LOAD = 0.7;
+    private static final long EMPTY = 0L;
+
+    private static final long FILE_MAGIC = 0x5052494445494458L;
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER = Long.BYTES + Integer.BYTES + 3 * Long.BYTES;
+
+    private final File backingDirectory;
+    private final boolean deleteOnClose;
+
+    private Pages table;
+    private long capacity;
+    private long mask;
+
+    private Pages arena;
+    private long arenaPosition;
+
+    private long size;
+    private int generation;
+    private boolean readOnly = false;
+
+    /**
+     * Create an in-memory map backed by direct buffers.
+     * @param expectedEntries expected number of entries, used to size the slot table.
+     */
+    public OffHeapStringLongMap(long expectedEntries) throws IOException {
+        this(expectedEntries, null, true);
+    }
+
+    /**
+     * Create a map whose pages are memory-mapped files in the given directory.
+     * @param expectedEntries expected number of entries, used to size the slot table.
+     * @param backingDirectory Directory for the page files, if null direct buffers are used.
+     * @param deleteOnClose delete the page files when the map is closed.
+     */
+    public OffHeapStringLongMap(long expectedEntries, File backingDirectory, boolean deleteOnClose) throws IOException {
+        this.backingDirectory = backingDirectory;
+        this.deleteOnClose = deleteOnClose;
+        if (backingDirectory != null)
+            Files.createDirectories(backingDirectory.toPath());
+        this.capacity = tableCapacityFor(expectedEntries);
+        this.mask = capacity - 1;
+        this.table = newPages("table-" + generation);
+        this.table.ensure(capacity * SLOT_BYTES);
+        this.arena = newPages("arena");
+        this.arenaPosition = 0;
+        this.size = 0;
+    }
+
+    private OffHeapStringLongMap(Pages table, long capacity, Pages arena, long arenaPosition, long size) {
+        this.backingDirectory = null;
+        this.deleteOnClose = false;
+        this.table = table;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.arena = arena;
+        this.arenaPosition = arenaPosition;
+        this.size = size;
+        this.readOnly = true;
+    }
+
+    private static long tableCapacityFor(long expectedEntries) {
+        long needed = (long) Math.ceil(Math.max(expectedEntries, 16) / MAX_LOAD);
+        return Long.highestOneBit(needed - 1) << 1;
+    }
+
+    private Pages newPages(String name) {
+        if (backingDirectory == null)
+            return new Pages(null);
+        return new Pages(new File(backingDirectory, name));
+    }
+
+    /**
+     * Insert or replace the value associated to a key.
+     * @param key Key of the entry
+     * @param value value to be stored
+     */
+    public void put(String key, long value) throws IOException {
+        if (readOnly)
+            throw new UnsupportedOperationException("The map has been loaded from a file and is read-only");
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(bytes);
+        long slot = findSlot(bytes, hash);
+        long record = table.getLong(slot * SLOT_BYTES + Long.BYTES);
+        if (record != EMPTY) {
+            arena.putLong(record - 1 + Integer.BYTES, value);
+            return;
+        }
+        if (size + 1 > capacity * MAX_LOAD) {
+            resize();
+            slot = findSlot(bytes, hash);
+        }
+        long position = appendRecord(bytes, value);
+        table.putLong(slot * SLOT_BYTES, hash);
+        table.putLong(slot * SLOT_BYTES + Long.BYTES, position + 1);
+        size++;
+    }
+
+    /**
+     * Return the value associated to the key
+     * @param key Key to search
+     * @param defaultValue value returned if the key is not in the map
+     * @return value in the map or the default value.
+     */
+    public long get(String key, long defaultValue) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        long slot = findSlot(bytes, hash(bytes));
+        long record = table.getLong(slot * SLOT_BYTES + Long.BYTES);
+        if (record == EMPTY)
+            return defaultValue;
+        return arena.getLong(record - 1 + Integer.BYTES);
+    }
+
+    public boolean containsKey(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        long slot = findSlot(bytes, hash(bytes));
+        return table.getLong(slot * SLOT_BYTES + Long.BYTES) != EMPTY;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Number of off-heap bytes used by the map, table plus arena.
+     * @return bytes
+     */
+    public long bytesUsed() {
+        return capacity * SLOT_BYTES + arenaPosition;
+    }
+
+    /**
+     * Iterate all the entries of the map in insertion order.
+     * @return Iterator of key and value
+     */
+    public Iterator<Map.Entry<String, Long>> iterator() {
+        return new Iterator<Map.Entry<String, Long>>() {
+            long position = 0;
+            long remaining = size;
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            public Map.Entry<String, Long> next() {
+                if (remaining <= 0)
+                    throw new NoSuchElementException();
+                if (PAGE_SIZE - (position & PAGE_MASK) < RECORD_HEADER || arena.getInt(position) < 0) {
+                    // Padding at the end of a page, the record starts in the next page.
+                    position = (position & ~PAGE_MASK) + PAGE_SIZE;
+                }
+                int length = arena.getInt(position);
+                long value = arena.getLong(position + Integer.BYTES);
+                byte[] bytes = new byte[length];
+                arena.get(position + RECORD_HEADER, bytes);
+                position += RECORD_HEADER + length;
+                remaining--;
+                return new AbstractMap.SimpleImmutableEntry<>(new String(bytes, StandardCharsets.UTF_8), value);
+            }
+        };
+    }
+
+    /**
+     * Write the map into a file that can be loaded with {@link #load(File)}. The file contains a header, the slot
+     * table and the arena.
+     * @param file destination file
+     */
+    public void save(File file) throws IOException {
+        File temporary = new File(file.getAbsolutePath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+            header.putLong(FILE_MAGIC).putInt(FILE_VERSION).putLong(size).putLong(capacity).putLong(arenaPosition);
+            ((Buffer) header).flip();
+            while (header.hasRemaining())
+                channel.write(header);
+            table.writeTo(channel, capacity * SLOT_BYTES);
+            arena.writeTo(channel, arenaPosition);
+            channel.force(false);
+        }
+        // The file only appears complete, a crash while saving leaves the temporary file behind.
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Memory-map a map saved with {@link #save(File)}. The loaded map is read-only.
+     * @param file file written by {@link #save(File)}
+     * @return read-only map
+     */
+    public static OffHeapStringLongMap load(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+            int read = 0;
+            while (header.hasRemaining() && read >= 0)
+                read = channel.read(header);
+            ((Buffer) header).flip();
+            if (header.remaining() < FILE_HEADER || header.getLong() != FILE_MAGIC || header.getInt() != FILE_VERSION)
+                throw new IOException("Not a valid off-heap map file -- " + file.getAbsolutePath());
+            long size = header.getLong();
+            long capacity = header.getLong();
+            long arenaPosition = header.getLong();
+            long tableBytes = capacity * SLOT_BYTES;
+            if (channel.size() != FILE_HEADER + tableBytes + arenaPosition)
+                throw new IOException("Truncated off-heap map file -- " + file.getAbsolutePath());
+            Pages table = Pages.mapReadOnly(channel, FILE_HEADER, tableBytes);
+            Pages arena = Pages.mapReadOnly(channel, FILE_HEADER + tableBytes, arenaPosition);
+            return new OffHeapStringLongMap(table, capacity, arena, arenaPosition, size);
+        }
+    }
+
+    private long findSlot(byte[] key, long hash) {
+        long slot = hash & mask;
+        while (true) {
+            long record = table.getLong(slot * SLOT_BYTES + Long.BYTES);
+            if (record == EMPTY)
+                return slot;
+            if (table.getLong(slot * SLOT_BYTES) == hash && keyEquals(record - 1, key))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(long position, byte[] key) {
+        if (arena.getInt(position) != key.length)
+            return false;
+        long start = position + RECORD_HEADER;
+        for (int i = 0; i < key.length; i++) {
+            if (arena.getByte(start + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    private long appendRecord(byte[] key, long value) throws IOException {
+        long recordSize = RECORD_HEADER + key.length;
+        if (recordSize > PAGE_SIZE)
+            throw new IOException("Key too long for the off-heap map: " + key.length + " bytes");
+        long pageRemaining = PAGE_SIZE - (arenaPosition & PAGE_MASK);
+        if (pageRemaining < recordSize) {
+            // Records never span two pages, mark the rest of the page as padding.
+            if (pageRemaining >= Integer.BYTES) {
+                arena.ensure(arenaPosition + Integer.BYTES);
+                arena.putInt(arenaPosition, -1);
+            }
+            arenaPosition += pageRemaining;
+        }
+        arena.ensure(arenaPosition + recordSize);
+        long position = arenaPosition;
+        arena.putInt(position, key.length);
+        arena.putLong(position + Integer.BYTES, value);
+        arena.put(position + RECORD_HEADER, key);
+        arenaPosition += recordSize;
+        return position;
+    }
+
+    /**
+     * Double the size of the slot table. The stored hashes are reused, the arena is not touched.
+     */
+    private void resize() throws IOException {
+        long newCapacity = capacity << 1;
+        long newMask = newCapacity - 1;
+        generation++;
+        Pages newTable = newPages("table-" + generation);
+        newTable.ensure(newCapacity * SLOT_BYTES);
+        for (long slot = 0; slot < capacity; slot++) {
+            long record = table.getLong(slot * SLOT_BYTES + Long.BYTES);
+            if (record == EMPTY)
+                continue;
+            long hash = table.getLong(slot * SLOT_BYTES);
+            long newSlot = hash & newMask;
+            while (newTable.getLong(newSlot * SLOT_BYTES + Long.BYTES) != EMPTY)
+                newSlot = (newSlot + 1) & newMask;
+            newTable.putLong(newSlot * SLOT_BYTES, hash);
+            newTable.putLong(newSlot * SLOT_BYTES + Long.BYTES, record);
+        }
+        table.release();
+        table = newTable;
+        capacity = newCapacity;
+        mask = newMask;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the key bytes followed by the MurmurHash3 finalizer to spread the low bits
+     * used to address the table.
+     */
+    static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public void close() {
+        table.release();
+        arena.release();
+        if (backingDirectory != null && deleteOnClose && backingDirectory.exists()) {
+            try {
+                Files.walk(backingDirectory.toPath())
+                        .sorted(Comparator.reverseOrder())
+                        .map(Path::toFile)
+                        .forEach(File::delete);
+            } catch (IOException e) {
+                log.error("Error deleting the off-heap map directory -- " + backingDirectory.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * A growable sequence of off-heap pages of {@link #PAGE_SIZE} bytes addressed with long positions.
+     * Pages are direct buffers, or memory-mapped regions of a single file if a file is provided.
+     */
+    private static final class Pages {
+
+        private final File file;
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        private RandomAccessFile raf;
+
+        Pages(File file) {
+            this.file = file;
+        }
+
+        void ensure(long bytes) throws IOException {
+            while ((long) buffers.size() * PAGE_SIZE < bytes) {
+                int pageIndex = buffers.size();
+                long remaining = bytes - (long) pageIndex * PAGE_SIZE;
+                // Only the last page is allocated smaller, it is re-allocated when it gets full.
+                long pageBytes = Math.min(PAGE_SIZE, Math.max(remaining, Math.min(PAGE_SIZE, 1L << 20)));
+                buffers.add(allocate(pageIndex, pageBytes));
+            }
+            int last = buffers.size() - 1;
+            long lastBytes = bytes - (long) last * PAGE_SIZE;
+            ByteBuffer lastBuffer = buffers.get(last);
+            if (lastBuffer.capacity() < lastBytes) {
+                long grow = Math.min(PAGE_SIZE, Math.max(lastBytes, (long) lastBuffer.capacity() * 2));
+                ByteBuffer bigger = allocate(last, grow);
+                if (file == null) {
+                    ByteBuffer source = lastBuffer.duplicate();
+                    ((Buffer) source).clear();
+                    bigger.put(source);
+                    ((Buffer) bigger).clear();
+                }
+                buffers.set(last, bigger);
+            }
+        }
+
+        private ByteBuffer allocate(int pageIndex, long bytes) throws IOException {
+            if (file == null)
+                return ByteBuffer.allocateDirect((int) bytes);
+            if (raf == null)
+                raf = new RandomAccessFile(file, "rw");
+            long start = (long) pageIndex * PAGE_SIZE;
+            if (raf.length() < start + bytes)
+                raf.setLength(start + bytes);
+            // Mapping the same region again keeps the content, the file is the source of truth.
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, start, bytes);
+        }
+
+        long getLong(long position) {
+            return buffers.get((int) (position >>> PAGE_BITS)).getLong((int) (position & PAGE_MASK));
+        }
+
+        void putLong(long position, long value) {
+            buffers.get((int) (position >>> PAGE_BITS)).putLong((int) (position & PAGE_MASK), value);
+        }
+
+        int getInt(long position) {
+            return buffers.get((int) (position >>> PAGE_BITS)).getInt((int) (position & PAGE_MASK));
+        }
+
+        void putInt(long position, int value) {
+            buffers.get((int) (position >>> PAGE_BITS)).putInt((int) (position & PAGE_MASK), value);
+        }
+
+        byte getByte(long position) {
+            return buffers.get((int) (position >>> PAGE_BITS)).get((int) (position & PAGE_MASK));
+        }
+
+        void get(long position, byte[] destination) {
+            ByteBuffer buffer = buffers.get((int) (position >>> PAGE_BITS)).duplicate();
+            ((Buffer) buffer).position((int) (position & PAGE_MASK));
+            buffer.get(destination);
+        }
+
+        void put(long position, byte[] source) {
+            ByteBuffer buffer = buffers.get((int) (position >>> PAGE_BITS)).duplicate();
+            ((Buffer) buffer).position((int) (position & PAGE_MASK));
+            buffer.put(source);
+        }
+
+        /**
+         * Map read-only a region of a file as pages, the mapping stays valid after the channel is closed.
+         */
+        static Pages mapReadOnly(FileChannel channel, long start, long bytes) throws IOException {
+            Pages pages = new Pages(null);
+            for (long offset = 0; offset < bytes; offset += PAGE_SIZE)
+                pages.buffers.add(channel.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(PAGE_SIZE, bytes - offset)));
+            return pages;
+        }
+
+        void writeTo(FileChannel channel, long bytes) throws IOException {
+            for (int page = 0; (long) page * PAGE_SIZE < bytes; page++) {
+                ByteBuffer buffer = buffers.get(page).duplicate();
+                ((Buffer) buffer).clear();
+                ((Buffer) buffer).limit((int) Math.min(buffer.capacity(), bytes - (long) page * PAGE_SIZE));
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+        }
+
+        void release() {
+            buffers.clear();
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    log.error("Error closing off-heap page file -- " + file.getAbsolutePath());
+                }
+                raf = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package uk.ac.ebi.pride.archive.indexer.utility;
+
+import org.ehcache.spi.serialization.Serializer;
+import uk.ac.ebi.pride.archive.dataprovider.data.protein.PeptideSpectrumOverview;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * ehcache {@link Serializer} of the lists of {@link PeptideSpectrumOverview} stored in the ProteinToPsms cache.
+ * The psms of one protein share most of the usi and repeat sequences and peptidoforms, see {@link CompactEncoding}.
+ *
+ * @author ypriverol
+ */
+@SuppressWarnings("rawtypes")
+public class PeptideSpectrumOverviewListSerializer implements Serializer<ArrayList> {
+
+    @Override
+    public ByteBuffer serialize(ArrayList list) {
+        CompactEncoding.Output output = new CompactEncoding.Output();
+        output.writeVarInt(list.size());
+        for (Object item : list) {
+            PeptideSpectrumOverview psm = (PeptideSpectrumOverview) item;
+            int flags = (psm.getCharge() != null ? 1 : 0) | (psm.getPrecursorMass() != null ? 2 : 0);
+            output.writeByte(flags);
+            if (psm.getCharge() != null)
+                output.writeVarInt(psm.getCharge());
+            if (psm.getPrecursorMass() != null)
+                output.writeDouble(psm.getPrecursorMass());
+            output.writeUsi(psm.getUsi());
+            output.writeDictionaryString(psm.getPeptideSequence());
+            output.writeDictionaryString(psm.getPeptidoform());
+        }
+        return output.toByteBuffer();
+    }
+
+    @Override
+    public ArrayList read(ByteBuffer buffer) {
+        CompactEncoding.Input input = new CompactEncoding.Input(buffer);
+        int size = input.readVarInt();
+        ArrayList<PeptideSpectrumOverview> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int flags = input.readByte();
+            Integer charge = (flags & 1) != 0 ? input.readVarInt() : null;
+            Double precursorMass = (flags & 2) != 0 ? input.readDouble() : null;
+            String usi = input.readUsi();
+            String sequence = input.readDictionaryString();
+            String peptidoform = input.readDictionaryString();
+            list.add(new PeptideSpectrumOverview(charge, precursorMass, usi, sequence, peptidoform));
+        }
+        return list;
+    }
+
+    @Override
+    public boolean equals(ArrayList list, ByteBuffer buffer) {
+        return serialize(list).equals(buffer.duplicate());
+    }
+}
@@ -313,25 +313,40 @@ public class SubmissionPipelineUtils {
     }
 
     public static String encodePeptide(String sequence, Map<Integer, Modification> ptms) {
+        Map<Integer, String> accessions = new HashMap<>();
+        if (ptms != null)
+            ptms.forEach((position, mod) -> accessions.put(position, mod.getAccession()));
+        return encodePeptideAccessions(sequence, accessions);
+    }
+
+    public static String encodePSMAccessions(String sequence, Map<Integer, String> ptms, Integer charge) {
+        return encodePeptideAccessions(sequence, ptms) + "/" + charge;
+    }
+
+    /**
+     * Encode a peptidoform from the accessions of its modifications, see {@link #encodePeptide(String, Map)}
+     * @param sequence peptide sequence
+     * @param ptms position (0 N-term, length + 1 C-term) to modification accession
+     * @return peptidoform
+     */
+    public static String encodePeptideAccessions(String sequence, Map<Integer, String> ptms) {
         StringBuilder stringBuilder = new StringBuilder();
         String finalSequence = sequence;
         if (ptms != null && ptms.size() > 0) {
             char[] sequenceList = sequence.toCharArray();
             if (ptms.containsKey(0))
-                stringBuilder.append("[").append(ptms.get(0).getAccession()).append("]");
+                stringBuilder.append("[").append(ptms.get(0)).append("]");
             for (int i = 0; i < sequenceList.length; i++) {
                 stringBuilder.append(sequenceList[i]);
                 if (ptms.containsKey(i + 1)) {
-                    stringBuilder.append("[").append(ptms.get(i + 1).getAccession()).append("]");
+                    stringBuilder.append("[").append(ptms.get(i + 1)).append("]");
                 }
             }
 
             // Add the CTerm modifications
-            for (Map.Entry entry : ptms.entrySet()) {
-                Integer position = (Integer) entry.getKey();
-                Modification mod = (Modification) entry.getValue();
-                if (position > sequence.length()) {
-                    stringBuilder.append("-").append("[").append(mod.getAccession()).append("]");
+            for (Map.Entry<Integer, String> entry : ptms.entrySet()) {
+                if (entry.getKey() > sequence.length()) {
+                    stringBuilder.append("-").append("[").append(entry.getValue()).append("]");
                 }
             }
             finalSequence = stringBuilder.toString();
@@ -339,6 +354,25 @@ public class SubmissionPipelineUtils {
         return finalSequence;
     }
 
+    /**
+     * Spectrum id of a spectrum reference of mzTab (spectra_ref without the ms_run), following {@link #getSpectrumId(List, PeptideSpectrumMatch)}:
+     *  - index=n in a peak list file (MGF): the index n + 1
+     *  - scan=n or a native id with scan=n: the scan number
+     *  - Wiff native ids and the rest: the reference
+     * @param reference spectrum reference
+     * @param fileType type of the spectra file
+     * @return spectrum id
+     */
+    public static String getSpectrumIdFromReference(String reference, FileType fileType) {
+        if (isValidWiffId(reference))
+            return reference;
+        if (fileType == FileType.MGF && reference.startsWith("index=")) {
+            String index = reference.substring("index=".length());
+            return index.matches(INTEGER) ? Integer.toString(Integer.parseInt(index) + 1) : null;
+        }
+        Optional<String> scanOptional = Arrays.stream(reference.split(" ")).filter(x -> x.contains("scan=")).findFirst();
+        return scanOptional.map(s -> s.replaceAll("scan=", "")).orElse(reference);
+    }
 
     /**
      * Spectrum Id format for an specific CVterm accession
@@ -0,0 +1,117 @@
+package uk.ac.ebi.pride.archive.indexer.utility;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Directory of caches that survive the process: the spectra index and the cluster table of a run are stored in an
+ * entry keyed by the path, size and modification time of the input files, so a later run with the same inputs
+ * reattaches to them instead of building them again. The key is computed without reading the inputs. Each entry is a sub-directory; a marker file tells that an artifact was completely built.
+ * Entries are evicted, least recently used first, when the total size of the store exceeds the disk budget.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class WarmCacheStore {
+
+    private static final String COMPLETE_SUFFIX = ".complete";
+
+    private final File root;
+    private final long budgetBytes;
+
+    public WarmCacheStore(File root, long budgetBytes) throws IOException {
+        this.root = root;
+        this.budgetBytes = budgetBytes;
+        Files.createDirectories(root.toPath());
+    }
+
+    /**
+     * Key of an entry, the SHA1 of the canonical path, size and modification time of the input files. A file that is
+     * replaced or modified gets a new key, the old entry is evicted when it is no longer used.
+     * @param inputFiles files the cached artifacts are derived from
+     * @return hexadecimal key
+     */
+    public static String key(String... inputFiles) throws IOException {
+        MessageDigest digest = HashUtils.getSha1();
+        for (String inputFile : inputFiles) {
+            File file = new File(inputFile);
+            if (!file.isFile())
+                throw new IOException("Input file of the warm cache not found -- " + inputFile);
+            String fileKey = file.getCanonicalPath() + "\t" + file.length() + "\t" + file.lastModified() + "\n";
+            digest.update(fileKey.getBytes(StandardCharsets.UTF_8));
+        }
+        return HashUtils.normalize(digest);
+    }
+
+    /**
+     * Directory of an entry. The entry is marked as used, so it becomes the last to be evicted.
+     * @param key entry key
+     * @return directory of the entry
+     */
+    public File entry(String key) throws IOException {
+        File entry = new File(root, key);
+        Files.createDirectories(entry.toPath());
+        if (!entry.setLastModified(System.currentTimeMillis()))
+            log.warn("Warm cache entry can't be touched --- " + entry.getAbsolutePath());
+        return entry;
+    }
+
+    public boolean isComplete(File entry, String artifact) {
+        return new File(entry, artifact + COMPLETE_SUFFIX).exists();
+    }
+
+    public void markComplete(File entry, String artifact) throws IOException {
+        Files.write(new File(entry, artifact + COMPLETE_SUFFIX).toPath(), new byte[0]);
+    }
+
+    /**
+     * Delete the least recently used entries until the store fits in the disk budget. The entry in use is kept.
+     * @param inUse entry of the current run
+     */
+    public void evict(File inUse) {
+        File[] entries = root.listFiles(File::isDirectory);
+        if (entries == null)
+            return;
+        List<File> byLastUse = Arrays.stream(entries)
+                .sorted(Comparator.comparingLong(File::lastModified))
+                .collect(Collectors.toList());
+        long total = byLastUse.stream().mapToLong(WarmCacheStore::sizeOf).sum();
+        for (File entry : byLastUse) {
+            if (total <= budgetBytes)
+                break;
+            if (entry.equals(inUse))
+                continue;
+            long entrySize = sizeOf(entry);
+            log.info(String.format("Evicting warm cache entry %s -- %d MB", entry.getName(), entrySize / (1024 * 1024)));
+            delete(entry);
+            total -= entrySize;
+        }
+    }
+
+    private static long sizeOf(File directory) {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            return paths.map(Path::toFile).filter(File::isFile).mapToLong(File::length).sum();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void delete(File directory) {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            log.error("Error deleting warm cache entry -- " + directory.getAbsolutePath());
+        }
+    }
+}
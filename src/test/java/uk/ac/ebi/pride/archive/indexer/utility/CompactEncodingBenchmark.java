@@ -0,0 +1,102 @@
+package uk.ac.ebi.pride.archive.indexer.utility;
+
+import uk.ac.ebi.pride.archive.dataprovider.data.protein.PeptideSpectrumOverview;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Micro-benchmark of the ProteinToPsms values, Java serialization against {@link PeptideSpectrumOverviewListSerializer}.
+ * Synthetic proteins get 1-8 PSMs from the same project, sharing sequences and peptidoforms as in a real assay. It is
+ * a plain main class, the build skips the test sources:
+ *
+ * <pre>
+ *     java -cp target/classes:target/test-classes:$DEPENDENCIES \
+ *          uk.ac.ebi.pride.archive.indexer.utility.CompactEncodingBenchmark [proteins] [rounds]
+ * </pre>
+ *
+ * @author ypriverol
+ */
+public class CompactEncodingBenchmark {
+
+    private static final String[] RESIDUES = {"A", "C", "D", "E", "F", "G", "K", "L", "M", "N", "P", "R", "S", "T", "V", "Y"};
+
+    public static void main(String[] args) throws Exception {
+        int proteins = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        List<ArrayList<PeptideSpectrumOverview>> values = createValues(proteins, new Random(42));
+        PeptideSpectrumOverviewListSerializer serializer = new PeptideSpectrumOverviewListSerializer();
+
+        for (int round = 1; round <= rounds; round++) {
+            long javaBytes = 0;
+            long start = System.nanoTime();
+            for (ArrayList<PeptideSpectrumOverview> value : values)
+                javaBytes += javaSerialize(value).length;
+            long javaNanos = System.nanoTime() - start;
+
+            long compactBytes = 0;
+            start = System.nanoTime();
+            for (ArrayList<PeptideSpectrumOverview> value : values) {
+                ByteBuffer buffer = serializer.serialize(value);
+                compactBytes += buffer.remaining();
+                if (serializer.read(buffer).size() != value.size())
+                    throw new IllegalStateException("Compact round trip lost PSMs");
+            }
+            long compactNanos = System.nanoTime() - start;
+
+            System.out.println(String.format("Round %d -- java %.1f MB in %d ms, compact (write + read) %.1f MB in %d ms",
+                    round, javaBytes / 1048576.0, javaNanos / 1000000, compactBytes / 1048576.0, compactNanos / 1000000));
+        }
+
+        // Java serialization has to read back the same values, check it once outside the timings.
+        Object back = new ObjectInputStream(new ByteArrayInputStream(javaSerialize(values.get(0)))).readObject();
+        if (((List<?>) back).size() != values.get(0).size())
+            throw new IllegalStateException("Java round trip lost PSMs");
+    }
+
+    private static byte[] javaSerialize(ArrayList<PeptideSpectrumOverview> value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<ArrayList<PeptideSpectrumOverview>> createValues(int proteins, Random random) {
+        List<ArrayList<PeptideSpectrumOverview>> values = new ArrayList<>(proteins);
+        for (int protein = 0; protein < proteins; protein++) {
+            int psms = 1 + random.nextInt(8);
+            int peptides = 1 + random.nextInt(psms);
+            List<String> sequences = new ArrayList<>();
+            for (int i = 0; i < peptides; i++)
+                sequences.add(randomSequence(random));
+            ArrayList<PeptideSpectrumOverview> value = new ArrayList<>(psms);
+            for (int i = 0; i < psms; i++) {
+                String sequence = sequences.get(random.nextInt(peptides));
+                int charge = 2 + random.nextInt(3);
+                String usi = String.format("mzspec:PXD012345:20190101_QE_Run%02d.raw:scan:%d:%s/%d",
+                        random.nextInt(24), random.nextInt(80000), sequence, charge);
+                value.add(new PeptideSpectrumOverview(charge, 400 + random.nextDouble() * 1200, usi, sequence,
+                        sequence + "/" + charge));
+            }
+            values.add(value);
+        }
+        return values;
+    }
+
+    private static String randomSequence(Random random) {
+        StringBuilder sequence = new StringBuilder();
+        int length = 7 + random.nextInt(18);
+        for (int i = 0; i < length; i++)
+            sequence.append(RESIDUES[random.nextInt(RESIDUES.length)]);
+        return sequence.append(random.nextBoolean() ? "K" : "R").toString();
+    }
+}
@@ -27,6 +27,10 @@ def helpMessage() {
 
       Advanced Options:
       --pride_production_folder     (Optional) Local folder that contains the submitted files for PRIDE
+      --clustering                  (Optional) maracluster (default) or native, to cluster the spectra in the inference step without MaraCluster
+      --clustering_similarity_threshold, --clustering_precursor_tolerance_ppm, --clustering_bin_width,
+      --clustering_top_peaks, --clustering_max_bucket_size
+                                    (Optional) Settings of the native clustering
 
     Other options:
       --outdir [file]                 The output directory where the results will be saved
@@ -122,7 +126,7 @@ ch_result_uncompress_process_str.subscribe { println "value: $it" }
 // Get the related spectra for each result file.
 process project_get_related_spectra{
 
-  label 'process_medium'
+  label 'process_very_low'
 
   publishDir "${params.outdir}/related_files", mode: 'copy', pattern: '*.tsv'
 
@@ -191,15 +195,20 @@ process generate_json_index_files{
 
   label 'process_high'
 
+  publishDir "${params.outdir}/${params.project_accession}", mode: 'copy', pattern: '**_Preflight.json'
+  publishDir "${params.outdir}/pipeline_info", mode: 'copy', pattern: '**_CacheMetrics.json'
+
   input:
   val(result_id) from ch_final_map
 
   output:
   file("**_ArchiveSpectrum_Total.json") optional true into final_spectrum_total_json
+  file("**_Preflight.json") optional true into final_preflight_json
+  file("**_CacheMetrics.json") optional true into final_index_cache_metrics
 
   script:
   """
-  java -jar ${baseDir}/bin/pride-molecules-indexer-1.0.0-SNAPSHOT-bin.jar generate-index-files --app.result-file="${result_id[1]}" --app.folder-output=`pwd` --app.spectra-files="${result_id[2].join(",")}" --app.project-accession=${params.project_accession} --app.minPSMs=${params.minPSMs} --app.qValueThreshold=${params.qValueThreshold} --app.qFilterProteinFDR=${params.qFilterProteinFDR} --app.peptideLength=${params.peptideLength} --app.uniquePeptides=${params.uniquePeptides}
+  java -jar ${baseDir}/bin/pride-molecules-indexer-1.0.0-SNAPSHOT-bin.jar generate-index-files --app.result-file="${result_id[1]}" --app.folder-output=`pwd` --app.spectra-files="${result_id[2].join(",")}" --app.project-accession=${params.project_accession} --app.minPSMs=${params.minPSMs} --app.qValueThreshold=${params.qValueThreshold} --app.qFilterProteinFDR=${params.qFilterProteinFDR} --app.peptideLength=${params.peptideLength} --app.uniquePeptides=${params.uniquePeptides} --app.metrics-file="${result_id[0]}_CacheMetrics.json"
   """
 }
 
@@ -236,6 +245,9 @@ process convert_to_mgf{
   output:
   file "*.mgf" into mgf_files
 
+  when:
+  params.clustering != 'native'
+
   script:
   """
   java -jar ${baseDir}/bin/pride-molecules-indexer-1.0.0-SNAPSHOT-bin.jar generate-mgf-files --app.archive-spectra="${total_spectra}" --app.mgf-file=${params.project_accession}.mgf
@@ -260,6 +272,9 @@ process maracluster_clustering{
   output:
   file "maracluster_output/*.clusters_p${params.clusterpvalue}.tsv" into maracluster_results
 
+  when:
+  params.clustering != 'native'
+
   script:
   """
   echo ${total_spectra} > bash_files.txt
@@ -268,13 +283,17 @@ process maracluster_clustering{
 
 }
 
+// The native clustering runs inside perform-inference, it has no MaraCluster results.
+clustering_results = params.clustering == 'native' ? Channel.value([]) : maracluster_results
+
 process final_inference_after_clustering{
 
   label 'process_high'
   publishDir "${params.outdir}", mode: 'copy', pattern: '**_ArchiveSpectrum.json'
+  publishDir "${params.outdir}/pipeline_info", mode: 'copy', pattern: '**_CacheMetrics.json'
 
   input:
-  file(clustering_file) from maracluster_results
+  file(clustering_file) from clustering_results
   file(total_spectrum) from total_spectrum_file_final
 
   output:
@@ -282,11 +301,16 @@ process final_inference_after_clustering{
     file("**_ArchiveProteinEvidence.json") optional true into final_protein_json_inference, final_protein_json_view_inference
     file("**_ArchiveSpectrum_Total.json") optional true into final_spectrum_total_json_inference
     file("**_SummaryArchiveSpectrum.json") optional true into final_summary_json_inference, final_summary_json_view_inference
+    file("**_CacheMetrics.json") optional true into final_inference_cache_metrics
 
   script:
   java_mem = "-Xmx" + (task.memory.toGiga() - 4) + "G"
+  if (params.clustering == 'native')
+    clustering_options = "--app.clustering=native --clustering.precursor-tolerance-ppm=${params.clustering_precursor_tolerance_ppm} --clustering.similarity-threshold=${params.clustering_similarity_threshold} --clustering.bin-width=${params.clustering_bin_width} --clustering.top-peaks=${params.clustering_top_peaks} --clustering.max-bucket-size=${params.clustering_max_bucket_size}"
+  else
+    clustering_options = "--app.cluster-file=\"${clustering_file}\""
   """
-  java -jar ${baseDir}/bin/pride-molecules-indexer-1.0.0-SNAPSHOT-bin.jar perform-inference --app.output-folder=`pwd` --app.archive-spectra="${total_spectrum}" --app.cluster-file="${clustering_file}" --app.project-accession="${params.project_accession}"
+  java -jar ${baseDir}/bin/pride-molecules-indexer-1.0.0-SNAPSHOT-bin.jar perform-inference --app.output-folder=`pwd` --app.archive-spectra="${total_spectrum}" ${clustering_options} --app.project-accession="${params.project_accession}" --app.metrics-file="${params.project_accession}_Inference_CacheMetrics.json"
   """
 }
 